@@ -26,7 +26,6 @@ import com.android.dialer.smartdial.SmartDialCursorLoader;
 import com.android.dialer.smartdial.util.SmartDialMatchPosition;
 import com.android.dialer.smartdial.util.SmartDialNameMatcher;
 import com.android.dialer.util.CallUtil;
-import java.util.ArrayList;
 
 /** List adapter to display the SmartDial search results. */
 public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
@@ -74,9 +73,8 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
     view.clearHighlightSequences();
 
     if (nameMatcher.matches(context, cursor.getString(PhoneQuery.DISPLAY_NAME))) {
-      final ArrayList<SmartDialMatchPosition> nameMatches = nameMatcher.getMatchPositions();
-      for (SmartDialMatchPosition match : nameMatches) {
-        view.addNameHighlightSequence(match.start, match.end);
+      for (int i = 0; i < nameMatcher.getMatchPositionCount(); i++) {
+        view.addNameHighlightSequence(nameMatcher.getMatchStart(i), nameMatcher.getMatchEnd(i));
         if (DEBUG) {
           LogUtil.v(
               TAG,
@@ -84,7 +82,7 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
                   + " "
                   + nameMatcher.getQuery()
                   + " "
-                  + String.valueOf(match.start));
+                  + String.valueOf(nameMatcher.getMatchStart(i)));
         }
       }
     }
@@ -22,6 +22,7 @@ import com.android.dialer.calllog.ui.CallLogUiComponent;
 import com.android.dialer.commandline.CommandLineComponent;
 import com.android.dialer.common.concurrent.DialerExecutorComponent;
 import com.android.dialer.configprovider.ConfigProviderComponent;
+import com.android.dialer.contactchanges.ContactChangeFeedComponent;
 import com.android.dialer.duo.DuoComponent;
 import com.android.dialer.enrichedcall.EnrichedCallComponent;
 import com.android.dialer.feedback.FeedbackComponent;
@@ -52,6 +53,7 @@ public interface BaseDialerRootComponent
         CallLogDatabaseComponent.HasComponent,
         CallLogUiComponent.HasComponent,
         ConfigProviderComponent.HasComponent,
+        ContactChangeFeedComponent.HasComponent,
         CommandLineComponent.HasComponent,
         DialerExecutorComponent.HasComponent,
         DuoComponent.HasComponent,
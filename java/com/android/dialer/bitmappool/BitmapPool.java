@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.bitmappool;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Color;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.android.dialer.common.LogUtil;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Pool of unused bitmaps shared by the contact photo managers and letter tiles, so that scrolling
+ * lists of avatars reuses the same few bitmaps instead of allocating new ones.
+ *
+ * <p>Bitmaps are grouped by {@link Bitmap#getAllocationByteCount()}. A request is served by the
+ * smallest pooled bitmap that is large enough, which is then reconfigured to the requested size or
+ * passed to {@link android.graphics.BitmapFactory.Options#inBitmap} to be decoded into. Bitmaps
+ * much larger than requested are not used, to not waste them on small requests.
+ *
+ * <p>Only bitmaps which are no longer referenced anywhere may be {@link #put(Bitmap)} into the
+ * pool, as their pixels will be overwritten. When the pool is full, the bitmaps put least recently
+ * are recycled.
+ */
+public final class BitmapPool {
+
+  /** Upper bound of the pool size, about 100 thumbnails of 96x96 pixels. */
+  private static final int MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+  /** A pooled bitmap may be at most this many times larger than requested. */
+  private static final int MAX_SIZE_MULTIPLE = 4;
+
+  private static final BitmapPool instance =
+      new BitmapPool((int) Math.min(MAX_SIZE_BYTES, Runtime.getRuntime().maxMemory() / 64));
+
+  private final int initialMaxSizeBytes;
+
+  /** Pooled bitmaps by allocation byte count. */
+  private final TreeMap<Integer, ArrayDeque<Bitmap>> bitmapsBySize = new TreeMap<>();
+
+  /** Pooled bitmaps, the least recently put first. */
+  private final Set<Bitmap> bitmapsByAge = new LinkedHashSet<>();
+
+  private int maxSizeBytes;
+  private int sizeBytes;
+
+  private int hits;
+  private int misses;
+  private int evictions;
+
+  private BitmapPool(int maxSizeBytes) {
+    this.initialMaxSizeBytes = maxSizeBytes;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  public static BitmapPool getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns a mutable bitmap of the given size and config with only transparent pixels, reused
+   * from the pool if possible.
+   */
+  @NonNull
+  public Bitmap get(int width, int height, @Nullable Config config) {
+    Bitmap bitmap = getDirty(width, height, config);
+    bitmap.eraseColor(Color.TRANSPARENT);
+    return bitmap;
+  }
+
+  /**
+   * Like {@link #get(int, int, Config)}, but the pixels of a reused bitmap are left as is. Use
+   * when all of them will be drawn over.
+   */
+  @NonNull
+  public Bitmap getDirty(int width, int height, @Nullable Config config) {
+    if (config == null) {
+      config = Config.ARGB_8888;
+    }
+    Bitmap bitmap = getReusable(width * height * getBytesPerPixel(config));
+    if (bitmap != null) {
+      try {
+        bitmap.reconfigure(width, height, config);
+        return bitmap;
+      } catch (IllegalArgumentException e) {
+        LogUtil.e("BitmapPool.getDirty", "failed to reconfigure bitmap", e);
+      }
+    }
+    return Bitmap.createBitmap(width, height, config);
+  }
+
+  /**
+   * Removes a mutable bitmap of at least {@code byteCount} bytes from the pool, to be passed to
+   * {@link android.graphics.BitmapFactory.Options#inBitmap}. Its pixels are left as is.
+   *
+   * @return null if no pooled bitmap is large enough.
+   */
+  @Nullable
+  public synchronized Bitmap getReusable(int byteCount) {
+    Integer size = bitmapsBySize.ceilingKey(byteCount);
+    if (size == null || size > (long) byteCount * MAX_SIZE_MULTIPLE) {
+      misses++;
+      return null;
+    }
+    hits++;
+    ArrayDeque<Bitmap> bitmaps = bitmapsBySize.get(size);
+    Bitmap bitmap = bitmaps.removeLast();
+    if (bitmaps.isEmpty()) {
+      bitmapsBySize.remove(size);
+    }
+    bitmapsByAge.remove(bitmap);
+    sizeBytes -= size;
+    return bitmap;
+  }
+
+  /**
+   * Adds a bitmap which is no longer used to the pool. Bitmaps which can't be reused, such as
+   * immutable ones, are ignored.
+   */
+  public synchronized void put(@Nullable Bitmap bitmap) {
+    if (bitmap == null
+        || bitmap.isRecycled()
+        || !bitmap.isMutable()
+        || bitmap.getAllocationByteCount() > maxSizeBytes / 4
+        || bitmapsByAge.contains(bitmap)) {
+      return;
+    }
+    int size = bitmap.getAllocationByteCount();
+    ArrayDeque<Bitmap> bitmaps = bitmapsBySize.get(size);
+    if (bitmaps == null) {
+      bitmaps = new ArrayDeque<>();
+      bitmapsBySize.put(size, bitmaps);
+    }
+    bitmaps.addLast(bitmap);
+    bitmapsByAge.add(bitmap);
+    sizeBytes += size;
+    trimToSize(maxSizeBytes);
+  }
+
+  /** Scales the maximum size of the pool, e.g. for Glide's memory categories. */
+  public synchronized void setSizeMultiplier(float multiplier) {
+    maxSizeBytes = Math.round(initialMaxSizeBytes * multiplier);
+    trimToSize(maxSizeBytes);
+  }
+
+  public synchronized int getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /** Recycles all pooled bitmaps. */
+  public synchronized void clear() {
+    trimToSize(0);
+  }
+
+  /** Shrinks the pool for {@link ComponentCallbacks2#onTrimMemory(int)}. */
+  public synchronized void trimMemory(int level) {
+    LogUtil.i("BitmapPool.trimMemory", "level: %d, %s", level, getStats());
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      trimToSize(0);
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      trimToSize(maxSizeBytes / 2);
+    }
+  }
+
+  /** Returns the fraction of requests served from the pool. */
+  public synchronized float getHitRate() {
+    int requests = hits + misses;
+    return requests == 0 ? 0 : (float) hits / requests;
+  }
+
+  /** Returns the pool statistics for logging. */
+  public synchronized String getStats() {
+    return String.format(
+        "size: %dK/%dK, hits: %d, misses: %d, hit rate: %.2f, evictions: %d",
+        sizeBytes / 1024, maxSizeBytes / 1024, hits, misses, getHitRate(), evictions);
+  }
+
+  private void trimToSize(int targetSizeBytes) {
+    Iterator<Bitmap> iterator = bitmapsByAge.iterator();
+    while (sizeBytes > targetSizeBytes && iterator.hasNext()) {
+      Bitmap bitmap = iterator.next();
+      iterator.remove();
+      int size = bitmap.getAllocationByteCount();
+      ArrayDeque<Bitmap> bitmaps = bitmapsBySize.get(size);
+      bitmaps.remove(bitmap);
+      if (bitmaps.isEmpty()) {
+        bitmapsBySize.remove(size);
+      }
+      sizeBytes -= size;
+      evictions++;
+      bitmap.recycle();
+    }
+  }
+
+  private static int getBytesPerPixel(Config config) {
+    switch (config) {
+      case ALPHA_8:
+        return 1;
+      case RGB_565:
+      case ARGB_4444:
+        return 2;
+      case ARGB_8888:
+        return 4;
+      default:
+        // Newer configs use up to 8 bytes per pixel.
+        return 8;
+    }
+  }
+}
@@ -47,6 +47,13 @@ import javax.inject.Singleton;
 @Singleton
 public class RefreshAnnotatedCallLogWorker {
 
+  /**
+   * Number of new rows which are written ahead of the others when a refresh has more new rows than
+   * that, e.g. when the annotated call log is first built. This is more than fits on the first
+   * screen of the call log.
+   */
+  private static final int FIRST_CHUNK_SIZE = 50;
+
   private final Context appContext;
   private final DataSources dataSources;
   private final SharedPreferences sharedPreferences;
@@ -59,6 +66,11 @@ public class RefreshAnnotatedCallLogWorker {
   // RefreshAnnotatedCallLogWorker is a @Singleton.)
   private final DialerFutureSerializer dialerFutureSerializer = new DialerFutureSerializer();
 
+  /** Reused by every rebuild; rebuilds are serialized by {@link #dialerFutureSerializer}. */
+  private final CallLogMutations mutations = new CallLogMutations();
+
+  private final CallLogMutations firstChunk = new CallLogMutations();
+
   @Inject
   RefreshAnnotatedCallLogWorker(
       @ApplicationContext Context appContext,
@@ -168,7 +180,8 @@ public class RefreshAnnotatedCallLogWorker {
   }
 
   private ListenableFuture<RefreshResult> rebuild(boolean isBuilt) {
-    CallLogMutations mutations = new CallLogMutations();
+    mutations.clear();
+    firstChunk.clear();
 
     // Start by filling the data sources--the system call log data source must go first!
     CallLogDataSource systemCallLogDataSource = dataSources.getSystemCallLogDataSource();
@@ -195,10 +208,13 @@ public class RefreshAnnotatedCallLogWorker {
     futureTimer.applyTiming(fillFuture, eventNameForOverallFill(isBuilt));
 
     // After all data sources are filled, apply mutations (at this point "fillFuture" is the result
-    // of filling the last data source).
+    // of filling the last data source). If there are many new rows, the newest ones are written
+    // first so that the call log can show them without waiting for the others.
+    ListenableFuture<Void> applyFirstChunkFuture =
+        Futures.transformAsync(fillFuture, unused -> applyFirstChunk(), lightweightExecutorService);
     ListenableFuture<Void> applyMutationsFuture =
         Futures.transformAsync(
-            fillFuture,
+            applyFirstChunkFuture,
             unused -> {
               ListenableFuture<Void> mutationApplierFuture =
                   mutationApplier.applyToDatabase(mutations, appContext);
@@ -232,13 +248,34 @@ public class RefreshAnnotatedCallLogWorker {
         unused -> {
           sharedPreferences.edit().putBoolean(SharedPrefKeys.FORCE_REBUILD, false).apply();
           callLogState.markBuilt();
-          return mutations.isEmpty()
+          return mutations.isEmpty() && firstChunk.isEmpty()
               ? RefreshResult.REBUILT_BUT_NO_CHANGES_NEEDED
               : RefreshResult.REBUILT_AND_CHANGES_NEEDED;
         },
         backgroundExecutorService);
   }
 
+  /**
+   * Moves the first {@link #FIRST_CHUNK_SIZE} inserts from {@link #mutations} to {@link
+   * #firstChunk} and applies them.
+   *
+   * <p>The system call log orders its rows by last modified time, newest first, so these are the
+   * rows at the top of the call log. Every data source has already filled them along with the
+   * others, so each source still fills once per refresh. Does nothing if there are fewer new rows.
+   */
+  private ListenableFuture<Void> applyFirstChunk() {
+    if (mutations.getInsertCount() <= FIRST_CHUNK_SIZE) {
+      return Futures.immediateFuture(null);
+    }
+    firstChunk.moveInserts(mutations, FIRST_CHUNK_SIZE);
+    LogUtil.i(
+        "RefreshAnnotatedCallLogWorker.applyFirstChunk",
+        "writing %d of %d new rows first",
+        firstChunk.getInsertCount(),
+        firstChunk.getInsertCount() + mutations.getInsertCount());
+    return mutationApplier.applyToDatabase(firstChunk, appContext);
+  }
+
   private static String eventNameForFill(CallLogDataSource dataSource, boolean isBuilt) {
     return String.format(
         !isBuilt ? Metrics.INITIAL_FILL_TEMPLATE : Metrics.FILL_TEMPLATE,
@@ -16,7 +16,6 @@
 
 package com.android.dialer.calllog.database;
 
-import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -27,14 +26,16 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
-import android.os.Build;
-import android.provider.CallLog.Calls;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.LongSparseArray;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
+import com.android.dialer.calllog.datasources.CallLogMutations;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.metrics.Metrics;
@@ -97,7 +98,6 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
     return true;
   }
 
-  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
   @Nullable
   @Override
   public Cursor query(
@@ -156,24 +156,14 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
             selectionArgs == null, "selection args not supported for coalesced call log");
         Assert.checkArgument(sortOrder == null, "sort order not supported for coalesced call log");
         MetricsComponent.get(getContext()).metrics().startTimer(Metrics.NEW_CALL_LOG_COALESCE);
-        try (Cursor allAnnotatedCallLogRows =
-            queryBuilder.query(
-                db,
-                null,
-                String.format("%s != ?", CoalescedAnnotatedCallLog.CALL_TYPE),
-                new String[] {Integer.toString(Calls.VOICEMAIL_TYPE)},
-                null,
-                null,
-                AnnotatedCallLog.TIMESTAMP + " DESC")) {
-          Cursor coalescedRows =
-              CallLogDatabaseComponent.get(getContext())
-                  .coalescer()
-                  .coalesce(allAnnotatedCallLogRows);
-          coalescedRows.setNotificationUri(
-              getContext().getContentResolver(), CoalescedAnnotatedCallLog.CONTENT_URI);
-          MetricsComponent.get(getContext()).metrics().stopTimer(Metrics.NEW_CALL_LOG_COALESCE);
-          return coalescedRows;
-        }
+        Cursor coalescedRows =
+            CallLogDatabaseComponent.get(getContext())
+                .coalescer()
+                .coalesce(databaseHelper.getWritableDatabase());
+        coalescedRows.setNotificationUri(
+            getContext().getContentResolver(), CoalescedAnnotatedCallLog.CONTENT_URI);
+        MetricsComponent.get(getContext()).metrics().stopTimer(Metrics.NEW_CALL_LOG_COALESCE);
+        return coalescedRows;
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
     }
@@ -380,6 +370,122 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
     return results;
   }
 
+  /**
+   * Writes {@code mutations} straight to the database, in a single transaction and with compiled
+   * statements, and sends a single change notification.
+   *
+   * <p>Equivalent to {@link #applyBatch(ArrayList)} with the operations built by {@link
+   * MutationApplier}, without creating and dispatching an operation per row. Only available to
+   * callers in the same process.
+   */
+  @WorkerThread
+  void applyMutations(CallLogMutations mutations) {
+    Assert.isWorkerThread();
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    // Rows with the same columns share a statement; most rows have the same columns.
+    LongSparseArray<SQLiteStatement> insertStatements = new LongSparseArray<>();
+    LongSparseArray<SQLiteStatement> updateStatements = new LongSparseArray<>();
+    SQLiteStatement deleteStatement = null;
+    database.beginTransaction();
+    try {
+      for (int row = 0; row < mutations.getRowCount(); row++) {
+        if (!mutations.isInsert(row)) {
+          continue;
+        }
+        long columnMask = mutations.getColumnMask(row);
+        SQLiteStatement statement = insertStatements.get(columnMask);
+        if (statement == null) {
+          statement = compileInsert(database, columnMask);
+          insertStatements.put(columnMask, statement);
+        }
+        statement.clearBindings();
+        statement.bindLong(1, mutations.getId(row));
+        mutations.bindValues(statement, row, 2);
+        statement.executeInsert();
+      }
+
+      for (int row = 0; row < mutations.getRowCount(); row++) {
+        if (mutations.isInsert(row)) {
+          continue;
+        }
+        long columnMask = mutations.getColumnMask(row);
+        SQLiteStatement statement = updateStatements.get(columnMask);
+        if (statement == null) {
+          statement = compileUpdate(database, columnMask);
+          updateStatements.put(columnMask, statement);
+        }
+        statement.clearBindings();
+        int index = mutations.bindValues(statement, row, 1);
+        statement.bindLong(index, mutations.getId(row));
+        if (statement.executeUpdateDelete() == 0) {
+          // See applyBatch; the row may have been cleaned up by an insert.
+          LogUtil.w(
+              "AnnotatedCallLogContentProvider.applyMutations",
+              "update failed, possibly because row got cleaned up");
+        }
+      }
+
+      if (!mutations.getDeletes().isEmpty()) {
+        deleteStatement =
+            database.compileStatement(
+                "DELETE FROM "
+                    + AnnotatedCallLog.TABLE
+                    + " WHERE "
+                    + AnnotatedCallLog._ID
+                    + " = ?");
+        for (long id : mutations.getDeletes()) {
+          deleteStatement.bindLong(1, id);
+          deleteStatement.executeUpdateDelete();
+        }
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      for (int i = 0; i < insertStatements.size(); i++) {
+        insertStatements.valueAt(i).close();
+      }
+      for (int i = 0; i < updateStatements.size(); i++) {
+        updateStatements.valueAt(i).close();
+      }
+      if (deleteStatement != null) {
+        deleteStatement.close();
+      }
+    }
+    notifyChange(AnnotatedCallLog.CONTENT_URI);
+  }
+
+  /** Compiles an insert of the ID followed by the columns in {@code columnMask}, in mask order. */
+  private static SQLiteStatement compileInsert(SQLiteDatabase database, long columnMask) {
+    StringBuilder sql =
+        new StringBuilder("INSERT INTO ")
+            .append(AnnotatedCallLog.TABLE)
+            .append(" (")
+            .append(AnnotatedCallLog._ID);
+    StringBuilder values = new StringBuilder("?");
+    for (int column = 0; column < Long.SIZE; column++) {
+      if ((columnMask & (1L << column)) != 0) {
+        sql.append(", ").append(CallLogMutations.getColumnName(column));
+        values.append(", ?");
+      }
+    }
+    sql.append(") VALUES (").append(values).append(')');
+    return database.compileStatement(sql.toString());
+  }
+
+  /** Compiles an update of the columns in {@code columnMask}, in mask order, followed by the ID. */
+  private static SQLiteStatement compileUpdate(SQLiteDatabase database, long columnMask) {
+    StringBuilder sql = new StringBuilder("UPDATE ").append(AnnotatedCallLog.TABLE).append(" SET ");
+    String separator = "";
+    for (int column = 0; column < Long.SIZE; column++) {
+      if ((columnMask & (1L << column)) != 0) {
+        sql.append(separator).append(CallLogMutations.getColumnName(column)).append(" = ?");
+        separator = ", ";
+      }
+    }
+    sql.append(" WHERE ").append(AnnotatedCallLog._ID).append(" = ?");
+    return database.compileStatement(sql.toString());
+  }
+
   private String getSelectionWithId(long id) {
     return AnnotatedCallLog._ID + "=" + id;
   }
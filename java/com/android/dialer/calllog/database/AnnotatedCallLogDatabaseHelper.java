@@ -26,10 +26,34 @@ import java.util.Locale;
 
 /** {@link SQLiteOpenHelper} for the AnnotatedCallLog database. */
 class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
+
+  /**
+   * The coalesced call log group of every non-voicemail {@link AnnotatedCallLog} row, maintained
+   * by {@link Coalescer}.
+   *
+   * <p>Triggers record the timestamp of every row which was inserted, deleted or changed in a way
+   * that affects grouping in {@link #DIRTY_TABLE}, so that only the groups around those rows have
+   * to be recomputed.
+   */
+  static final class CoalescedGroup {
+    static final String TABLE = "CoalescedGroup";
+
+    /** {@link AnnotatedCallLog#_ID} of the row. */
+    static final String _ID = "_id";
+
+    /** {@link AnnotatedCallLog#_ID} of the most recent row in the group. */
+    static final String GROUP_ID = "group_id";
+
+    static final String DIRTY_TABLE = "CoalescedGroupDirty";
+
+    /** {@link AnnotatedCallLog#TIMESTAMP} of a row whose group has to be recomputed. */
+    static final String DIRTY_TIMESTAMP = "timestamp";
+  }
+
   private final int maxRows;
 
   AnnotatedCallLogDatabaseHelper(Context appContext, int maxRows) {
-    super(appContext, "annotated_call_log.db", null, 1);
+    super(appContext, "annotated_call_log.db", null, 2);
     this.maxRows = maxRows;
   }
 
@@ -108,6 +132,89 @@ class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
           + AnnotatedCallLog.NUMBER
           + ");";
 
+  private static final String CREATE_COALESCED_GROUP_TABLE_SQL =
+      "create table if not exists "
+          + CoalescedGroup.TABLE
+          + " ("
+          + (CoalescedGroup._ID + " integer primary key, ")
+          + (CoalescedGroup.GROUP_ID + " integer not null")
+          + ");";
+
+  private static final String CREATE_COALESCED_GROUP_DIRTY_TABLE_SQL =
+      "create table if not exists "
+          + CoalescedGroup.DIRTY_TABLE
+          + " ("
+          + (CoalescedGroup.DIRTY_TIMESTAMP + " integer")
+          + ");";
+
+  private static final String CREATE_COALESCED_GROUP_INSERT_TRIGGER_SQL =
+      "create trigger coalesced_group_insert after insert on "
+          + AnnotatedCallLog.TABLE
+          + " begin insert into "
+          + CoalescedGroup.DIRTY_TABLE
+          + " values (new."
+          + AnnotatedCallLog.TIMESTAMP
+          + "); end;";
+
+  /** Also fires for the rows deleted by {@link #CREATE_TRIGGER_SQL}. */
+  private static final String CREATE_COALESCED_GROUP_DELETE_TRIGGER_SQL =
+      "create trigger coalesced_group_delete after delete on "
+          + AnnotatedCallLog.TABLE
+          + " begin delete from "
+          + CoalescedGroup.TABLE
+          + " where "
+          + CoalescedGroup._ID
+          + " = old."
+          + AnnotatedCallLog._ID
+          + "; insert into "
+          + CoalescedGroup.DIRTY_TABLE
+          + " values (old."
+          + AnnotatedCallLog.TIMESTAMP
+          + "); end;";
+
+  /**
+   * Only fires if a column which decides the position or group of the row changes; most updates,
+   * e.g. to the read state or to the number attributes, keep the groups as they are.
+   */
+  private static final String CREATE_COALESCED_GROUP_UPDATE_TRIGGER_SQL =
+      "create trigger coalesced_group_update after update on "
+          + AnnotatedCallLog.TABLE
+          + " when "
+          + isDistinctFromOld(AnnotatedCallLog._ID)
+          + " or "
+          + isDistinctFromOld(AnnotatedCallLog.TIMESTAMP)
+          + " or "
+          + isDistinctFromOld(AnnotatedCallLog.CALL_TYPE)
+          + " or "
+          + isDistinctFromOld(AnnotatedCallLog.NUMBER)
+          + " or "
+          + isDistinctFromOld(AnnotatedCallLog.NUMBER_PRESENTATION)
+          + " or "
+          + isDistinctFromOld(AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME)
+          + " or "
+          + isDistinctFromOld(AnnotatedCallLog.PHONE_ACCOUNT_ID)
+          + " or "
+          + isDistinctFromOld(AnnotatedCallLog.FEATURES)
+          + " begin delete from "
+          + CoalescedGroup.TABLE
+          + " where "
+          + CoalescedGroup._ID
+          + " = old."
+          + AnnotatedCallLog._ID
+          + "; insert into "
+          + CoalescedGroup.DIRTY_TABLE
+          + " values (old."
+          + AnnotatedCallLog.TIMESTAMP
+          + "); insert into "
+          + CoalescedGroup.DIRTY_TABLE
+          + " values (new."
+          + AnnotatedCallLog.TIMESTAMP
+          + "); end;";
+
+  private static String isDistinctFromOld(String column) {
+    return "old." + column + " is not new." + column;
+  }
+
   @Override
   public void onCreate(SQLiteDatabase db) {
     LogUtil.enterBlock("AnnotatedCallLogDatabaseHelper.onCreate");
@@ -116,6 +223,7 @@ class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
     db.execSQL(String.format(Locale.US, CREATE_TRIGGER_SQL, maxRows, maxRows));
     db.execSQL(CREATE_INDEX_ON_CALL_TYPE_SQL);
     db.execSQL(CREATE_INDEX_ON_NUMBER_SQL);
+    createCoalescedGroupTables(db);
     // TODO(zachh): Consider logging impression.
     LogUtil.i(
         "AnnotatedCallLogDatabaseHelper.onCreate",
@@ -124,5 +232,26 @@ class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
   }
 
   @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion < 2) {
+      createCoalescedGroupTables(db);
+      // Have the groups of all existing rows computed by the next coalesced call log query.
+      db.execSQL(
+          "insert into "
+              + CoalescedGroup.DIRTY_TABLE
+              + " select "
+              + AnnotatedCallLog.TIMESTAMP
+              + " from "
+              + AnnotatedCallLog.TABLE
+              + ";");
+    }
+  }
+
+  private static void createCoalescedGroupTables(SQLiteDatabase db) {
+    db.execSQL(CREATE_COALESCED_GROUP_TABLE_SQL);
+    db.execSQL(CREATE_COALESCED_GROUP_DIRTY_TABLE_SQL);
+    db.execSQL(CREATE_COALESCED_GROUP_INSERT_TRIGGER_SQL);
+    db.execSQL(CREATE_COALESCED_GROUP_DELETE_TRIGGER_SQL);
+    db.execSQL(CREATE_COALESCED_GROUP_UPDATE_TRIGGER_SQL);
+  }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.dialer.calllog.database;
+
+import android.content.ContentValues;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.support.annotation.Nullable;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cursor over the {@link CoalescedAnnotatedCallLog} rows built by {@link Coalescer}.
+ *
+ * <p>{@link Coalescer} copies the {@link AnnotatedCallLog} rows into {@link CursorWindow}s and
+ * records where each group starts. The data sources only combine a group once this cursor is moved
+ * near it, {@link #WINDOW_SIZE} groups at a time, the way {@link
+ * android.database.sqlite.SQLiteCursor} fills its window. Both the copied rows and the combined
+ * ones are stored in windows with their type, rather than as boxed values.
+ *
+ * <p>{@link Coalescer} fills the first window on the loader thread. Later windows are filled on the
+ * thread which moves the cursor there.
+ */
+final class CoalescedRowsCursor extends AbstractWindowedCursor {
+
+  /** Number of groups combined at a time. More than fit on the first screen of the call log. */
+  private static final int WINDOW_SIZE = 100;
+
+  private final Coalescer coalescer;
+
+  /** The {@link AnnotatedCallLog} rows, in order. Each window starts where the previous ends. */
+  private final CursorWindow[] rowWindows;
+
+  /** Names of the {@link AnnotatedCallLog} columns, in the order of the row windows' columns. */
+  private final String[] rowColumns;
+
+  /** Position of the first row of each group in the row windows, followed by the row count. */
+  private final int[] groupStarts;
+
+  CoalescedRowsCursor(
+      Coalescer coalescer, CursorWindow[] rowWindows, String[] rowColumns, int[] groupStarts) {
+    this.coalescer = coalescer;
+    this.rowWindows = rowWindows;
+    this.rowColumns = rowColumns;
+    this.groupStarts = groupStarts;
+  }
+
+  @Override
+  public int getCount() {
+    return groupStarts.length - 1;
+  }
+
+  @Override
+  public String[] getColumnNames() {
+    return CoalescedAnnotatedCallLog.ALL_COLUMNS;
+  }
+
+  @Override
+  public boolean onMove(int oldPosition, int newPosition) {
+    if (mWindow == null
+        || newPosition < mWindow.getStartPosition()
+        || newPosition >= mWindow.getStartPosition() + mWindow.getNumRows()) {
+      fillWindow(newPosition);
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    for (CursorWindow rowWindow : rowWindows) {
+      rowWindow.close();
+    }
+  }
+
+  /** Replaces the window with the groups around {@code position}, which must be a valid row. */
+  void fillWindow(int position) {
+    if (mWindow == null) {
+      setWindow(new CursorWindow("CoalescedRowsCursor"));
+    }
+    // Keep some of the groups before the position, for scrolling back.
+    if (!fillWindow(Math.max(0, position - WINDOW_SIZE / 3), position)
+        && !fillWindow(position, position)) {
+      throw new IllegalStateException("coalesced row " + position + " doesn't fit in a window");
+    }
+  }
+
+  /**
+   * Fills the window with groups starting at {@code start}, until it has {@link #WINDOW_SIZE} of
+   * them or is full.
+   *
+   * @return whether the window holds the group at {@code position}
+   */
+  private boolean fillWindow(int start, int position) {
+    String[] columns = CoalescedAnnotatedCallLog.ALL_COLUMNS;
+    mWindow.clear();
+    mWindow.setStartPosition(start);
+    mWindow.setNumColumns(columns.length);
+    int end = Math.min(getCount(), start + WINDOW_SIZE);
+    for (int group = start; group < end; group++) {
+      if (!mWindow.allocRow()) {
+        break;
+      }
+      ContentValues values = coalescer.coalesceGroup(readGroup(group), group);
+      if (!putValues(group, columns, values)) {
+        mWindow.freeLastRow();
+        break;
+      }
+    }
+    return position < start + mWindow.getNumRows();
+  }
+
+  private boolean putValues(int position, String[] columns, ContentValues values) {
+    for (int column = 0; column < columns.length; column++) {
+      if (!putValue(position, column, values.get(columns[column]))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean putValue(int position, int column, @Nullable Object value) {
+    if (value == null) {
+      return mWindow.putNull(position, column);
+    } else if (value instanceof byte[]) {
+      return mWindow.putBlob((byte[]) value, position, column);
+    } else if (value instanceof Float || value instanceof Double) {
+      return mWindow.putDouble(((Number) value).doubleValue(), position, column);
+    } else if (value instanceof Number) {
+      return mWindow.putLong(((Number) value).longValue(), position, column);
+    } else if (value instanceof Boolean) {
+      return mWindow.putLong((Boolean) value ? 1 : 0, position, column);
+    }
+    return mWindow.putString(value.toString(), position, column);
+  }
+
+  /** Returns the {@link AnnotatedCallLog} rows of a group, sorted by timestamp descending. */
+  private List<ContentValues> readGroup(int group) {
+    List<ContentValues> rows = new ArrayList<>(groupStarts[group + 1] - groupStarts[group]);
+    for (int position = groupStarts[group]; position < groupStarts[group + 1]; position++) {
+      rows.add(readRow(position));
+    }
+    return rows;
+  }
+
+  /**
+   * Copies a row with the type each value is stored with, so that integers aren't formatted as
+   * strings only for the data sources to parse them again.
+   */
+  private ContentValues readRow(int position) {
+    CursorWindow rowWindow = findRowWindow(position);
+    ContentValues values = new ContentValues(rowColumns.length);
+    for (int column = 0; column < rowColumns.length; column++) {
+      switch (rowWindow.getType(position, column)) {
+        case Cursor.FIELD_TYPE_NULL:
+          values.putNull(rowColumns[column]);
+          break;
+        case Cursor.FIELD_TYPE_INTEGER:
+          values.put(rowColumns[column], rowWindow.getLong(position, column));
+          break;
+        case Cursor.FIELD_TYPE_FLOAT:
+          values.put(rowColumns[column], rowWindow.getDouble(position, column));
+          break;
+        case Cursor.FIELD_TYPE_BLOB:
+          values.put(rowColumns[column], rowWindow.getBlob(position, column));
+          break;
+        default:
+          values.put(rowColumns[column], rowWindow.getString(position, column));
+          break;
+      }
+    }
+    return values;
+  }
+
+  private CursorWindow findRowWindow(int position) {
+    int low = 0;
+    int high = rowWindows.length - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (rowWindows[middle].getStartPosition() <= position) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return rowWindows[low];
+  }
+}
@@ -15,19 +15,28 @@
  */
 package com.android.dialer.calllog.database;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.MatrixCursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.provider.CallLog.Calls;
+import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 import android.telecom.PhoneAccountHandle;
 import com.android.dialer.CoalescedIds;
 import com.android.dialer.DialerPhoneNumber;
+import com.android.dialer.calllog.database.AnnotatedCallLogDatabaseHelper.CoalescedGroup;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
 import com.android.dialer.calllog.datasources.CallLogDataSource;
 import com.android.dialer.calllog.datasources.DataSources;
 import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
 import com.android.dialer.compat.telephony.TelephonyManagerCompat;
 import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
 import com.android.dialer.telecom.TelecomUtil;
@@ -35,8 +44,8 @@ import com.google.common.base.Preconditions;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import javax.inject.Inject;
 
@@ -47,6 +56,67 @@ import javax.inject.Inject;
  * to each data source to determine how individual columns should be aggregated.
  */
 public class Coalescer {
+
+  private static final String[] NOT_VOICEMAIL_ARGS = {Integer.toString(Calls.VOICEMAIL_TYPE)};
+
+  /**
+   * Every non-voicemail {@link AnnotatedCallLog} row followed by its group ID, in the order of the
+   * coalesced call log. {@link AnnotatedCallLog#_ID} breaks ties so that the groups in {@link
+   * CoalescedGroup} stay contiguous.
+   */
+  private static final String ROWS_QUERY =
+      String.format(
+          "SELECT a.*, g.%1$s FROM %2$s a LEFT JOIN %3$s g ON g.%4$s = a.%5$s"
+              + " WHERE a.%6$s != ? ORDER BY a.%7$s DESC, a.%5$s DESC",
+          CoalescedGroup.GROUP_ID,
+          AnnotatedCallLog.TABLE,
+          CoalescedGroup.TABLE,
+          CoalescedGroup._ID,
+          AnnotatedCallLog._ID,
+          AnnotatedCallLog.CALL_TYPE,
+          AnnotatedCallLog.TIMESTAMP);
+
+  /**
+   * The ID and timestamp of the first row in the group of the row right before a given timestamp,
+   * i.e. the oldest row that is more recent.
+   */
+  private static final String PREVIOUS_GROUP_QUERY =
+      String.format(
+          "SELECT a.%1$s, a.%2$s FROM %3$s a WHERE a.%1$s = (SELECT g.%4$s FROM %5$s g"
+              + " WHERE g.%6$s = (SELECT %1$s FROM %3$s WHERE %7$s != ? AND %2$s > ?"
+              + " ORDER BY %2$s ASC, %1$s ASC LIMIT 1))",
+          AnnotatedCallLog._ID,
+          AnnotatedCallLog.TIMESTAMP,
+          AnnotatedCallLog.TABLE,
+          CoalescedGroup.GROUP_ID,
+          CoalescedGroup.TABLE,
+          CoalescedGroup._ID,
+          AnnotatedCallLog.CALL_TYPE);
+
+  /**
+   * The columns read by {@link GroupingColumns#read(Cursor)} and the current group ID of rows, in
+   * order. Takes an additional condition on the rows as its single format argument.
+   */
+  private static final String GROUPING_COLUMNS_QUERY =
+      String.format(
+          "SELECT a.%1$s, a.%2$s, a.%3$s, a.%4$s, a.%5$s, a.%6$s, a.%7$s, g.%8$s"
+              + " FROM %9$s a LEFT JOIN %10$s g ON g.%11$s = a.%1$s"
+              + " WHERE a.%12$s != ?%%s ORDER BY a.%2$s DESC, a.%1$s DESC",
+          AnnotatedCallLog._ID,
+          AnnotatedCallLog.TIMESTAMP,
+          AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME,
+          AnnotatedCallLog.PHONE_ACCOUNT_ID,
+          AnnotatedCallLog.NUMBER_PRESENTATION,
+          AnnotatedCallLog.FEATURES,
+          AnnotatedCallLog.NUMBER,
+          CoalescedGroup.GROUP_ID,
+          AnnotatedCallLog.TABLE,
+          CoalescedGroup.TABLE,
+          CoalescedGroup._ID,
+          AnnotatedCallLog.CALL_TYPE);
+
+  private static final int GROUPING_COLUMNS_OLD_GROUP_ID = 7;
+
   private final DataSources dataSources;
 
   @Inject
@@ -55,150 +125,329 @@ public class Coalescer {
   }
 
   /**
-   * Reads the entire {@link AnnotatedCallLog} database into memory from the provided {@code
-   * allAnnotatedCallLog} parameter and then builds and returns a new {@link MatrixCursor} which is
-   * the result of combining adjacent rows which should be collapsed for display purposes.
+   * Returns a cursor over the result of combining adjacent non-voicemail {@link AnnotatedCallLog}
+   * rows which should be collapsed for display purposes.
+   *
+   * <p>Which rows are combined is kept in {@link CoalescedGroup}. Only the groups around rows which
+   * changed since the last call are recomputed, so grouping a new call doesn't depend on the length
+   * of the call log. Every call still copies all rows though, within the same transaction so that
+   * the result is a consistent snapshot, which takes time and memory linear in the length of the
+   * call log. The data sources only combine the rows as the returned cursor reaches them, see
+   * {@link CoalescedRowsCursor}; the first ones are combined here.
    *
-   * @param allAnnotatedCallLogRowsSortedByTimestampDesc all {@link AnnotatedCallLog} rows, sorted
-   *     by timestamp descending
-   * @return a new {@link MatrixCursor} containing the {@link CoalescedAnnotatedCallLog} rows to
-   *     display
+   * <p>If the stored groups don't match the rows, they are all recomputed.
+   *
+   * @return a new {@link Cursor} containing the {@link CoalescedAnnotatedCallLog} rows to display
    */
   @WorkerThread
   @NonNull
-  Cursor coalesce(@NonNull Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) {
+  Cursor coalesce(@NonNull SQLiteDatabase database) {
     Assert.isWorkerThread();
 
-    // Note: This method relies on rowsShouldBeCombined to determine which rows should be combined,
-    // but delegates to data sources to actually aggregate column values.
+    // Note: This method determines which rows should be combined, but the data sources aggregate
+    // the column values, in coalesceGroup.
 
-    DialerPhoneNumberUtil dialerPhoneNumberUtil =
-        new DialerPhoneNumberUtil(PhoneNumberUtil.getInstance());
-
-    MatrixCursor allCoalescedRowsMatrixCursor =
-        new MatrixCursor(
-            CoalescedAnnotatedCallLog.ALL_COLUMNS,
-            Assert.isNotNull(allAnnotatedCallLogRowsSortedByTimestampDesc).getCount());
-
-    if (!allAnnotatedCallLogRowsSortedByTimestampDesc.moveToFirst()) {
-      return allCoalescedRowsMatrixCursor;
+    database.beginTransaction();
+    try {
+      updateGroups(database);
+      CoalescedRowsCursor coalescedRows = readRows(database, /* lenient = */ false);
+      if (coalescedRows == null) {
+        LogUtil.w("Coalescer.coalesce", "groups don't match the rows, recomputing all of them");
+        rebuildGroups(database);
+        // The groups were just computed from the same rows, so they match this time.
+        coalescedRows = readRows(database, /* lenient = */ true);
+      }
+      if (coalescedRows.getCount() > 0) {
+        coalescedRows.fillWindow(0);
+      }
+      database.setTransactionSuccessful();
+      return coalescedRows;
+    } finally {
+      database.endTransaction();
     }
+  }
 
-    int coalescedRowId = 0;
-    List<ContentValues> currentRowGroup = new ArrayList<>();
-
-    ContentValues firstRow = cursorRowToContentValues(allAnnotatedCallLogRowsSortedByTimestampDesc);
-    currentRowGroup.add(firstRow);
-
-    while (!currentRowGroup.isEmpty()) {
-      // Group consecutive rows
-      ContentValues firstRowInGroup = currentRowGroup.get(0);
-      ContentValues currentRow = null;
-      while (allAnnotatedCallLogRowsSortedByTimestampDesc.moveToNext()) {
-        currentRow = cursorRowToContentValues(allAnnotatedCallLogRowsSortedByTimestampDesc);
-
-        if (!rowsShouldBeCombined(dialerPhoneNumberUtil, firstRowInGroup, currentRow)) {
-          break;
+  /**
+   * Copies the rows of {@link #ROWS_QUERY} into {@link CursorWindow}s and finds where each group
+   * starts.
+   *
+   * @param lenient if true, a row whose group is neither its own nor the one of the row before it
+   *     starts a group. If false, null is returned for such a row.
+   */
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  @Nullable
+  private CoalescedRowsCursor readRows(SQLiteDatabase database, boolean lenient) {
+    List<CursorWindow> windows = new ArrayList<>();
+    String[] columns;
+    int rowCount;
+    try (Cursor rows = database.rawQuery(ROWS_QUERY, NOT_VOICEMAIL_ARGS)) {
+      rowCount = rows.getCount();
+      // The group ID comes last; the data sources only get the AnnotatedCallLog columns.
+      columns = Arrays.copyOf(rows.getColumnNames(), rows.getColumnCount() - 1);
+      int position = 0;
+      while (position < rowCount) {
+        CursorWindow window = new CursorWindow("Coalescer");
+        windows.add(window);
+        DatabaseUtils.cursorFillWindow(rows, position, window);
+        if (window.getNumRows() == 0) {
+          closeAll(windows);
+          throw new IllegalStateException("row " + position + " doesn't fit in a cursor window");
         }
-
-        currentRowGroup.add(currentRow);
+        position += window.getNumRows();
       }
+    }
 
-      // Coalesce the group into a single row
-      ContentValues coalescedRow = coalesceRowsForAllDataSources(currentRowGroup);
-      coalescedRow.put(
-          CoalescedAnnotatedCallLog.COALESCED_IDS, getCoalescedIds(currentRowGroup).toByteArray());
-      addContentValuesToMatrixCursor(coalescedRow, allCoalescedRowsMatrixCursor, coalescedRowId++);
-
-      // Clear the current group after the rows are coalesced.
-      currentRowGroup.clear();
+    int idColumn = Arrays.asList(columns).indexOf(AnnotatedCallLog._ID);
+    int[] groupStarts = findGroupStarts(windows, rowCount, idColumn, columns.length, lenient);
+    if (groupStarts == null) {
+      closeAll(windows);
+      return null;
+    }
+    return new CoalescedRowsCursor(
+        this, windows.toArray(new CursorWindow[windows.size()]), columns, groupStarts);
+  }
 
-      // Add the first of the remaining rows to the current group.
-      if (!allAnnotatedCallLogRowsSortedByTimestampDesc.isAfterLast()) {
-        currentRowGroup.add(currentRow);
+  /**
+   * Returns the position of the first row of every group, followed by the row count, or null if a
+   * row's group is neither its own nor the one of the row before it and {@code lenient} is false.
+   */
+  @Nullable
+  private static int[] findGroupStarts(
+      List<CursorWindow> windows, int rowCount, int idColumn, int groupIdColumn, boolean lenient) {
+    int[] groupStarts = new int[rowCount + 1];
+    int groupCount = 0;
+    long groupId = -1;
+    int position = 0;
+    for (CursorWindow window : windows) {
+      for (int end = window.getStartPosition() + window.getNumRows(); position < end; position++) {
+        long id = window.getLong(position, idColumn);
+        boolean hasGroup = window.getType(position, groupIdColumn) != Cursor.FIELD_TYPE_NULL;
+        long rowGroupId = window.getLong(position, groupIdColumn);
+        if (groupCount > 0 && hasGroup && rowGroupId == groupId) {
+          continue;
+        }
+        if ((!hasGroup || rowGroupId != id) && !lenient) {
+          LogUtil.w(
+              "Coalescer.findGroupStarts",
+              "row %d has group %s",
+              id,
+              hasGroup ? Long.toString(rowGroupId) : "none");
+          return null;
+        }
+        groupStarts[groupCount++] = position;
+        groupId = id;
       }
     }
+    groupStarts[groupCount] = rowCount;
+    return Arrays.copyOf(groupStarts, groupCount + 1);
+  }
 
-    return allCoalescedRowsMatrixCursor;
+  private static void closeAll(List<CursorWindow> windows) {
+    for (CursorWindow window : windows) {
+      window.close();
+    }
   }
 
-  private static ContentValues cursorRowToContentValues(Cursor cursor) {
-    ContentValues values = new ContentValues();
-    String[] columns = cursor.getColumnNames();
-    int length = columns.length;
-    for (int i = 0; i < length; i++) {
-      if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-        values.put(columns[i], cursor.getBlob(i));
-      } else {
-        values.put(columns[i], cursor.getString(i));
+  /** Recomputes the groups of all rows, as if every row had changed. */
+  private static void rebuildGroups(SQLiteDatabase database) {
+    database.delete(CoalescedGroup.TABLE, null, null);
+    database.delete(CoalescedGroup.DIRTY_TABLE, null, null);
+    // No row is more recent than Long.MAX_VALUE, so this starts at the first row, and without any
+    // old groups to match it doesn't stop before the last one.
+    updateGroupsAround(
+        database,
+        new DialerPhoneNumberUtil(PhoneNumberUtil.getInstance()),
+        new long[] {Long.MAX_VALUE},
+        0);
+  }
+
+  /** Recomputes the groups around every row in {@link CoalescedGroup#DIRTY_TABLE}. */
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  private static void updateGroups(SQLiteDatabase database) {
+    long[] dirtyTimestamps;
+    try (Cursor cursor =
+        database.query(
+            true,
+            CoalescedGroup.DIRTY_TABLE,
+            new String[] {CoalescedGroup.DIRTY_TIMESTAMP},
+            null,
+            null,
+            null,
+            null,
+            CoalescedGroup.DIRTY_TIMESTAMP + " DESC",
+            null)) {
+      dirtyTimestamps = new long[cursor.getCount()];
+      while (cursor.moveToNext()) {
+        dirtyTimestamps[cursor.getPosition()] = cursor.getLong(0);
       }
     }
-    return values;
+    if (dirtyTimestamps.length == 0) {
+      return;
+    }
+
+    LogUtil.i("Coalescer.updateGroups", "%d rows changed", dirtyTimestamps.length);
+    DialerPhoneNumberUtil dialerPhoneNumberUtil =
+        new DialerPhoneNumberUtil(PhoneNumberUtil.getInstance());
+    int next = 0;
+    while (next < dirtyTimestamps.length) {
+      next = updateGroupsAround(database, dialerPhoneNumberUtil, dirtyTimestamps, next);
+    }
+    database.delete(CoalescedGroup.DIRTY_TABLE, null, null);
   }
 
   /**
-   * @param row1 a row from {@link AnnotatedCallLog}
-   * @param row2 a row from {@link AnnotatedCallLog}
+   * Recomputes groups starting from the group right before {@code dirtyTimestamps[next]}, until the
+   * groups are the same as before again.
+   *
+   * @param dirtyTimestamps timestamps of changed rows, distinct and sorted descending
+   * @return index of the first timestamp in {@code dirtyTimestamps} not handled yet
    */
-  private static boolean rowsShouldBeCombined(
-      DialerPhoneNumberUtil dialerPhoneNumberUtil, ContentValues row1, ContentValues row2) {
-    // Don't combine rows which don't use the same phone account.
-    PhoneAccountHandle phoneAccount1 =
-        TelecomUtil.composePhoneAccountHandle(
-            row1.getAsString(AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME),
-            row1.getAsString(AnnotatedCallLog.PHONE_ACCOUNT_ID));
-    PhoneAccountHandle phoneAccount2 =
-        TelecomUtil.composePhoneAccountHandle(
-            row2.getAsString(AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME),
-            row2.getAsString(AnnotatedCallLog.PHONE_ACCOUNT_ID));
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  private static int updateGroupsAround(
+      SQLiteDatabase database,
+      DialerPhoneNumberUtil dialerPhoneNumberUtil,
+      long[] dirtyTimestamps,
+      int next) {
+    long regionTimestamp = dirtyTimestamps[next];
+
+    // The changed rows may join the group of the row right before them, so start over from the
+    // first row of that group. Nothing before it can be affected.
+    String[] args = NOT_VOICEMAIL_ARGS;
+    String bound = "";
+    try (Cursor previousGroup =
+        database.rawQuery(
+            PREVIOUS_GROUP_QUERY,
+            new String[] {NOT_VOICEMAIL_ARGS[0], Long.toString(regionTimestamp)})) {
+      if (previousGroup.moveToFirst()) {
+        String timestamp = Long.toString(previousGroup.getLong(1));
+        args =
+            new String[] {
+              NOT_VOICEMAIL_ARGS[0], timestamp, timestamp, Long.toString(previousGroup.getLong(0))
+            };
+        bound =
+            String.format(
+                " AND (a.%1$s < ? OR (a.%1$s = ? AND a.%2$s <= ?))",
+                AnnotatedCallLog.TIMESTAMP,
+                AnnotatedCallLog._ID);
+      }
+    }
+
+    try (Cursor rows = database.rawQuery(String.format(GROUPING_COLUMNS_QUERY, bound), args)) {
+      GroupingColumns group = null;
+      long groupId = -1;
+      while (rows.moveToNext()) {
+        long id = rows.getLong(0);
+        long timestamp = rows.getLong(1);
+        GroupingColumns row = GroupingColumns.read(rows);
+        boolean hasOldGroup = !rows.isNull(GROUPING_COLUMNS_OLD_GROUP_ID);
+        long oldGroupId = rows.getLong(GROUPING_COLUMNS_OLD_GROUP_ID);
+
+        if (group == null || !group.shouldBeCombinedWith(dialerPhoneNumberUtil, row)) {
+          while (next < dirtyTimestamps.length && dirtyTimestamps[next] > timestamp) {
+            next++;
+          }
+          if (timestamp < regionTimestamp
+              && hasOldGroup
+              && oldGroupId == id
+              && (next == dirtyTimestamps.length || dirtyTimestamps[next] < timestamp)) {
+            // This row started a group before, and neither it nor anything after it changed, so
+            // the groups from here on are still the same.
+            return next;
+          }
+          group = row;
+          groupId = id;
+        }
 
-    if (!Objects.equals(phoneAccount1, phoneAccount2)) {
-      return false;
+        if (!hasOldGroup || oldGroupId != groupId) {
+          ContentValues values = new ContentValues();
+          values.put(CoalescedGroup._ID, id);
+          values.put(CoalescedGroup.GROUP_ID, groupId);
+          database.insertWithOnConflict(
+              CoalescedGroup.TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+      }
     }
+    return dirtyTimestamps.length;
+  }
 
-    if (!row1.getAsInteger(AnnotatedCallLog.NUMBER_PRESENTATION)
-        .equals(row2.getAsInteger(AnnotatedCallLog.NUMBER_PRESENTATION))) {
-      return false;
+  /** The columns of an {@link AnnotatedCallLog} row which decide whether it can be combined. */
+  private static final class GroupingColumns {
+    @Nullable private final PhoneAccountHandle phoneAccount;
+    private final int numberPresentation;
+    private final int assistedDialing;
+    @Nullable private final DialerPhoneNumber number;
+
+    private GroupingColumns(
+        @Nullable PhoneAccountHandle phoneAccount,
+        int numberPresentation,
+        int assistedDialing,
+        @Nullable DialerPhoneNumber number) {
+      this.phoneAccount = phoneAccount;
+      this.numberPresentation = numberPresentation;
+      this.assistedDialing = assistedDialing;
+      this.number = number;
     }
 
-    if (!meetsAssistedDialingCriteria(row1, row2)) {
-      return false;
+    /** Reads the current row of a cursor returned for {@link #GROUPING_COLUMNS_QUERY}. */
+    static GroupingColumns read(Cursor cursor) {
+      return new GroupingColumns(
+          TelecomUtil.composePhoneAccountHandle(cursor.getString(2), cursor.getString(3)),
+          cursor.getInt(4),
+          cursor.getInt(5) & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING,
+          parseNumber(cursor.getBlob(6)));
     }
 
-    DialerPhoneNumber number1;
-    DialerPhoneNumber number2;
-    try {
-      byte[] number1Bytes = row1.getAsByteArray(AnnotatedCallLog.NUMBER);
-      byte[] number2Bytes = row2.getAsByteArray(AnnotatedCallLog.NUMBER);
+    /** Returns true if {@code next}, a later row, belongs in the group started by this row. */
+    boolean shouldBeCombinedWith(
+        DialerPhoneNumberUtil dialerPhoneNumberUtil, GroupingColumns next) {
+      // Don't combine rows which don't use the same phone account.
+      if (!Objects.equals(phoneAccount, next.phoneAccount)) {
+        return false;
+      }
+
+      if (numberPresentation != next.numberPresentation) {
+        return false;
+      }
 
-      if (number1Bytes == null || number2Bytes == null) {
+      // FEATURES_ASSISTED_DIALING should not be combined with calls that are
+      // !FEATURES_ASSISTED_DIALING
+      if (assistedDialing != next.assistedDialing) {
+        return false;
+      }
+
+      if (number == null || next.number == null) {
         // Empty numbers should not be combined.
         return false;
       }
+      return dialerPhoneNumberUtil.isMatch(number, next.number);
+    }
 
-      number1 = DialerPhoneNumber.parseFrom(number1Bytes);
-      number2 = DialerPhoneNumber.parseFrom(number2Bytes);
-    } catch (InvalidProtocolBufferException e) {
-      throw Assert.createAssertionFailException("error parsing DialerPhoneNumber proto", e);
+    @Nullable
+    private static DialerPhoneNumber parseNumber(@Nullable byte[] numberBytes) {
+      if (numberBytes == null) {
+        return null;
+      }
+      try {
+        return DialerPhoneNumber.parseFrom(numberBytes);
+      } catch (InvalidProtocolBufferException e) {
+        throw Assert.createAssertionFailException("error parsing DialerPhoneNumber proto", e);
+      }
     }
-    return dialerPhoneNumberUtil.isMatch(number1, number2);
   }
 
   /**
-   * Returns a boolean indicating whether or not FEATURES_ASSISTED_DIALING is mutually exclusive
-   * between two rows.
+   * Combines a group of {@link AnnotatedCallLog} rows into one {@link CoalescedAnnotatedCallLog}
+   * row.
+   *
+   * @param rowGroup {@link AnnotatedCallLog} rows sorted by timestamp descending
    */
-  private static boolean meetsAssistedDialingCriteria(ContentValues row1, ContentValues row2) {
-    int row1Assisted =
-        row1.getAsInteger(AnnotatedCallLog.FEATURES)
-            & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING;
-    int row2Assisted =
-        row2.getAsInteger(AnnotatedCallLog.FEATURES)
-            & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING;
-
-    // FEATURES_ASSISTED_DIALING should not be combined with calls that are
-    // !FEATURES_ASSISTED_DIALING
-    return row1Assisted == row2Assisted;
+  @AnyThread
+  ContentValues coalesceGroup(List<ContentValues> rowGroup, int coalescedRowId) {
+    ContentValues coalescedRow = coalesceRowsForAllDataSources(rowGroup);
+    coalescedRow.put(CoalescedAnnotatedCallLog._ID, coalescedRowId);
+    coalescedRow.put(
+        CoalescedAnnotatedCallLog.COALESCED_IDS, getCoalescedIds(rowGroup).toByteArray());
+    return coalescedRow;
   }
 
   /**
@@ -231,17 +480,4 @@ public class Coalescer {
 
     return coalescedIds.build();
   }
-
-  /**
-   * @param contentValues a {@link CoalescedAnnotatedCallLog} row
-   * @param matrixCursor represents {@link CoalescedAnnotatedCallLog}
-   */
-  private static void addContentValuesToMatrixCursor(
-      ContentValues contentValues, MatrixCursor matrixCursor, int rowId) {
-    MatrixCursor.RowBuilder rowBuilder = matrixCursor.newRow();
-    rowBuilder.add(CoalescedAnnotatedCallLog._ID, rowId);
-    for (Map.Entry<String, Object> entry : contentValues.valueSet()) {
-      rowBuilder.add(entry.getKey(), entry.getValue());
-    }
-  }
 }
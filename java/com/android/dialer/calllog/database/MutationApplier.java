@@ -15,9 +15,10 @@
  */
 package com.android.dialer.calllog.database;
 
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.os.RemoteException;
@@ -36,7 +37,6 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map.Entry;
 import javax.inject.Inject;
 
 /** Applies {@link CallLogMutations} to the annotated call log. */
@@ -66,32 +66,55 @@ public class MutationApplier {
       throws RemoteException, OperationApplicationException {
     Assert.isWorkerThread();
 
+    ContentProviderClient client =
+        appContext
+            .getContentResolver()
+            .acquireContentProviderClient(AnnotatedCallLogContract.AUTHORITY);
+    if (client != null) {
+      try {
+        ContentProvider provider = client.getLocalContentProvider();
+        if (provider instanceof AnnotatedCallLogContentProvider) {
+          // The provider runs in this process; skip building and dispatching an operation per row.
+          LogUtil.i(
+              "MutationApplier.applyToDatabase",
+              "applying %d inserts, %d updates and %d deletes",
+              mutations.getInsertCount(),
+              mutations.getUpdateCount(),
+              mutations.getDeletes().size());
+          ((AnnotatedCallLogContentProvider) provider).applyMutations(mutations);
+          return;
+        }
+      } finally {
+        client.release();
+      }
+    }
+
     ArrayList<ContentProviderOperation> operations = new ArrayList<>();
 
-    if (!mutations.getInserts().isEmpty()) {
-      LogUtil.i(
-          "MutationApplier.applyToDatabase", "inserting %d rows", mutations.getInserts().size());
-      for (Entry<Long, ContentValues> entry : mutations.getInserts().entrySet()) {
-        long id = entry.getKey();
-        ContentValues contentValues = entry.getValue();
+    if (mutations.getInsertCount() > 0) {
+      LogUtil.i("MutationApplier.applyToDatabase", "inserting %d rows", mutations.getInsertCount());
+      for (int row = 0; row < mutations.getRowCount(); row++) {
+        if (!mutations.isInsert(row)) {
+          continue;
+        }
         operations.add(
             ContentProviderOperation.newInsert(
-                    ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, id))
-                .withValues(contentValues)
+                    ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, mutations.getId(row)))
+                .withValues(mutations.toContentValues(row))
                 .build());
       }
     }
 
-    if (!mutations.getUpdates().isEmpty()) {
-      LogUtil.i(
-          "MutationApplier.applyToDatabase", "updating %d rows", mutations.getUpdates().size());
-      for (Entry<Long, ContentValues> entry : mutations.getUpdates().entrySet()) {
-        long id = entry.getKey();
-        ContentValues contentValues = entry.getValue();
+    if (mutations.getUpdateCount() > 0) {
+      LogUtil.i("MutationApplier.applyToDatabase", "updating %d rows", mutations.getUpdateCount());
+      for (int row = 0; row < mutations.getRowCount(); row++) {
+        if (mutations.isInsert(row)) {
+          continue;
+        }
         operations.add(
             ContentProviderOperation.newUpdate(
-                    ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, id))
-                .withValues(contentValues)
+                    ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, mutations.getId(row)))
+                .withValues(mutations.toContentValues(row))
                 .build());
       }
     }
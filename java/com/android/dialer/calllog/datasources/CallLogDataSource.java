@@ -18,8 +18,8 @@ package com.android.dialer.calllog.datasources;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.support.annotation.AnyThread;
 import android.support.annotation.MainThread;
-import android.support.annotation.WorkerThread;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.List;
@@ -48,7 +48,8 @@ import java.util.List;
  * <p>The same data source objects may be reused across multiple checkDirtyAndRebuild cycles, so
  * implementors should take care to clear any internal state at the start of a new cycle.
  *
- * <p>{@link #coalesce(List)} may be called from any worker thread at any time.
+ * <p>{@link #coalesce(List)} may be called from any thread at any time, including the main thread
+ * while the coalesced call log is scrolled.
  */
 public interface CallLogDataSource {
 
@@ -81,7 +82,9 @@ public interface CallLogDataSource {
   /**
    * Called after database mutations have been applied to all data sources. This is useful for
    * saving state such as the timestamp of the last row processed in an underlying database. Note
-   * that all mutations across all data sources are applied in a single transaction.
+   * that all mutations across all data sources from one fill are applied in a single transaction,
+   * except that when there are many new rows, the newest ones are applied in a transaction of their
+   * own first.
    *
    * @see CallLogDataSource class doc for complete lifecyle information
    */
@@ -90,8 +93,8 @@ public interface CallLogDataSource {
   /**
    * Combines raw annotated call log rows into a single coalesced row.
    *
-   * <p>May be called by any worker thread at any time so implementations should take care to be
-   * threadsafe. (Ideally no state should be required to implement this.)
+   * <p>May be called by any thread at any time so implementations should take care to be threadsafe
+   * and quick. (Ideally no state should be required to implement this.)
    *
    * @param individualRowsSortedByTimestampDesc group of fully populated rows from {@link
    *     AnnotatedCallLogContract.AnnotatedCallLog} which need to be combined for display purposes.
@@ -100,7 +103,7 @@ public interface CallLogDataSource {
    *     only columns which this data source is responsible for, which is the result of aggregating
    *     {@code individualRowsSortedByTimestampDesc}.
    */
-  @WorkerThread
+  @AnyThread
   ContentValues coalesce(List<ContentValues> individualRowsSortedByTimestampDesc);
 
   @MainThread
@@ -17,50 +17,130 @@
 package com.android.dialer.calllog.datasources;
 
 import android.content.ContentValues;
+import android.database.sqlite.SQLiteProgram;
+import android.support.annotation.Nullable;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.common.Assert;
+import java.util.Arrays;
 
-/** A collection of mutations to the annotated call log. */
+/**
+ * A collection of mutations to the annotated call log.
+ *
+ * <p>Inserted and updated rows are stored by column: every {@link AnnotatedCallLog} column has one
+ * primitive {@code long[]} (for integer columns) or {@code Object[]} (for text and blob columns)
+ * indexed by row, and every row has a bit mask of the columns set for it. Rows are addressed by
+ * their index, as returned by {@link #insert(long)}, {@link #update(long)} and {@link
+ * #getRow(long)}.
+ *
+ * <p>Filling mutations for a large call log thus doesn't create a map entry and a {@link
+ * ContentValues} per row, and an instance can be reused for the next refresh after {@link
+ * #clear()}, keeping its arrays.
+ */
 public final class CallLogMutations {
 
-  private final ArrayMap<Long, ContentValues> inserts = new ArrayMap<>();
-  private final ArrayMap<Long, ContentValues> updates = new ArrayMap<>();
+  /** Columns which can be written, in the order of their bits in a row's column mask. */
+  private static final String[] COLUMNS = {
+    AnnotatedCallLog.TIMESTAMP,
+    AnnotatedCallLog.NUMBER,
+    AnnotatedCallLog.FORMATTED_NUMBER,
+    AnnotatedCallLog.NUMBER_PRESENTATION,
+    AnnotatedCallLog.DURATION,
+    AnnotatedCallLog.DATA_USAGE,
+    AnnotatedCallLog.IS_READ,
+    AnnotatedCallLog.NEW,
+    AnnotatedCallLog.GEOCODED_LOCATION,
+    AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME,
+    AnnotatedCallLog.PHONE_ACCOUNT_ID,
+    AnnotatedCallLog.PHONE_ACCOUNT_LABEL,
+    AnnotatedCallLog.PHONE_ACCOUNT_COLOR,
+    AnnotatedCallLog.FEATURES,
+    AnnotatedCallLog.TRANSCRIPTION,
+    AnnotatedCallLog.VOICEMAIL_URI,
+    AnnotatedCallLog.CALL_TYPE,
+    AnnotatedCallLog.NUMBER_ATTRIBUTES,
+    AnnotatedCallLog.TRANSCRIPTION_STATE
+  };
+
+  /** Columns stored as longs. All others hold strings or byte arrays. */
+  private static final long INTEGER_COLUMNS =
+      columnBit(AnnotatedCallLog.TIMESTAMP)
+          | columnBit(AnnotatedCallLog.NUMBER_PRESENTATION)
+          | columnBit(AnnotatedCallLog.DURATION)
+          | columnBit(AnnotatedCallLog.DATA_USAGE)
+          | columnBit(AnnotatedCallLog.IS_READ)
+          | columnBit(AnnotatedCallLog.NEW)
+          | columnBit(AnnotatedCallLog.PHONE_ACCOUNT_COLOR)
+          | columnBit(AnnotatedCallLog.FEATURES)
+          | columnBit(AnnotatedCallLog.CALL_TYPE)
+          | columnBit(AnnotatedCallLog.TRANSCRIPTION_STATE);
+
+  private static final ArrayMap<String, Integer> COLUMN_INDEXES = new ArrayMap<>(COLUMNS.length);
+
+  static {
+    for (int i = 0; i < COLUMNS.length; i++) {
+      COLUMN_INDEXES.put(COLUMNS[i], i);
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private int rowCount;
+  private int insertCount;
+  private long[] ids = new long[INITIAL_CAPACITY];
+  private boolean[] inserts = new boolean[INITIAL_CAPACITY];
+  private long[] columnMasks = new long[INITIAL_CAPACITY];
+
+  /** Values by column, then row. A column's array is only allocated once it is written. */
+  private final long[][] longValues = new long[COLUMNS.length][];
+
+  private final Object[][] objectValues = new Object[COLUMNS.length][];
+
+  /**
+   * Open addressing hash table from ID to row. {@code indexRows} holds row + 1, so that 0 marks an
+   * empty slot.
+   */
+  private long[] indexIds = new long[2 * INITIAL_CAPACITY];
+
+  private int[] indexRows = new int[2 * INITIAL_CAPACITY];
+
   private final ArraySet<Long> deletes = new ArraySet<>();
 
   /**
-   * @param contentValues an entire row not including the ID
+   * Schedules an insert of the row with the provided ID. Its values, not including the ID, are set
+   * with the put methods.
+   *
+   * @return the index of the new row
    * @throws IllegalStateException if this {@link CallLogMutations} already contains an insert,
    *     update, or delete with the provided id
    */
-  public void insert(long id, ContentValues contentValues) {
-    Assert.checkArgument(!inserts.containsKey(id), "Can't insert row already scheduled for insert");
-    Assert.checkArgument(!updates.containsKey(id), "Can't insert row scheduled for update");
+  public int insert(long id) {
+    int row = getRow(id);
+    Assert.checkArgument(
+        row == -1 || !inserts[row], "Can't insert row already scheduled for insert");
+    Assert.checkArgument(row == -1, "Can't insert row scheduled for update");
     Assert.checkArgument(!deletes.contains(id), "Can't insert row scheduled for delete");
 
-    inserts.put(id, contentValues);
+    return addRow(id, true);
   }
 
   /**
-   * Stores a database update using the provided ID and content values. If this {@link
-   * CallLogMutations} object already contains an update with the specified ID, the existing content
-   * values are merged with the provided ones, with the provided ones overwriting the existing ones
-   * for values with the same key.
+   * Schedules an update of the row with the provided ID. If this {@link CallLogMutations} object
+   * already contains an update with the specified ID, returns that row, so that values set with
+   * the put methods are merged into it, the new ones overwriting the existing ones for the same
+   * column.
    *
-   * @param contentValues the specific columns to update, not including the ID.
+   * @return the index of the row to set the updated columns of
    * @throws IllegalStateException if this {@link CallLogMutations} already contains an insert or
    *     delete with the provided id
    */
-  public void update(long id, ContentValues contentValues) {
-    Assert.checkArgument(!inserts.containsKey(id), "Can't update row scheduled for insert");
-    Assert.checkArgument(!deletes.contains(id), "Can't delete row scheduled for delete");
+  public int update(long id) {
+    int row = getRow(id);
+    Assert.checkArgument(row == -1 || !inserts[row], "Can't update row scheduled for insert");
+    Assert.checkArgument(!deletes.contains(id), "Can't update row scheduled for delete");
 
-    ContentValues existingContentValues = updates.get(id);
-    if (existingContentValues != null) {
-      existingContentValues.putAll(contentValues);
-    } else {
-      updates.put(id, contentValues);
-    }
+    return row != -1 ? row : addRow(id, false);
   }
 
   /**
@@ -68,35 +148,130 @@ public final class CallLogMutations {
    *     update, or delete with the provided id
    */
   public void delete(long id) {
-    Assert.checkArgument(!inserts.containsKey(id), "Can't delete row scheduled for insert");
-    Assert.checkArgument(!updates.containsKey(id), "Can't delete row scheduled for update");
+    int row = getRow(id);
+    Assert.checkArgument(row == -1 || !inserts[row], "Can't delete row scheduled for insert");
+    Assert.checkArgument(row == -1, "Can't delete row scheduled for update");
     Assert.checkArgument(!deletes.contains(id), "Can't delete row already scheduled for delete");
 
     deletes.add(id);
   }
 
-  public boolean isEmpty() {
-    return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
-  }
-
   /**
-   * Get the pending inserts.
+   * Moves the first {@code count} inserts of {@code source} to this instance, removing them from
+   * {@code source}.
    *
-   * @return the pending inserts where the key is the annotated call log database ID and the values
-   *     are values to be inserted (not including the ID)
+   * <p>This lets a chunk of filled rows be applied ahead of the others, after which applying {@code
+   * source} writes only the rest.
+   *
+   * @return the number of inserts moved
    */
-  public ArrayMap<Long, ContentValues> getInserts() {
-    return inserts;
+  public int moveInserts(CallLogMutations source, int count) {
+    int moved = 0;
+    int kept = 0;
+    for (int sourceRow = 0; sourceRow < source.rowCount; sourceRow++) {
+      if (moved < count && source.inserts[sourceRow]) {
+        copyValues(insert(source.ids[sourceRow]), source, sourceRow);
+        moved++;
+        continue;
+      }
+      if (kept != sourceRow) {
+        source.ids[kept] = source.ids[sourceRow];
+        source.inserts[kept] = source.inserts[sourceRow];
+        source.copyValues(kept, source, sourceRow);
+      }
+      kept++;
+    }
+
+    // Drop the references held by the rows past the end before shrinking.
+    for (Object[] values : source.objectValues) {
+      if (values != null) {
+        Arrays.fill(values, kept, source.rowCount, null);
+      }
+    }
+    Arrays.fill(source.columnMasks, kept, source.rowCount, 0);
+    source.rowCount = kept;
+    source.insertCount -= moved;
+    source.rebuildIndex();
+    return moved;
   }
 
-  /**
-   * Get the pending updates.
-   *
-   * @return the pending updates where the key is the annotated call log database ID and the values
-   *     are values to be updated (not including the ID)
-   */
-  public ArrayMap<Long, ContentValues> getUpdates() {
-    return updates;
+  public boolean isEmpty() {
+    return rowCount == 0 && deletes.isEmpty();
+  }
+
+  /** Removes all mutations, keeping the allocated arrays for reuse. */
+  public void clear() {
+    for (Object[] values : objectValues) {
+      if (values != null) {
+        Arrays.fill(values, 0, rowCount, null);
+      }
+    }
+    Arrays.fill(columnMasks, 0, rowCount, 0);
+    Arrays.fill(indexRows, 0);
+    rowCount = 0;
+    insertCount = 0;
+    deletes.clear();
+  }
+
+  /** Number of inserted and updated rows. Rows are indexed from 0 to this value, exclusive. */
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public int getInsertCount() {
+    return insertCount;
+  }
+
+  public int getUpdateCount() {
+    return rowCount - insertCount;
+  }
+
+  /** Returns the annotated call log database ID of a row. */
+  public long getId(int row) {
+    return ids[row];
+  }
+
+  /** Returns true if the row is an insert, or false if it is an update. */
+  public boolean isInsert(int row) {
+    return inserts[row];
+  }
+
+  /** Returns the row scheduled for insert or update with the provided ID, or -1. */
+  public int getRow(long id) {
+    int mask = indexIds.length - 1;
+    for (int slot = hash(id) & mask; indexRows[slot] != 0; slot = (slot + 1) & mask) {
+      if (indexIds[slot] == id) {
+        return indexRows[slot] - 1;
+      }
+    }
+    return -1;
+  }
+
+  public void putLong(int row, String column, long value) {
+    int index = columnIndex(column);
+    if ((INTEGER_COLUMNS & (1L << index)) == 0) {
+      throw new IllegalArgumentException("not an integer column: " + column);
+    }
+    if (longValues[index] == null) {
+      longValues[index] = new long[ids.length];
+    }
+    longValues[index][row] = value;
+    columnMasks[row] |= 1L << index;
+  }
+
+  public void putString(int row, String column, @Nullable String value) {
+    putObject(row, column, value);
+  }
+
+  public void putBlob(int row, String column, @Nullable byte[] value) {
+    putObject(row, column, value);
+  }
+
+  /** Returns the value of a blob column of a row, or null if it is null or not set. */
+  @Nullable
+  public byte[] getBlob(int row, String column) {
+    int index = columnIndex(column);
+    return (columnMasks[row] & (1L << index)) != 0 ? (byte[]) objectValues[index][row] : null;
   }
 
   /**
@@ -107,4 +282,175 @@ public final class CallLogMutations {
   public ArraySet<Long> getDeletes() {
     return deletes;
   }
+
+  /** Returns the columns set for a row, as a mask of the bits of {@link #getColumnName(int)}. */
+  public long getColumnMask(int row) {
+    return columnMasks[row];
+  }
+
+  /** Returns the name of the column represented by bit {@code column} of a column mask. */
+  public static String getColumnName(int column) {
+    return COLUMNS[column];
+  }
+
+  /**
+   * Binds the values of all columns set for a row to {@code program}, in column mask order,
+   * starting at {@code index}.
+   *
+   * @return the index after the last bound value
+   */
+  public int bindValues(SQLiteProgram program, int row, int index) {
+    long columnMask = columnMasks[row];
+    for (int column = 0; column < COLUMNS.length; column++) {
+      if ((columnMask & (1L << column)) == 0) {
+        continue;
+      }
+      if ((INTEGER_COLUMNS & (1L << column)) != 0) {
+        program.bindLong(index, longValues[column][row]);
+      } else {
+        Object value = objectValues[column][row];
+        if (value == null) {
+          program.bindNull(index);
+        } else if (value instanceof byte[]) {
+          program.bindBlob(index, (byte[]) value);
+        } else {
+          program.bindString(index, (String) value);
+        }
+      }
+      index++;
+    }
+    return index;
+  }
+
+  /** Returns the values of a row, not including the ID. */
+  public ContentValues toContentValues(int row) {
+    ContentValues contentValues = new ContentValues();
+    long columnMask = columnMasks[row];
+    for (int column = 0; column < COLUMNS.length; column++) {
+      if ((columnMask & (1L << column)) == 0) {
+        continue;
+      }
+      if ((INTEGER_COLUMNS & (1L << column)) != 0) {
+        contentValues.put(COLUMNS[column], longValues[column][row]);
+      } else {
+        Object value = objectValues[column][row];
+        if (value instanceof byte[]) {
+          contentValues.put(COLUMNS[column], (byte[]) value);
+        } else {
+          contentValues.put(COLUMNS[column], (String) value);
+        }
+      }
+    }
+    return contentValues;
+  }
+
+  private void putObject(int row, String column, @Nullable Object value) {
+    int index = columnIndex(column);
+    if ((INTEGER_COLUMNS & (1L << index)) != 0) {
+      throw new IllegalArgumentException("integer column: " + column);
+    }
+    if (objectValues[index] == null) {
+      objectValues[index] = new Object[ids.length];
+    }
+    objectValues[index][row] = value;
+    columnMasks[row] |= 1L << index;
+  }
+
+  private int addRow(long id, boolean insert) {
+    if (rowCount == ids.length) {
+      grow();
+    }
+    int row = rowCount++;
+    ids[row] = id;
+    inserts[row] = insert;
+    if (insert) {
+      insertCount++;
+    }
+
+    int mask = indexIds.length - 1;
+    int slot = hash(id) & mask;
+    while (indexRows[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    indexIds[slot] = id;
+    indexRows[slot] = row + 1;
+    return row;
+  }
+
+  private void grow() {
+    int capacity = 2 * ids.length;
+    ids = Arrays.copyOf(ids, capacity);
+    inserts = Arrays.copyOf(inserts, capacity);
+    columnMasks = Arrays.copyOf(columnMasks, capacity);
+    for (int column = 0; column < COLUMNS.length; column++) {
+      if (longValues[column] != null) {
+        longValues[column] = Arrays.copyOf(longValues[column], capacity);
+      }
+      if (objectValues[column] != null) {
+        objectValues[column] = Arrays.copyOf(objectValues[column], capacity);
+      }
+    }
+
+    // Keep the hash table at most half full.
+    indexIds = new long[2 * capacity];
+    indexRows = new int[2 * capacity];
+    rebuildIndex();
+  }
+
+  private void rebuildIndex() {
+    Arrays.fill(indexRows, 0);
+    int mask = indexIds.length - 1;
+    for (int row = 0; row < rowCount; row++) {
+      int slot = hash(ids[row]) & mask;
+      while (indexRows[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      indexIds[slot] = ids[row];
+      indexRows[slot] = row + 1;
+    }
+  }
+
+  /** Sets the values of {@code row} to those of {@code sourceRow} of {@code source}. */
+  private void copyValues(int row, CallLogMutations source, int sourceRow) {
+    long columnMask = source.columnMasks[sourceRow];
+    for (int column = 0; column < COLUMNS.length; column++) {
+      if ((columnMask & (1L << column)) == 0) {
+        continue;
+      }
+      if ((INTEGER_COLUMNS & (1L << column)) != 0) {
+        if (longValues[column] == null) {
+          longValues[column] = new long[ids.length];
+        }
+        longValues[column][row] = source.longValues[column][sourceRow];
+      } else {
+        if (objectValues[column] == null) {
+          objectValues[column] = new Object[ids.length];
+        }
+        objectValues[column][row] = source.objectValues[column][sourceRow];
+      }
+    }
+    columnMasks[row] = columnMask;
+  }
+
+  private static int hash(long id) {
+    long hash = id * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  private static int columnIndex(String column) {
+    Integer index = COLUMN_INDEXES.get(column);
+    if (index == null) {
+      throw new IllegalArgumentException("unknown column: " + column);
+    }
+    return index;
+  }
+
+  private static long columnBit(String column) {
+    for (int i = 0; i < COLUMNS.length; i++) {
+      if (COLUMNS[i].equals(column)) {
+        return 1L << i;
+      }
+    }
+    throw new IllegalArgumentException("unknown column: " + column);
+  }
 }
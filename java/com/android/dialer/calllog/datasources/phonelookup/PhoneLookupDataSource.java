@@ -17,17 +17,20 @@
 package com.android.dialer.calllog.datasources.phonelookup;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.os.RemoteException;
+import android.support.annotation.AnyThread;
 import android.support.annotation.MainThread;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import com.android.dialer.DialerPhoneNumber;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.calllog.datasources.CallLogDataSource;
 import com.android.dialer.calllog.datasources.CallLogMutations;
@@ -37,17 +40,23 @@ import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.common.concurrent.Annotations.LightweightExecutor;
+import com.android.dialer.common.concurrent.Annotations.NonUiSerial;
 import com.android.dialer.phonelookup.PhoneLookup;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
+import com.android.dialer.phonelookup.PhoneLookupInfoCache;
 import com.android.dialer.phonelookup.composite.CompositePhoneLookup;
+import com.android.dialer.phonelookup.composite.CompositePhoneLookup.MostRecentInfo;
+import com.android.dialer.phonelookup.database.PhoneLookupInfoCodec;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -56,6 +65,9 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.inject.Inject;
 
 /**
@@ -64,9 +76,17 @@ import javax.inject.Inject;
  */
 public final class PhoneLookupDataSource implements CallLogDataSource {
 
+  /**
+   * How long a fill waits for the late results of the previous fill before it goes ahead anyway,
+   * so that a hung phone lookup can't block every later refresh.
+   */
+  private static final long MAX_LATE_INFO_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
   private final CompositePhoneLookup compositePhoneLookup;
+  private final PhoneLookupInfoCache phoneLookupInfoCache;
   private final ListeningExecutorService backgroundExecutorService;
   private final ListeningExecutorService lightweightExecutorService;
+  private final ScheduledExecutorService scheduledExecutorService;
 
   /**
    * Keyed by normalized number (the primary key for PhoneLookupHistory).
@@ -85,14 +105,38 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
    */
   private final Set<String> phoneLookupHistoryRowsToDelete = new ArraySet<>();
 
+  /**
+   * The info computed by the last {@link #fill(Context, CallLogMutations)}, and the annotated call
+   * log IDs (excluding deleted ones) it applies to.
+   *
+   * <p>This is state saved between the {@link #fill(Context, CallLogMutations)} and {@link
+   * #onSuccessfulFill(Context)} operations.
+   */
+  private MostRecentInfo mostRecentInfo;
+
+  private Map<DialerPhoneNumber, Set<Long>> annotatedCallLogIdsByNumber;
+
+  /**
+   * Completes once the results of the phone lookups which missed their deadline in the last fill
+   * have been written, see {@link #applyLateInfo(Context, MostRecentInfo, Map)}.
+   */
+  private ListenableFuture<Void> lateInfoFuture = Futures.immediateFuture(null);
+
+  /** The number of times {@link #fill(Context, CallLogMutations)} was called. */
+  private volatile int fillCount;
+
   @Inject
   PhoneLookupDataSource(
       CompositePhoneLookup compositePhoneLookup,
+      PhoneLookupInfoCache phoneLookupInfoCache,
       @BackgroundExecutor ListeningExecutorService backgroundExecutorService,
-      @LightweightExecutor ListeningExecutorService lightweightExecutorService) {
+      @LightweightExecutor ListeningExecutorService lightweightExecutorService,
+      @NonUiSerial ScheduledExecutorService scheduledExecutorService) {
     this.compositePhoneLookup = compositePhoneLookup;
+    this.phoneLookupInfoCache = phoneLookupInfoCache;
     this.backgroundExecutorService = backgroundExecutorService;
     this.lightweightExecutorService = lightweightExecutorService;
+    this.scheduledExecutorService = scheduledExecutorService;
   }
 
   @Override
@@ -137,19 +181,27 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
     LogUtil.v(
         "PhoneLookupDataSource.fill",
         "processing mutations (inserts: %d, updates: %d, deletes: %d)",
-        mutations.getInserts().size(),
-        mutations.getUpdates().size(),
+        mutations.getInsertCount(),
+        mutations.getUpdateCount(),
         mutations.getDeletes().size());
 
+    fillCount++;
+
     // Clear state saved since the last call to fill. This is necessary in case fill is called but
     // onSuccessfulFill is not called during a previous flow.
     phoneLookupHistoryRowsToUpdate.clear();
     phoneLookupHistoryRowsToDelete.clear();
 
-    // First query information from annotated call log (and include pending inserts).
+    // First query information from annotated call log (and include pending inserts). Late results
+    // of the previous fill are written first, so that the phone lookups are never asked for their
+    // most recent info while still working on the previous request. A lookup which hangs is given
+    // up on after MAX_LATE_INFO_WAIT_MILLIS; its results are then dropped, see applyLateInfo.
     ListenableFuture<Map<DialerPhoneNumber, Set<Long>>> annotatedCallLogIdsByNumberFuture =
-        backgroundExecutorService.submit(
-            () -> collectIdAndNumberFromAnnotatedCallLogAndPendingInserts(appContext, mutations));
+        Futures.whenAllComplete(withMaxWait(lateInfoFuture))
+            .call(
+                () ->
+                    collectIdAndNumberFromAnnotatedCallLogAndPendingInserts(appContext, mutations),
+                backgroundExecutorService);
 
     // Use it to create the original info map.
     ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>> originalInfoMapFuture =
@@ -161,11 +213,14 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
 
     // Use the original info map to generate the updated info map by delegating to
     // compositePhoneLookup.
-    ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>> updatedInfoMapFuture =
+    ListenableFuture<MostRecentInfo> mostRecentInfoFuture =
         Futures.transformAsync(
             originalInfoMapFuture,
             compositePhoneLookup::getMostRecentInfo,
             lightweightExecutorService);
+    ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>> updatedInfoMapFuture =
+        Futures.transform(
+            mostRecentInfoFuture, MostRecentInfo::getInfoMap, MoreExecutors.directExecutor());
 
     // This is the computation that will use the result of all of the above.
     Callable<ImmutableMap<Long, PhoneLookupInfo>> computeRowsToUpdate =
@@ -190,6 +245,11 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
           }
           populateInserts(originalPhoneLookupHistoryDataByAnnotatedCallLogId.build(), mutations);
 
+          // Save what the late results of phone lookups will have to be applied to.
+          mostRecentInfo = mostRecentInfoFuture.get();
+          this.annotatedCallLogIdsByNumber =
+              withoutDeletedIds(annotatedCallLogIdsByNumber, mutations.getDeletes());
+
           // Compute and save the PhoneLookupHistory rows which can be deleted in onSuccessfulFill.
           phoneLookupHistoryRowsToDelete.addAll(
               computePhoneLookupHistoryRowsToDelete(annotatedCallLogIdsByNumber, mutations));
@@ -215,7 +275,10 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
 
     ListenableFuture<ImmutableMap<Long, PhoneLookupInfo>> rowsToUpdateFuture =
         Futures.whenAllSucceed(
-                annotatedCallLogIdsByNumberFuture, updatedInfoMapFuture, originalInfoMapFuture)
+                annotatedCallLogIdsByNumberFuture,
+                mostRecentInfoFuture,
+                updatedInfoMapFuture,
+                originalInfoMapFuture)
             .call(
                 computeRowsToUpdate,
                 backgroundExecutorService /* PhoneNumberUtil may do disk IO */);
@@ -228,8 +291,8 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
           LogUtil.v(
               "PhoneLookupDataSource.fill",
               "updated mutations (inserts: %d, updates: %d, deletes: %d)",
-              mutations.getInserts().size(),
-              mutations.getUpdates().size(),
+              mutations.getInsertCount(),
+              mutations.getUpdateCount(),
               mutations.getDeletes().size());
           return null;
         },
@@ -244,10 +307,202 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
 
     // If that succeeds, delegate to the composite PhoneLookup to notify all PhoneLookups that both
     // the AnnotatedCallLog and PhoneLookupHistory have been successfully updated.
+    MostRecentInfo appliedInfo = mostRecentInfo;
+    ListenableFuture<Void> onSuccessfulBulkUpdate =
+        Futures.transformAsync(
+            writePhoneLookupHistory,
+            unused -> compositePhoneLookup.onSuccessfulBulkUpdate(appliedInfo),
+            lightweightExecutorService);
+
+    // That invalidated the shared cache; fill it again with what was just written. If a lookup
+    // missed its deadline, every number still has that lookup's stale info, so the cache is only
+    // filled once the late info has been applied, see applyLateInfo.
+    if (appliedInfo.getLateInfoMap() == null) {
+      onSuccessfulBulkUpdate =
+          Futures.transform(
+              onSuccessfulBulkUpdate,
+              unused -> {
+                fillPhoneLookupInfoCache(appliedInfo.getInfoMap());
+                return null;
+              },
+              lightweightExecutorService);
+    }
+
+    // Phone lookups which missed their deadline are applied whenever they finish; the refresh
+    // doesn't wait for them.
+    Map<DialerPhoneNumber, Set<Long>> idsByNumber = annotatedCallLogIdsByNumber;
+    int appliedFillCount = fillCount;
+    lateInfoFuture =
+        Futures.transformAsync(
+            onSuccessfulBulkUpdate,
+            unused -> applyLateInfo(appContext, appliedInfo, idsByNumber, appliedFillCount),
+            lightweightExecutorService);
+    Futures.addCallback(
+        lateInfoFuture,
+        new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void unused) {}
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            // The late lookups weren't told about the update, so the next refresh retries them.
+            LogUtil.e(
+                "PhoneLookupDataSource.onSuccessfulFill", "failed to apply late info", throwable);
+          }
+        },
+        MoreExecutors.directExecutor());
+    return onSuccessfulBulkUpdate;
+  }
+
+  /**
+   * Returns a future which completes with {@code lateInfoFuture}, or fails after {@link
+   * #MAX_LATE_INFO_WAIT_MILLIS}. {@code lateInfoFuture} itself keeps running in that case.
+   */
+  private ListenableFuture<Void> withMaxWait(ListenableFuture<Void> lateInfoFuture) {
+    ListenableFuture<Void> timedFuture =
+        Futures.withTimeout(
+            Futures.nonCancellationPropagating(lateInfoFuture),
+            MAX_LATE_INFO_WAIT_MILLIS,
+            TimeUnit.MILLISECONDS,
+            scheduledExecutorService);
+    Futures.addCallback(
+        timedFuture,
+        new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void unused) {}
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            if (throwable instanceof TimeoutException) {
+              LogUtil.w(
+                  "PhoneLookupDataSource.withMaxWait",
+                  "late info not applied after %d ms, not waiting any longer",
+                  MAX_LATE_INFO_WAIT_MILLIS);
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return timedFuture;
+  }
+
+  /**
+   * Writes the info of phone lookups which missed their deadline during {@link #fill(Context,
+   * CallLogMutations)} to the AnnotatedCallLog and PhoneLookupHistory once it arrives, and then
+   * notifies those lookups.
+   *
+   * <p>The AnnotatedCallLog is written first: if writing PhoneLookupHistory fails, the next fill
+   * sees a difference between PhoneLookupHistory and the lookups again and rewrites both.
+   *
+   * <p>Nothing is written if a later fill has already started: its info is at least as recent.
+   */
+  private ListenableFuture<Void> applyLateInfo(
+      Context appContext,
+      MostRecentInfo appliedInfo,
+      Map<DialerPhoneNumber, Set<Long>> idsByNumber,
+      int appliedFillCount) {
+    if (appliedInfo.getLateInfoMap() == null) {
+      return Futures.immediateFuture(null);
+    }
     return Futures.transformAsync(
-        writePhoneLookupHistory,
-        unused -> compositePhoneLookup.onSuccessfulBulkUpdate(),
-        lightweightExecutorService);
+        appliedInfo.getLateInfoMap(),
+        lateInfoMap -> {
+          if (fillCount != appliedFillCount) {
+            // The late lookups aren't told about the update, so the later fill asks them again.
+            LogUtil.i(
+                "PhoneLookupDataSource.applyLateInfo", "superseded by a later fill, dropping");
+            return Futures.immediateFuture(null);
+          }
+          writeLateInfo(appContext, appliedInfo.getInfoMap(), lateInfoMap, idsByNumber);
+
+          // That invalidates the shared cache again; fill it with the now complete info.
+          return Futures.transform(
+              compositePhoneLookup.onSuccessfulLateUpdate(appliedInfo),
+              unused -> {
+                fillPhoneLookupInfoCache(lateInfoMap);
+                return null;
+              },
+              lightweightExecutorService);
+        },
+        backgroundExecutorService);
+  }
+
+  private void fillPhoneLookupInfoCache(ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> infoMap) {
+    long generation = phoneLookupInfoCache.getGeneration();
+    for (Entry<DialerPhoneNumber, PhoneLookupInfo> entry : infoMap.entrySet()) {
+      // Note: This loses country info when number is not valid.
+      phoneLookupInfoCache.put(entry.getKey().getNormalizedNumber(), entry.getValue(), generation);
+    }
+  }
+
+  @WorkerThread
+  private void writeLateInfo(
+      Context appContext,
+      ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> appliedInfoMap,
+      ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> lateInfoMap,
+      Map<DialerPhoneNumber, Set<Long>> idsByNumber) {
+    ArrayList<ContentProviderOperation> annotatedCallLogOperations = new ArrayList<>();
+    Map<String, PhoneLookupInfo> phoneLookupHistoryRows = new ArrayMap<>();
+    for (Entry<DialerPhoneNumber, PhoneLookupInfo> entry : lateInfoMap.entrySet()) {
+      DialerPhoneNumber dialerPhoneNumber = entry.getKey();
+      PhoneLookupInfo lateInfo = entry.getValue();
+      if (lateInfo.equals(appliedInfoMap.get(dialerPhoneNumber))) {
+        continue;
+      }
+      Set<Long> ids = idsByNumber.get(dialerPhoneNumber);
+      if (ids != null) {
+        for (long id : ids) {
+          ContentValues contentValues = new ContentValues();
+          updateContentValues(contentValues, lateInfo);
+          annotatedCallLogOperations.add(
+              ContentProviderOperation.newUpdate(
+                      ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, id))
+                  .withValues(contentValues)
+                  .build());
+        }
+      }
+      // Note: This loses country info when number is not valid.
+      phoneLookupHistoryRows.put(dialerPhoneNumber.getNormalizedNumber(), lateInfo);
+    }
+    LogUtil.i(
+        "PhoneLookupDataSource.writeLateInfo",
+        "updating %d numbers, %d annotated call log rows",
+        phoneLookupHistoryRows.size(),
+        annotatedCallLogOperations.size());
+    if (phoneLookupHistoryRows.isEmpty()) {
+      return;
+    }
+    try {
+      appContext
+          .getContentResolver()
+          .applyBatch(AnnotatedCallLogContract.AUTHORITY, annotatedCallLogOperations);
+      ArrayList<ContentProviderOperation> phoneLookupHistoryOperations = new ArrayList<>();
+      long currentTimestamp = System.currentTimeMillis();
+      for (Entry<String, PhoneLookupInfo> entry : phoneLookupHistoryRows.entrySet()) {
+        phoneLookupHistoryOperations.add(
+            newPhoneLookupHistoryUpdate(entry.getKey(), entry.getValue(), currentTimestamp));
+      }
+      appContext
+          .getContentResolver()
+          .applyBatch(PhoneLookupHistoryContract.AUTHORITY, phoneLookupHistoryOperations);
+    } catch (RemoteException | OperationApplicationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Map<DialerPhoneNumber, Set<Long>> withoutDeletedIds(
+      Map<DialerPhoneNumber, Set<Long>> idsByNumber, Set<Long> deletedIds) {
+    if (deletedIds.isEmpty()) {
+      return idsByNumber;
+    }
+    Map<DialerPhoneNumber, Set<Long>> remainingIdsByNumber = new ArrayMap<>();
+    for (Entry<DialerPhoneNumber, Set<Long>> entry : idsByNumber.entrySet()) {
+      Set<Long> remainingIds = new ArraySet<>(entry.getValue());
+      remainingIds.removeAll(deletedIds);
+      if (!remainingIds.isEmpty()) {
+        remainingIdsByNumber.put(entry.getKey(), remainingIds);
+      }
+    }
+    return remainingIdsByNumber;
   }
 
   @WorkerThread
@@ -256,16 +511,8 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
     ArrayList<ContentProviderOperation> operations = new ArrayList<>();
     long currentTimestamp = System.currentTimeMillis();
     for (Entry<String, PhoneLookupInfo> entry : phoneLookupHistoryRowsToUpdate.entrySet()) {
-      String normalizedNumber = entry.getKey();
-      PhoneLookupInfo phoneLookupInfo = entry.getValue();
-      ContentValues contentValues = new ContentValues();
-      contentValues.put(PhoneLookupHistory.PHONE_LOOKUP_INFO, phoneLookupInfo.toByteArray());
-      contentValues.put(PhoneLookupHistory.LAST_MODIFIED, currentTimestamp);
       operations.add(
-          ContentProviderOperation.newUpdate(
-                  PhoneLookupHistory.contentUriForNumber(normalizedNumber))
-              .withValues(contentValues)
-              .build());
+          newPhoneLookupHistoryUpdate(entry.getKey(), entry.getValue(), currentTimestamp));
     }
     for (String normalizedNumber : phoneLookupHistoryRowsToDelete) {
       operations.add(
@@ -280,7 +527,19 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
     return null;
   }
 
-  @WorkerThread
+  private static ContentProviderOperation newPhoneLookupHistoryUpdate(
+      String normalizedNumber, PhoneLookupInfo phoneLookupInfo, long currentTimestamp) {
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(
+        PhoneLookupHistory.PHONE_LOOKUP_INFO, PhoneLookupInfoCodec.encode(phoneLookupInfo));
+    contentValues.put(PhoneLookupHistory.LAST_MODIFIED, currentTimestamp);
+    return ContentProviderOperation.newUpdate(
+            PhoneLookupHistory.contentUriForNumber(normalizedNumber))
+        .withValues(contentValues)
+        .build();
+  }
+
+  @AnyThread
   @Override
   public ContentValues coalesce(List<ContentValues> individualRowsSortedByTimestampDesc) {
     return new RowCombiner(individualRowsSortedByTimestampDesc)
@@ -338,14 +597,15 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
       Context appContext, CallLogMutations mutations) {
     Map<DialerPhoneNumber, Set<Long>> idsByNumber = new ArrayMap<>();
     // First add any pending inserts to the map.
-    for (Entry<Long, ContentValues> entry : mutations.getInserts().entrySet()) {
-      long id = entry.getKey();
-      ContentValues insertedContentValues = entry.getValue();
+    for (int row = 0; row < mutations.getRowCount(); row++) {
+      if (!mutations.isInsert(row)) {
+        continue;
+      }
+      long id = mutations.getId(row);
       DialerPhoneNumber dialerPhoneNumber;
       try {
         dialerPhoneNumber =
-            DialerPhoneNumber.parseFrom(
-                insertedContentValues.getAsByteArray(AnnotatedCallLog.NUMBER));
+            DialerPhoneNumber.parseFrom(mutations.getBlob(row, AnnotatedCallLog.NUMBER));
       } catch (InvalidProtocolBufferException e) {
         throw new IllegalStateException(e);
       }
@@ -409,16 +669,59 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
     Map<DialerPhoneNumber, String> dialerPhoneNumberToNormalizedNumbers =
         Maps.asMap(uniqueDialerPhoneNumbers, DialerPhoneNumber::getNormalizedNumber);
 
-    // Convert values to a set to remove any duplicates that are the result of two
-    // DialerPhoneNumbers mapping to the same normalized number.
-    String[] normalizedNumbers =
-        dialerPhoneNumberToNormalizedNumbers.values().toArray(new String[] {});
-    String[] questionMarks = new String[normalizedNumbers.length];
+    // Numbers in the shared cache don't need to be queried. Read the generation first so that info
+    // which gets invalidated while the query runs isn't cached.
+    long generation = phoneLookupInfoCache.getGeneration();
+    Map<String, PhoneLookupInfo> normalizedNumberToInfoMap = new ArrayMap<>();
+    Set<String> normalizedNumbersToQuery = new ArraySet<>();
+    for (String normalizedNumber : dialerPhoneNumberToNormalizedNumbers.values()) {
+      PhoneLookupInfo cachedInfo = phoneLookupInfoCache.get(normalizedNumber);
+      if (cachedInfo != null) {
+        normalizedNumberToInfoMap.put(normalizedNumber, cachedInfo);
+      } else {
+        // Using a set removes any duplicates that are the result of two DialerPhoneNumbers mapping
+        // to the same normalized number.
+        normalizedNumbersToQuery.add(normalizedNumber);
+      }
+    }
+    LogUtil.v(
+        "PhoneLookupDataSource.queryPhoneLookupHistoryForNumbers",
+        "%d cached, %d to query",
+        normalizedNumberToInfoMap.size(),
+        normalizedNumbersToQuery.size());
+
+    if (!normalizedNumbersToQuery.isEmpty()) {
+      queryPhoneLookupHistory(
+          appContext, normalizedNumbersToQuery, generation, normalizedNumberToInfoMap);
+    }
+
+    // We have the required information in normalizedNumberToInfoMap but it's keyed by normalized
+    // number instead of DialerPhoneNumber. Build and return a new map keyed by DialerPhoneNumber.
+    return ImmutableMap.copyOf(
+        Maps.asMap(
+            uniqueDialerPhoneNumbers,
+            (dialerPhoneNumber) -> {
+              String normalizedNumber = dialerPhoneNumberToNormalizedNumbers.get(dialerPhoneNumber);
+              PhoneLookupInfo phoneLookupInfo = normalizedNumberToInfoMap.get(normalizedNumber);
+              // If data is cleared or for other reasons, the PhoneLookupHistory may not contain an
+              // entry for a number. Just use an empty value for that case.
+              return phoneLookupInfo == null
+                  ? PhoneLookupInfo.getDefaultInstance()
+                  : phoneLookupInfo;
+            }));
+  }
+
+  /** Adds the PhoneLookupHistory rows of {@code normalizedNumbers} to the map and the cache. */
+  private void queryPhoneLookupHistory(
+      Context appContext,
+      Set<String> normalizedNumbers,
+      long generation,
+      Map<String, PhoneLookupInfo> normalizedNumberToInfoMap) {
+    String[] questionMarks = new String[normalizedNumbers.size()];
     Arrays.fill(questionMarks, "?");
     String selection =
         PhoneLookupHistory.NORMALIZED_NUMBER + " in (" + TextUtils.join(",", questionMarks) + ")";
 
-    Map<String, PhoneLookupInfo> normalizedNumberToInfoMap = new ArrayMap<>();
     try (Cursor cursor =
         appContext
             .getContentResolver()
@@ -428,53 +731,36 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
                   PhoneLookupHistory.NORMALIZED_NUMBER, PhoneLookupHistory.PHONE_LOOKUP_INFO,
                 },
                 selection,
-                normalizedNumbers,
+                normalizedNumbers.toArray(new String[normalizedNumbers.size()]),
                 null)) {
       if (cursor == null) {
-        LogUtil.e("PhoneLookupDataSource.queryPhoneLookupHistoryForNumbers", "null cursor");
+        LogUtil.e("PhoneLookupDataSource.queryPhoneLookupHistory", "null cursor");
       } else if (cursor.moveToFirst()) {
         int normalizedNumberColumn =
             cursor.getColumnIndexOrThrow(PhoneLookupHistory.NORMALIZED_NUMBER);
         int phoneLookupInfoColumn =
             cursor.getColumnIndexOrThrow(PhoneLookupHistory.PHONE_LOOKUP_INFO);
+        PhoneLookupInfoCodec.Decoder decoder = new PhoneLookupInfoCodec.Decoder();
         do {
           String normalizedNumber = cursor.getString(normalizedNumberColumn);
-          PhoneLookupInfo phoneLookupInfo;
-          try {
-            phoneLookupInfo = PhoneLookupInfo.parseFrom(cursor.getBlob(phoneLookupInfoColumn));
-          } catch (InvalidProtocolBufferException e) {
-            throw new IllegalStateException(e);
-          }
+          PhoneLookupInfo phoneLookupInfo = decoder.decode(cursor.getBlob(phoneLookupInfoColumn));
           normalizedNumberToInfoMap.put(normalizedNumber, phoneLookupInfo);
+          phoneLookupInfoCache.put(normalizedNumber, phoneLookupInfo, generation);
         } while (cursor.moveToNext());
       }
     }
-
-    // We have the required information in normalizedNumberToInfoMap but it's keyed by normalized
-    // number instead of DialerPhoneNumber. Build and return a new map keyed by DialerPhoneNumber.
-    return ImmutableMap.copyOf(
-        Maps.asMap(
-            uniqueDialerPhoneNumbers,
-            (dialerPhoneNumber) -> {
-              String normalizedNumber = dialerPhoneNumberToNormalizedNumbers.get(dialerPhoneNumber);
-              PhoneLookupInfo phoneLookupInfo = normalizedNumberToInfoMap.get(normalizedNumber);
-              // If data is cleared or for other reasons, the PhoneLookupHistory may not contain an
-              // entry for a number. Just use an empty value for that case.
-              return phoneLookupInfo == null
-                  ? PhoneLookupInfo.getDefaultInstance()
-                  : phoneLookupInfo;
-            }));
   }
 
   private void populateInserts(
       ImmutableMap<Long, PhoneLookupInfo> existingInfo, CallLogMutations mutations) {
-    for (Entry<Long, ContentValues> entry : mutations.getInserts().entrySet()) {
-      long id = entry.getKey();
-      ContentValues contentValues = entry.getValue();
-      PhoneLookupInfo phoneLookupInfo = existingInfo.get(id);
+    for (int row = 0; row < mutations.getRowCount(); row++) {
+      if (!mutations.isInsert(row)) {
+        continue;
+      }
+      PhoneLookupInfo phoneLookupInfo = existingInfo.get(mutations.getId(row));
       // Existing info might be missing if data was cleared or for other reasons.
       if (phoneLookupInfo != null) {
-        updateContentValues(contentValues, phoneLookupInfo);
+        updateMutation(mutations, row, phoneLookupInfo);
       }
     }
   }
@@ -484,8 +770,8 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
     for (Entry<Long, PhoneLookupInfo> entry : updatesToApply.entrySet()) {
       long id = entry.getKey();
       PhoneLookupInfo phoneLookupInfo = entry.getValue();
-      ContentValues contentValuesToInsert = mutations.getInserts().get(id);
-      if (contentValuesToInsert != null) {
+      int row = mutations.getRow(id);
+      if (row != -1 && mutations.isInsert(row)) {
         /*
          * This is a confusing case. Consider:
          *
@@ -514,18 +800,12 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
          * mutations from PhoneLookupHistory; in this case "John" would be copied during
          * populateInserts() and there wouldn't be further updates needed here.
          */
-        updateContentValues(contentValuesToInsert, phoneLookupInfo);
-        continue;
-      }
-      ContentValues contentValuesToUpdate = mutations.getUpdates().get(id);
-      if (contentValuesToUpdate != null) {
-        updateContentValues(contentValuesToUpdate, phoneLookupInfo);
+        updateMutation(mutations, row, phoneLookupInfo);
         continue;
       }
-      // Else this row is not already scheduled for insert or update and we need to schedule it.
-      ContentValues contentValues = new ContentValues();
-      updateContentValues(contentValues, phoneLookupInfo);
-      mutations.getUpdates().put(id, contentValues);
+      // Else the row is either already scheduled for update, in which case the new value is merged
+      // into it, or it is not and we need to schedule it.
+      updateMutation(mutations, mutations.update(id), phoneLookupInfo);
     }
   }
 
@@ -569,4 +849,12 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
         AnnotatedCallLog.NUMBER_ATTRIBUTES,
         NumberAttributesConverter.fromPhoneLookupInfo(phoneLookupInfo).build().toByteArray());
   }
+
+  private void updateMutation(
+      CallLogMutations mutations, int row, PhoneLookupInfo phoneLookupInfo) {
+    mutations.putBlob(
+        row,
+        AnnotatedCallLog.NUMBER_ATTRIBUTES,
+        NumberAttributesConverter.fromPhoneLookupInfo(phoneLookupInfo).build().toByteArray());
+  }
 }
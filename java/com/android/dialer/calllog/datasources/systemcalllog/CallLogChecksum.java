@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.dialer.calllog.datasources.systemcalllog;
+
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Summary of the system call log by ranges of {@link android.provider.CallLog.Calls#_ID} called
+ * buckets.
+ *
+ * <p>For every non-empty bucket it keeps the number of rows and a hash of their IDs and last
+ * modified timestamps. Comparing two checksums tells which buckets had rows inserted, updated or
+ * deleted in between, without keeping the IDs themselves.
+ */
+final class CallLogChecksum {
+
+  /** Number of consecutive IDs in a bucket. */
+  private static final int BUCKET_SIZE = 256;
+
+  /** Encoded size of a bucket: index, count, hash. */
+  private static final int ENCODED_BUCKET_SIZE = 8 + 4 + 8;
+
+  /** Sorted indexes of the non-empty buckets. */
+  private final long[] buckets;
+
+  private final int[] counts;
+  private final long[] hashes;
+
+  private CallLogChecksum(long[] buckets, int[] counts, long[] hashes) {
+    this.buckets = buckets;
+    this.counts = counts;
+    this.hashes = hashes;
+  }
+
+  /** Computes the checksum of all rows of {@code cursor}, which must be sorted by ID ascending. */
+  static CallLogChecksum fromCursor(Cursor cursor, int idColumn, int lastModifiedColumn) {
+    int capacity = 16;
+    long[] buckets = new long[capacity];
+    int[] counts = new int[capacity];
+    long[] hashes = new long[capacity];
+    int bucketCount = 0;
+
+    cursor.moveToPosition(-1);
+    while (cursor.moveToNext()) {
+      long id = cursor.getLong(idColumn);
+      long bucket = bucketOf(id);
+      if (bucketCount == 0 || buckets[bucketCount - 1] != bucket) {
+        if (bucketCount > 0 && buckets[bucketCount - 1] > bucket) {
+          throw new IllegalArgumentException("cursor is not sorted by ID");
+        }
+        if (bucketCount == capacity) {
+          capacity *= 2;
+          buckets = Arrays.copyOf(buckets, capacity);
+          counts = Arrays.copyOf(counts, capacity);
+          hashes = Arrays.copyOf(hashes, capacity);
+        }
+        buckets[bucketCount++] = bucket;
+      }
+      counts[bucketCount - 1]++;
+      // XOR makes the hash independent of the order of the rows within the bucket.
+      hashes[bucketCount - 1] ^= mix(id * 31 + mix(cursor.getLong(lastModifiedColumn)));
+    }
+
+    return new CallLogChecksum(
+        Arrays.copyOf(buckets, bucketCount),
+        Arrays.copyOf(counts, bucketCount),
+        Arrays.copyOf(hashes, bucketCount));
+  }
+
+  /** Returns the checksum encoded by {@link #encode()}, or null if it can't be decoded. */
+  @Nullable
+  static CallLogChecksum decode(@Nullable String encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(Base64.decode(encoded, Base64.NO_WRAP));
+      if (buffer.remaining() % ENCODED_BUCKET_SIZE != 0) {
+        return null;
+      }
+      int bucketCount = buffer.remaining() / ENCODED_BUCKET_SIZE;
+      long[] buckets = new long[bucketCount];
+      int[] counts = new int[bucketCount];
+      long[] hashes = new long[bucketCount];
+      for (int i = 0; i < bucketCount; i++) {
+        buckets[i] = buffer.getLong();
+        counts[i] = buffer.getInt();
+        hashes[i] = buffer.getLong();
+      }
+      return new CallLogChecksum(buckets, counts, hashes);
+    } catch (IllegalArgumentException | BufferUnderflowException e) {
+      return null;
+    }
+  }
+
+  /** Returns the number of rows the checksum was computed over. */
+  int getRowCount() {
+    int rowCount = 0;
+    for (int count : counts) {
+      rowCount += count;
+    }
+    return rowCount;
+  }
+
+  /** Returns a string to store the checksum in shared preferences. */
+  String encode() {
+    ByteBuffer buffer = ByteBuffer.allocate(buckets.length * ENCODED_BUCKET_SIZE);
+    for (int i = 0; i < buckets.length; i++) {
+      buffer.putLong(buckets[i]).putInt(counts[i]).putLong(hashes[i]);
+    }
+    return Base64.encodeToString(buffer.array(), Base64.NO_WRAP);
+  }
+
+  /**
+   * Returns the ID ranges whose rows differ between this checksum and {@code other}, as pairs of
+   * (first ID, last ID + 1). Adjacent ranges are merged.
+   */
+  long[] getChangedRanges(CallLogChecksum other) {
+    long[] ranges = new long[2 * (buckets.length + other.buckets.length)];
+    int rangeCount = 0;
+    int i = 0;
+    int j = 0;
+    while (i < buckets.length || j < other.buckets.length) {
+      long bucket;
+      boolean changed;
+      if (j == other.buckets.length
+          || (i < buckets.length && buckets[i] < other.buckets[j])) {
+        bucket = buckets[i++];
+        changed = true;
+      } else if (i == buckets.length || other.buckets[j] < buckets[i]) {
+        bucket = other.buckets[j++];
+        changed = true;
+      } else {
+        bucket = buckets[i];
+        changed = counts[i] != other.counts[j] || hashes[i] != other.hashes[j];
+        i++;
+        j++;
+      }
+      if (!changed) {
+        continue;
+      }
+      long start = bucket * BUCKET_SIZE;
+      if (rangeCount > 0 && ranges[2 * rangeCount - 1] == start) {
+        ranges[2 * rangeCount - 1] = start + BUCKET_SIZE;
+      } else {
+        ranges[2 * rangeCount] = start;
+        ranges[2 * rangeCount + 1] = start + BUCKET_SIZE;
+        rangeCount++;
+      }
+    }
+    return Arrays.copyOf(ranges, 2 * rangeCount);
+  }
+
+  private static long bucketOf(long id) {
+    // Call log IDs are never negative.
+    return id / BUCKET_SIZE;
+  }
+
+  /** Finalizer of SplitMix64, so that similar IDs and timestamps produce unrelated hashes. */
+  private static long mix(long value) {
+    value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+    value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+    return value ^ (value >>> 31);
+  }
+}
@@ -20,6 +20,7 @@ import android.Manifest.permission;
 import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.os.Build;
 import android.os.Build.VERSION;
@@ -38,12 +39,12 @@ import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
-import android.util.ArraySet;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.calllog.datasources.CallLogDataSource;
 import com.android.dialer.calllog.datasources.CallLogMutations;
 import com.android.dialer.calllog.datasources.util.RowCombiner;
+import com.android.dialer.calllog.datasources.util.SortedIdSet;
 import com.android.dialer.calllog.observer.MarkDirtyObserver;
 import com.android.dialer.calllogutils.PhoneAccountUtils;
 import com.android.dialer.common.Assert;
@@ -55,14 +56,12 @@ import com.android.dialer.storage.StorageComponent;
 import com.android.dialer.telecom.TelecomUtil;
 import com.android.dialer.theme.R;
 import com.android.dialer.util.PermissionsUtil;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 import javax.inject.Inject;
 
 /**
@@ -75,10 +74,25 @@ public class SystemCallLogDataSource implements CallLogDataSource {
   @VisibleForTesting
   static final String PREF_LAST_TIMESTAMP_PROCESSED = "systemCallLogLastTimestampProcessed";
 
+  /** {@link CallLogChecksum} of the system call log as of the last successful fill. */
+  private static final String PREF_CHECKSUM = "systemCallLogChecksum";
+
+  /** Maximum number of inserted or updated system call log rows handled by one fill. */
+  private static final int MAX_ROWS_PER_FILL = 1000;
+
+  /**
+   * Maximum number of changed ID ranges looked up separately when handling deletes. If more ranges
+   * changed, the whole system call log is scanned once instead.
+   */
+  private static final int MAX_CHANGED_RANGES = 16;
+
+  private static final long[] ALL_IDS = {0, Long.MAX_VALUE};
+
   private final ListeningExecutorService backgroundExecutorService;
   private final MarkDirtyObserver markDirtyObserver;
 
   @Nullable private Long lastTimestampProcessed;
+  @Nullable private CallLogChecksum checksum;
 
   @Inject
   SystemCallLogDataSource(
@@ -102,9 +116,8 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     // TODO(zachh): Need to somehow register observers if user enables permission after launch?
 
     // The system call log has a last updated timestamp, but deletes are physical (the "deleted"
-    // column is unused). This means that we can't detect deletes without scanning the entire table,
-    // which would be too slow. So, we just rely on content observers to trigger rebuilds when any
-    // change is made to the system call log.
+    // column is unused). isDirty detects them by counting rows, but content observers make sure
+    // that rebuilds are triggered as soon as any change is made to the system call log.
     appContext
         .getContentResolver()
         .registerContentObserver(CallLog.Calls.CONTENT_URI_WITH_VOICEMAIL, true, markDirtyObserver);
@@ -138,17 +151,29 @@ public class SystemCallLogDataSource implements CallLogDataSource {
   private boolean isDirtyInternal(Context appContext) {
     Assert.isWorkerThread();
 
+    SharedPreferences sharedPreferences = StorageComponent.get(appContext).unencryptedSharedPrefs();
+    if (!sharedPreferences.contains(PREF_LAST_TIMESTAMP_PROCESSED)) {
+      // The table has never been written to.
+      return true;
+    }
+    if (!PermissionsUtil.hasPermission(appContext, permission.READ_CALL_LOG)) {
+      return false;
+    }
+
     /*
      * The system call log has a last updated timestamp, but deletes are physical (the "deleted"
-     * column is unused). This means that we can't detect deletes without scanning the entire table,
-     * which would be too slow. So, we just rely on content observers to trigger rebuilds when any
-     * change is made to the system call log.
-     *
-     * Just return false unless the table has never been written to.
+     * column is unused). Inserts and updates raise the last modified timestamp past the last one
+     * processed, and deletes change the number of rows, so both are found without reading the
+     * rows themselves. The checksum is only computed by fill.
      */
-    return !StorageComponent.get(appContext)
-        .unencryptedSharedPrefs()
-        .contains(PREF_LAST_TIMESTAMP_PROCESSED);
+    CallLogChecksum previousChecksum =
+        CallLogChecksum.decode(sharedPreferences.getString(PREF_CHECKSUM, null));
+    if (previousChecksum == null) {
+      return true;
+    }
+    return hasRowsModifiedAfter(
+            appContext, sharedPreferences.getLong(PREF_LAST_TIMESTAMP_PROCESSED, 0L))
+        || queryRowCount(appContext) != previousChecksum.getRowCount();
   }
 
   @WorkerThread
@@ -156,6 +181,7 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     Assert.isWorkerThread();
 
     lastTimestampProcessed = null;
+    checksum = null;
 
     if (!PermissionsUtil.hasPermission(appContext, permission.READ_CALL_LOG)) {
       LogUtil.i("SystemCallLogDataSource.fill", "no call log permissions");
@@ -165,28 +191,42 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     // This data source should always run first so the mutations should always be empty.
     Assert.checkArgument(mutations.isEmpty());
 
-    Set<Long> annotatedCallLogIds = getAnnotatedCallLogIds(appContext);
+    SortedIdSet annotatedCallLogIds = getAnnotatedCallLogIds(appContext);
 
     LogUtil.i(
         "SystemCallLogDataSource.fill",
         "found %d existing annotated call log ids",
         annotatedCallLogIds.size());
 
+    CallLogChecksum previousChecksum =
+        CallLogChecksum.decode(
+            StorageComponent.get(appContext)
+                .unencryptedSharedPrefs()
+                .getString(PREF_CHECKSUM, null));
+    // Computed before reading the changes, so that anything that changes while filling shows up as
+    // a difference next time.
+    checksum = queryChecksum(appContext);
+
     handleInsertsAndUpdates(appContext, mutations, annotatedCallLogIds);
-    handleDeletes(appContext, annotatedCallLogIds, mutations);
+    handleDeletes(appContext, annotatedCallLogIds, previousChecksum, checksum, mutations);
     return null;
   }
 
   @WorkerThread
   private Void onSuccessfulFillInternal(Context appContext) {
+    SharedPreferences.Editor editor =
+        StorageComponent.get(appContext).unencryptedSharedPrefs().edit();
     // If a fill operation was a no-op, lastTimestampProcessed could still be null.
     if (lastTimestampProcessed != null) {
-      StorageComponent.get(appContext)
-          .unencryptedSharedPrefs()
-          .edit()
-          .putLong(PREF_LAST_TIMESTAMP_PROCESSED, lastTimestampProcessed)
-          .apply();
+      editor.putLong(PREF_LAST_TIMESTAMP_PROCESSED, lastTimestampProcessed);
     }
+    // Without a checksum, the next dirty check forces a fill which scans for deletes everywhere.
+    if (checksum != null) {
+      editor.putString(PREF_CHECKSUM, checksum.encode());
+    } else {
+      editor.remove(PREF_CHECKSUM);
+    }
+    editor.apply();
     return null;
   }
 
@@ -226,7 +266,7 @@ public class SystemCallLogDataSource implements CallLogDataSource {
 
   @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
   private void handleInsertsAndUpdates(
-      Context appContext, CallLogMutations mutations, Set<Long> existingAnnotatedCallLogIds) {
+      Context appContext, CallLogMutations mutations, SortedIdSet existingAnnotatedCallLogIds) {
     long previousTimestampProcessed =
         StorageComponent.get(appContext)
             .unencryptedSharedPrefs()
@@ -245,10 +285,12 @@ public class SystemCallLogDataSource implements CallLogDataSource {
                 // TODO(a bug): LAST_MODIFIED not available on M
                 Calls.LAST_MODIFIED + " > ? AND " + Voicemails.DELETED + " = 0",
                 new String[] {String.valueOf(previousTimestampProcessed)},
-                Calls.LAST_MODIFIED + " DESC LIMIT 1000")) {
+                Calls.LAST_MODIFIED + " DESC LIMIT " + MAX_ROWS_PER_FILL)) {
 
       if (cursor == null) {
         LogUtil.e("SystemCallLogDataSource.handleInsertsAndUpdates", "null cursor");
+        // The changes weren't read, so the checksum must not be saved as if they had been.
+        checksum = null;
         return;
       }
 
@@ -257,6 +299,12 @@ public class SystemCallLogDataSource implements CallLogDataSource {
           "found %d entries to insert/update",
           cursor.getCount());
 
+      if (cursor.getCount() == MAX_ROWS_PER_FILL) {
+        // There may be more changes than this fill handles, so the checksum is ahead of the
+        // annotated call log.
+        checksum = null;
+      }
+
       if (cursor.moveToFirst()) {
         int idColumn = cursor.getColumnIndexOrThrow(Calls._ID);
         int dateColumn = cursor.getColumnIndexOrThrow(Calls.DATE);
@@ -310,8 +358,11 @@ public class SystemCallLogDataSource implements CallLogDataSource {
           int features = cursor.getInt(featuresColumn);
           String postDialDigits = cursor.getString(postDialDigitsColumn);
 
-          ContentValues contentValues = new ContentValues();
-          contentValues.put(AnnotatedCallLog.TIMESTAMP, date);
+          int row =
+              existingAnnotatedCallLogIds.contains(id)
+                  ? mutations.update(id)
+                  : mutations.insert(id);
+          mutations.putLong(row, AnnotatedCallLog.TIMESTAMP, date);
 
           if (!TextUtils.isEmpty(numberAsStr)) {
             String numberWithPostDialDigits =
@@ -319,50 +370,44 @@ public class SystemCallLogDataSource implements CallLogDataSource {
             DialerPhoneNumber dialerPhoneNumber =
                 dialerPhoneNumberUtil.parse(numberWithPostDialDigits, countryIso);
 
-            contentValues.put(AnnotatedCallLog.NUMBER, dialerPhoneNumber.toByteArray());
+            mutations.putBlob(row, AnnotatedCallLog.NUMBER, dialerPhoneNumber.toByteArray());
             String formattedNumber =
                 PhoneNumberUtils.formatNumber(numberWithPostDialDigits, countryIso);
             if (formattedNumber == null) {
               formattedNumber = numberWithPostDialDigits;
             }
-            contentValues.put(AnnotatedCallLog.FORMATTED_NUMBER, formattedNumber);
+            mutations.putString(row, AnnotatedCallLog.FORMATTED_NUMBER, formattedNumber);
           } else {
-            contentValues.put(
-                AnnotatedCallLog.NUMBER, DialerPhoneNumber.getDefaultInstance().toByteArray());
+            mutations.putBlob(
+                row, AnnotatedCallLog.NUMBER, DialerPhoneNumber.getDefaultInstance().toByteArray());
           }
-          contentValues.put(AnnotatedCallLog.NUMBER_PRESENTATION, presentation);
-          contentValues.put(AnnotatedCallLog.CALL_TYPE, type);
-          contentValues.put(AnnotatedCallLog.IS_READ, isRead);
-          contentValues.put(AnnotatedCallLog.NEW, isNew);
-          contentValues.put(AnnotatedCallLog.GEOCODED_LOCATION, geocodedLocation);
-          contentValues.put(
-              AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME, phoneAccountComponentName);
-          contentValues.put(AnnotatedCallLog.PHONE_ACCOUNT_ID, phoneAccountId);
+          mutations.putLong(row, AnnotatedCallLog.NUMBER_PRESENTATION, presentation);
+          mutations.putLong(row, AnnotatedCallLog.CALL_TYPE, type);
+          mutations.putLong(row, AnnotatedCallLog.IS_READ, isRead);
+          mutations.putLong(row, AnnotatedCallLog.NEW, isNew);
+          mutations.putString(row, AnnotatedCallLog.GEOCODED_LOCATION, geocodedLocation);
+          mutations.putString(
+              row, AnnotatedCallLog.PHONE_ACCOUNT_COMPONENT_NAME, phoneAccountComponentName);
+          mutations.putString(row, AnnotatedCallLog.PHONE_ACCOUNT_ID, phoneAccountId);
           populatePhoneAccountLabelAndColor(
-              appContext, contentValues, phoneAccountComponentName, phoneAccountId);
-          contentValues.put(AnnotatedCallLog.FEATURES, features);
-          contentValues.put(AnnotatedCallLog.DURATION, duration);
-          contentValues.put(AnnotatedCallLog.DATA_USAGE, dataUsage);
-          contentValues.put(AnnotatedCallLog.TRANSCRIPTION, transcription);
-          contentValues.put(AnnotatedCallLog.VOICEMAIL_URI, voicemailUri);
-          setTranscriptionState(cursor, contentValues);
-
-          if (existingAnnotatedCallLogIds.contains(id)) {
-            mutations.update(id, contentValues);
-          } else {
-            mutations.insert(id, contentValues);
-          }
+              appContext, mutations, row, phoneAccountComponentName, phoneAccountId);
+          mutations.putLong(row, AnnotatedCallLog.FEATURES, features);
+          mutations.putLong(row, AnnotatedCallLog.DURATION, duration);
+          mutations.putLong(row, AnnotatedCallLog.DATA_USAGE, dataUsage);
+          mutations.putString(row, AnnotatedCallLog.TRANSCRIPTION, transcription);
+          mutations.putString(row, AnnotatedCallLog.VOICEMAIL_URI, voicemailUri);
+          setTranscriptionState(cursor, mutations, row);
         } while (cursor.moveToNext());
       } // else no new results, do nothing.
     }
   }
 
-  private void setTranscriptionState(Cursor cursor, ContentValues contentValues) {
+  private void setTranscriptionState(Cursor cursor, CallLogMutations mutations, int row) {
     if (VERSION.SDK_INT >= VERSION_CODES.O) {
       int transcriptionStateColumn =
           cursor.getColumnIndexOrThrow(VoicemailCompat.TRANSCRIPTION_STATE);
       int transcriptionState = cursor.getInt(transcriptionStateColumn);
-      contentValues.put(VoicemailCompat.TRANSCRIPTION_STATE, transcriptionState);
+      mutations.putLong(row, VoicemailCompat.TRANSCRIPTION_STATE, transcriptionState);
     }
   }
 
@@ -406,7 +451,8 @@ public class SystemCallLogDataSource implements CallLogDataSource {
 
   private void populatePhoneAccountLabelAndColor(
       Context appContext,
-      ContentValues contentValues,
+      CallLogMutations mutations,
+      int row,
       String phoneAccountComponentName,
       String phoneAccountId) {
     PhoneAccountHandle phoneAccountHandle =
@@ -418,7 +464,7 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     if (TextUtils.isEmpty(label)) {
       return;
     }
-    contentValues.put(AnnotatedCallLog.PHONE_ACCOUNT_LABEL, label);
+    mutations.putString(row, AnnotatedCallLog.PHONE_ACCOUNT_LABEL, label);
 
     @ColorInt int color = PhoneAccountUtils.getAccountColor(appContext, phoneAccountHandle);
     if (color == PhoneAccount.NO_HIGHLIGHT_COLOR) {
@@ -427,101 +473,157 @@ public class SystemCallLogDataSource implements CallLogDataSource {
               .getResources()
               .getColor(R.color.dialer_secondary_text_color, appContext.getTheme());
     }
-    contentValues.put(AnnotatedCallLog.PHONE_ACCOUNT_COLOR, color);
+    mutations.putLong(row, AnnotatedCallLog.PHONE_ACCOUNT_COLOR, color);
   }
 
+  /**
+   * Deletes the annotated call log rows which are no longer in the system call log.
+   *
+   * <p>Only looks at the ID ranges where {@code currentChecksum} differs from {@code
+   * previousChecksum}; rows anywhere else were present at the last successful fill and still are.
+   */
   private static void handleDeletes(
-      Context appContext, Set<Long> existingAnnotatedCallLogIds, CallLogMutations mutations) {
-    Set<Long> systemCallLogIds =
-        getIdsFromSystemCallLogThatMatch(appContext, existingAnnotatedCallLogIds);
-    LogUtil.i(
-        "SystemCallLogDataSource.handleDeletes",
-        "found %d matching entries in system call log",
-        systemCallLogIds.size());
-    Set<Long> idsInAnnotatedCallLogNoLongerInSystemCallLog = new ArraySet<>();
-    idsInAnnotatedCallLogNoLongerInSystemCallLog.addAll(existingAnnotatedCallLogIds);
-    idsInAnnotatedCallLogNoLongerInSystemCallLog.removeAll(systemCallLogIds);
+      Context appContext,
+      SortedIdSet existingAnnotatedCallLogIds,
+      @Nullable CallLogChecksum previousChecksum,
+      @Nullable CallLogChecksum currentChecksum,
+      CallLogMutations mutations) {
+    long[] ranges = ALL_IDS;
+    if (previousChecksum != null && currentChecksum != null) {
+      ranges = currentChecksum.getChangedRanges(previousChecksum);
+      if (ranges.length / 2 > MAX_CHANGED_RANGES) {
+        ranges = ALL_IDS;
+      }
+    }
+    LogUtil.i("SystemCallLogDataSource.handleDeletes", "checking %d id ranges", ranges.length / 2);
+
+    int deletes = 0;
+    for (int i = 0; i < ranges.length; i += 2) {
+      SortedIdSet existingIdsInRange = existingAnnotatedCallLogIds.range(ranges[i], ranges[i + 1]);
+      if (existingIdsInRange.isEmpty()) {
+        continue;
+      }
+      SortedIdSet idsNoLongerInSystemCallLog =
+          getIdsNotInSystemCallLog(appContext, existingIdsInRange, ranges[i], ranges[i + 1]);
+      for (int j = 0; j < idsNoLongerInSystemCallLog.size(); j++) {
+        mutations.delete(idsNoLongerInSystemCallLog.get(j));
+      }
+      deletes += idsNoLongerInSystemCallLog.size();
+    }
 
     LogUtil.i(
-        "SystemCallLogDataSource.handleDeletes",
-        "found %d call log entries to remove",
-        idsInAnnotatedCallLogNoLongerInSystemCallLog.size());
+        "SystemCallLogDataSource.handleDeletes", "found %d call log entries to remove", deletes);
+  }
+
+  /**
+   * Returns the IDs in {@code ids}, all of which are in [{@code fromId}, {@code toId}), that are
+   * missing from the system call log.
+   */
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  private static SortedIdSet getIdsNotInSystemCallLog(
+      Context appContext, SortedIdSet ids, long fromId, long toId) {
+    // A single scan over the IDs of the system call log in the range, merged with the sorted
+    // annotated call log IDs, finds the rows which are gone.
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                Calls.CONTENT_URI_WITH_VOICEMAIL,
+                new String[] {Calls._ID},
+                Calls._ID + " >= ? AND " + Calls._ID + " < ?",
+                new String[] {Long.toString(fromId), Long.toString(toId)},
+                Calls._ID + " ASC")) {
 
-    for (long id : idsInAnnotatedCallLogNoLongerInSystemCallLog) {
-      mutations.delete(id);
+      if (cursor == null) {
+        LogUtil.e("SystemCallLogDataSource.getIdsNotInSystemCallLog", "null cursor");
+        return SortedIdSet.empty();
+      }
+      return ids.minus(cursor, cursor.getColumnIndexOrThrow(Calls._ID));
     }
   }
 
+  /** Returns the checksum of the whole system call log, or null if it can't be read. */
   @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
-  private static Set<Long> getAnnotatedCallLogIds(Context appContext) {
-    ArraySet<Long> ids = new ArraySet<>();
-
+  @Nullable
+  private static CallLogChecksum queryChecksum(Context appContext) {
     try (Cursor cursor =
         appContext
             .getContentResolver()
             .query(
-                AnnotatedCallLog.CONTENT_URI,
-                new String[] {AnnotatedCallLog._ID},
+                Calls.CONTENT_URI_WITH_VOICEMAIL,
+                // TODO(a bug): LAST_MODIFIED not available on M
+                new String[] {Calls._ID, Calls.LAST_MODIFIED},
                 null,
                 null,
-                null)) {
+                Calls._ID + " ASC")) {
 
       if (cursor == null) {
-        LogUtil.e("SystemCallLogDataSource.getAnnotatedCallLogIds", "null cursor");
-        return ids;
+        LogUtil.e("SystemCallLogDataSource.queryChecksum", "null cursor");
+        return null;
       }
+      return CallLogChecksum.fromCursor(
+          cursor,
+          cursor.getColumnIndexOrThrow(Calls._ID),
+          cursor.getColumnIndexOrThrow(Calls.LAST_MODIFIED));
+    }
+  }
 
-      if (cursor.moveToFirst()) {
-        int idColumn = cursor.getColumnIndexOrThrow(AnnotatedCallLog._ID);
-        do {
-          ids.add(cursor.getLong(idColumn));
-        } while (cursor.moveToNext());
+  /** Returns true if any row was modified after {@code timestamp}, or if that can't be read. */
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  private static boolean hasRowsModifiedAfter(Context appContext, long timestamp) {
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                Calls.CONTENT_URI_WITH_VOICEMAIL,
+                new String[] {Calls._ID},
+                // TODO(a bug): LAST_MODIFIED not available on M
+                Calls.LAST_MODIFIED + " > ?",
+                new String[] {String.valueOf(timestamp)},
+                Calls.LAST_MODIFIED + " DESC LIMIT 1")) {
+
+      if (cursor == null) {
+        LogUtil.e("SystemCallLogDataSource.hasRowsModifiedAfter", "null cursor");
+        return true;
       }
+      return cursor.getCount() > 0;
     }
-    return ids;
   }
 
+  /** Returns the number of rows in the system call log, or -1 if it can't be read. */
   @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
-  private static Set<Long> getIdsFromSystemCallLogThatMatch(
-      Context appContext, Set<Long> matchingIds) {
-    ArraySet<Long> ids = new ArraySet<>();
-
-    // Batch the select statements into chunks of 999, the maximum size for SQLite selection args.
-    Iterable<List<Long>> batches = Iterables.partition(matchingIds, 999);
-    for (List<Long> idsInBatch : batches) {
-      String[] questionMarks = new String[idsInBatch.size()];
-      Arrays.fill(questionMarks, "?");
-
-      String whereClause = (Calls._ID + " in (") + TextUtils.join(",", questionMarks) + ")";
-      String[] whereArgs = new String[idsInBatch.size()];
-      int i = 0;
-      for (long id : idsInBatch) {
-        whereArgs[i++] = String.valueOf(id);
+  private static int queryRowCount(Context appContext) {
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(Calls.CONTENT_URI_WITH_VOICEMAIL, new String[] {Calls._ID}, null, null, null)) {
+
+      if (cursor == null) {
+        LogUtil.e("SystemCallLogDataSource.queryRowCount", "null cursor");
+        return -1;
       }
+      return cursor.getCount();
+    }
+  }
 
-      try (Cursor cursor =
-          appContext
-              .getContentResolver()
-              .query(
-                  Calls.CONTENT_URI_WITH_VOICEMAIL,
-                  new String[] {Calls._ID},
-                  whereClause,
-                  whereArgs,
-                  null)) {
-
-        if (cursor == null) {
-          LogUtil.e("SystemCallLogDataSource.getIdsFromSystemCallLog", "null cursor");
-          return ids;
-        }
-
-        if (cursor.moveToFirst()) {
-          int idColumn = cursor.getColumnIndexOrThrow(Calls._ID);
-          do {
-            ids.add(cursor.getLong(idColumn));
-          } while (cursor.moveToNext());
-        }
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  private static SortedIdSet getAnnotatedCallLogIds(Context appContext) {
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                AnnotatedCallLog.CONTENT_URI,
+                new String[] {AnnotatedCallLog._ID},
+                null,
+                null,
+                AnnotatedCallLog._ID + " ASC")) {
+
+      if (cursor == null) {
+        LogUtil.e("SystemCallLogDataSource.getAnnotatedCallLogIds", "null cursor");
+        return SortedIdSet.empty();
       }
+
+      return SortedIdSet.fromCursor(cursor, cursor.getColumnIndexOrThrow(AnnotatedCallLog._ID));
     }
-    return ids;
   }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.dialer.calllog.datasources.util;
+
+import android.database.Cursor;
+import com.android.dialer.common.Assert;
+import java.util.Arrays;
+
+/**
+ * Immutable set of row IDs, stored as a sorted {@code long[]}.
+ *
+ * <p>Avoids boxing every ID of a large call log into a {@code Set<Long>}, and allows comparing the
+ * set with another sorted list of IDs in a single pass.
+ */
+public final class SortedIdSet {
+
+  private static final long[] EMPTY = new long[0];
+
+  private final long[] ids;
+
+  private SortedIdSet(long[] ids) {
+    this.ids = ids;
+  }
+
+  /** Returns an empty set. */
+  public static SortedIdSet empty() {
+    return new SortedIdSet(EMPTY);
+  }
+
+  /**
+   * Reads the IDs in column {@code idColumn} of all rows of {@code cursor}. The rows don't have to
+   * be sorted, but reading is cheaper if they are sorted ascending.
+   */
+  public static SortedIdSet fromCursor(Cursor cursor, int idColumn) {
+    long[] ids = new long[cursor.getCount()];
+    int count = 0;
+    boolean sorted = true;
+    cursor.moveToPosition(-1);
+    while (cursor.moveToNext()) {
+      long id = cursor.getLong(idColumn);
+      if (count > 0 && id <= ids[count - 1]) {
+        sorted = false;
+      }
+      ids[count++] = id;
+    }
+    if (sorted) {
+      return new SortedIdSet(count == ids.length ? ids : Arrays.copyOf(ids, count));
+    }
+
+    Arrays.sort(ids, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+        ids[distinct++] = ids[i];
+      }
+    }
+    return new SortedIdSet(Arrays.copyOf(ids, distinct));
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  public boolean isEmpty() {
+    return ids.length == 0;
+  }
+
+  /** Returns the {@code index}th smallest ID. */
+  public long get(int index) {
+    return ids[index];
+  }
+
+  public boolean contains(long id) {
+    return Arrays.binarySearch(ids, id) >= 0;
+  }
+
+  /** Returns the IDs in [{@code fromId}, {@code toId}). */
+  public SortedIdSet range(long fromId, long toId) {
+    return new SortedIdSet(Arrays.copyOfRange(ids, indexOf(fromId), indexOf(toId)));
+  }
+
+  /** Returns the index of {@code id}, or of the first greater ID if it isn't in the set. */
+  private int indexOf(long id) {
+    int index = Arrays.binarySearch(ids, id);
+    return index >= 0 ? index : -index - 1;
+  }
+
+  /**
+   * Returns the IDs of this set which are not in column {@code idColumn} of {@code cursor}.
+   *
+   * <p>The rows of the cursor must be sorted by ID ascending. Both lists are walked once, side by
+   * side, and the cursor is only read until all IDs of this set have been passed.
+   */
+  public SortedIdSet minus(Cursor cursor, int idColumn) {
+    long[] result = new long[ids.length];
+    int count = 0;
+    int i = 0;
+    long previous = Long.MIN_VALUE;
+    cursor.moveToPosition(-1);
+    while (i < ids.length && cursor.moveToNext()) {
+      long other = cursor.getLong(idColumn);
+      Assert.checkArgument(other >= previous, "cursor is not sorted by ID");
+      previous = other;
+      while (i < ids.length && ids[i] < other) {
+        result[count++] = ids[i++];
+      }
+      if (i < ids.length && ids[i] == other) {
+        i++;
+      }
+    }
+    while (i < ids.length) {
+      result[count++] = ids[i++];
+    }
+    return new SortedIdSet(count == result.length ? result : Arrays.copyOf(result, count));
+  }
+}
@@ -18,16 +18,20 @@ package com.android.dialer.calllog.ui;
 import android.content.Context;
 import android.database.Cursor;
 import android.support.annotation.IntDef;
+import android.support.annotation.MainThread;
 import android.support.annotation.Nullable;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.RecyclerView.ViewHolder;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
+import com.android.dialer.calllog.model.CoalescedRow;
 import com.android.dialer.calllogutils.CallLogDates;
 import com.android.dialer.common.Assert;
 import com.android.dialer.glidephotomanager.GlidePhotoManager;
 import com.android.dialer.glidephotomanager.GlidePhotoManagerComponent;
 import com.android.dialer.time.Clock;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
@@ -53,10 +57,24 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
     int CALL_LOG_ENTRY = 4;
   }
 
+  /** Number of rows kept after they have been read from the cursor and processed. */
+  private static final int MAX_PREFETCHED_ROWS = 100;
+
+  /**
+   * Rows read from the cursor by a single {@link #prefetch(int, int)} call at most. Prefetching
+   * runs on the main thread while scrolling, so it is spread over several frames.
+   */
+  private static final int MAX_ROWS_READ_PER_PREFETCH = 4;
+
   private final Clock clock;
   private final RealtimeRowProcessor realtimeRowProcessor;
   private final GlidePhotoManager glidePhotoManager;
 
+  /** Rows of the current cursor by cursor position, with their realtime processing. */
+  private final LruCache<Integer, PrefetchedRow> prefetchedRows =
+      new LruCache<>(MAX_PREFETCHED_ROWS);
+
+  /** Only read on the main thread, so reads don't need to synchronize on its position. */
   private Cursor cursor;
 
   /** Position of the "Today" header. Null when it should not be displayed. */
@@ -78,15 +96,61 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
   }
 
   void updateCursor(Cursor updatedCursor) {
+    // The realtime row processor's cache is invalidated whenever a refresh changes phone lookup
+    // info, so it is kept across cursors.
     this.cursor = updatedCursor;
-    this.realtimeRowProcessor.clearCache();
+    prefetchedRows.evictAll();
 
     setHeaderPositions();
     notifyDataSetChanged();
   }
 
   void clearCache() {
-    this.realtimeRowProcessor.clearCache();
+    // The shared phone lookup info cache is invalidated by the refresh itself whenever it changes
+    // phone lookup info, so only the rows read from the cursor are dropped.
+    prefetchedRows.evictAll();
+  }
+
+  /**
+   * Reads the call log entries from adapter position {@code fromPosition} to {@code toPosition}
+   * (inclusive, in either direction) and starts their realtime processing, so that binding them is
+   * a memory read and they are displayed with their final info.
+   *
+   * <p>Entries are read nearest first. At most {@link #MAX_ROWS_READ_PER_PREFETCH} entries are read
+   * per call; the rest are read by subsequent calls.
+   */
+  @MainThread
+  void prefetch(int fromPosition, int toPosition) {
+    Assert.isMainThread();
+    int step = fromPosition <= toPosition ? 1 : -1;
+    int itemCount = getItemCount();
+    int rowsRead = 0;
+    for (int position = fromPosition;
+        position >= 0 && position < itemCount && rowsRead < MAX_ROWS_READ_PER_PREFETCH;
+        position += step) {
+      if (getItemViewType(position) == RowType.CALL_LOG_ENTRY) {
+        int cursorPosition = getCursorPosition(position);
+        if (prefetchedRows.get(cursorPosition) == null) {
+          getPrefetchedRow(cursorPosition);
+          rowsRead++;
+        }
+      }
+      if (position == toPosition) {
+        break;
+      }
+    }
+  }
+
+  @MainThread
+  private PrefetchedRow getPrefetchedRow(int cursorPosition) {
+    PrefetchedRow prefetchedRow = prefetchedRows.get(cursorPosition);
+    if (prefetchedRow == null) {
+      cursor.moveToPosition(cursorPosition);
+      CoalescedRow row = CoalescedAnnotatedCallLogCursorLoader.toRow(cursor);
+      prefetchedRow = new PrefetchedRow(row, realtimeRowProcessor.applyRealtimeProcessing(row));
+      prefetchedRows.put(cursorPosition, prefetchedRow);
+    }
+    return prefetchedRow;
   }
 
   private void setHeaderPositions() {
@@ -142,7 +206,6 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
             LayoutInflater.from(viewGroup.getContext())
                 .inflate(R.layout.new_call_log_entry, viewGroup, false),
             clock,
-            realtimeRowProcessor,
             glidePhotoManager);
       default:
         throw Assert.createUnsupportedOperationFailException("Unsupported view type: " + viewType);
@@ -163,19 +226,8 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
         ((HeaderViewHolder) viewHolder).setHeader(R.string.new_call_log_header_older);
         break;
       case RowType.CALL_LOG_ENTRY:
-        NewCallLogViewHolder newCallLogViewHolder = (NewCallLogViewHolder) viewHolder;
-        int previousHeaders = 0;
-        if (todayHeaderPosition != null && position > todayHeaderPosition) {
-          previousHeaders++;
-        }
-        if (yesterdayHeaderPosition != null && position > yesterdayHeaderPosition) {
-          previousHeaders++;
-        }
-        if (olderHeaderPosition != null && position > olderHeaderPosition) {
-          previousHeaders++;
-        }
-        cursor.moveToPosition(position - previousHeaders);
-        newCallLogViewHolder.bind(cursor);
+        PrefetchedRow prefetchedRow = getPrefetchedRow(getCursorPosition(position));
+        ((NewCallLogViewHolder) viewHolder).bind(prefetchedRow.row, prefetchedRow.processedRow);
         break;
       default:
         throw Assert.createIllegalStateFailException(
@@ -183,6 +235,21 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
     }
   }
 
+  /** Returns the cursor position of the call log entry at adapter position {@code position}. */
+  private int getCursorPosition(int position) {
+    int previousHeaders = 0;
+    if (todayHeaderPosition != null && position > todayHeaderPosition) {
+      previousHeaders++;
+    }
+    if (yesterdayHeaderPosition != null && position > yesterdayHeaderPosition) {
+      previousHeaders++;
+    }
+    if (olderHeaderPosition != null && position > olderHeaderPosition) {
+      previousHeaders++;
+    }
+    return position - previousHeaders;
+  }
+
   @Override
   @RowType
   public int getItemViewType(int position) {
@@ -212,4 +279,15 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
     }
     return cursor.getCount() + numberOfHeaders;
   }
+
+  /** A row as read from the cursor, and the row after realtime processing. */
+  private static final class PrefetchedRow {
+    final CoalescedRow row;
+    final ListenableFuture<CoalescedRow> processedRow;
+
+    PrefetchedRow(CoalescedRow row, ListenableFuture<CoalescedRow> processedRow) {
+      this.row = row;
+      this.processedRow = processedRow;
+    }
+  }
 }
@@ -127,7 +127,7 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
     // AnnotatedCallLog. For example, CP2 information for invalid numbers can sometimes only be
     // fetched at display time. Because of this, we need to clear the adapter's cache and update it
     // whenever the user arrives at the call log (rather than relying on changes to the CursorLoader
-    // alone).
+    // alone). The looked up info itself stays cached until the refresh above finds CP2 changed.
     if (recyclerView.getAdapter() != null) {
       ((NewCallLogAdapter) recyclerView.getAdapter()).clearCache();
       recyclerView.getAdapter().notifyDataSetChanged();
@@ -176,6 +176,7 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
     recyclerView.addOnScrollListener(
         new RecyclerViewJankLogger(
             MetricsComponent.get(getContext()).metrics(), Metrics.NEW_CALL_LOG_JANK_EVENT_NAME));
+    recyclerView.addOnScrollListener(new NewCallLogRowPrefetcher());
 
     getLoaderManager().restartLoader(0, null, this);
 
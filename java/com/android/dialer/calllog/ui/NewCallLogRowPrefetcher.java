@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.calllog.ui;
+
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.RecyclerView.OnScrollListener;
+
+/**
+ * Prefetches the call log entries which are about to scroll into view, see {@link
+ * NewCallLogAdapter#prefetch(int, int)}.
+ *
+ * <p>Entries are prefetched in the scroll direction, and further ahead the faster the list
+ * scrolls, so that a fling doesn't outrun their realtime processing.
+ */
+final class NewCallLogRowPrefetcher extends OnScrollListener {
+
+  /** Entries prefetched beyond the visible ones when the list is slow or doesn't scroll. */
+  private static final int MIN_ROWS_AHEAD = 5;
+
+  private static final int MAX_ROWS_AHEAD = 40;
+
+  /** Entries are prefetched for this many frames of scrolling at the current speed. */
+  private static final int FRAMES_AHEAD = 30;
+
+  @Override
+  public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+    // Also called with dy == 0 after a layout, which prefetches the entries below the first screen.
+    if (!(recyclerView.getAdapter() instanceof NewCallLogAdapter)
+        || !(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) {
+      return;
+    }
+    NewCallLogAdapter adapter = (NewCallLogAdapter) recyclerView.getAdapter();
+    LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+    int firstVisible = layoutManager.findFirstVisibleItemPosition();
+    int lastVisible = layoutManager.findLastVisibleItemPosition();
+    if (firstVisible == RecyclerView.NO_POSITION) {
+      return;
+    }
+
+    // dy is the distance scrolled in the last frame, i.e. the speed in pixels per frame.
+    int rowHeight = Math.max(1, recyclerView.getHeight() / (lastVisible - firstVisible + 1));
+    int rowsAhead = MIN_ROWS_AHEAD + Math.abs(dy) * FRAMES_AHEAD / rowHeight;
+    rowsAhead = Math.min(rowsAhead, MAX_ROWS_AHEAD);
+
+    if (dy >= 0) {
+      adapter.prefetch(lastVisible + 1, lastVisible + rowsAhead);
+    } else {
+      adapter.prefetch(firstVisible - 1, firstVisible - rowsAhead);
+    }
+  }
+}
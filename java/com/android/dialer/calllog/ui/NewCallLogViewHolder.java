@@ -18,7 +18,6 @@ package com.android.dialer.calllog.ui;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.ColorStateList;
-import android.database.Cursor;
 import android.provider.CallLog.Calls;
 import android.support.annotation.DrawableRes;
 import android.support.v7.widget.RecyclerView;
@@ -39,6 +38,7 @@ import com.android.dialer.oem.MotorolaUtils;
 import com.android.dialer.time.Clock;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 
@@ -58,18 +58,13 @@ final class NewCallLogViewHolder extends RecyclerView.ViewHolder {
   private final ImageView menuButton;
 
   private final Clock clock;
-  private final RealtimeRowProcessor realtimeRowProcessor;
   private final ExecutorService uiExecutorService;
 
   private final GlidePhotoManager glidePhotoManager;
 
   private int currentRowId;
 
-  NewCallLogViewHolder(
-      View view,
-      Clock clock,
-      RealtimeRowProcessor realtimeRowProcessor,
-      GlidePhotoManager glidePhotoManager) {
+  NewCallLogViewHolder(View view, Clock clock, GlidePhotoManager glidePhotoManager) {
     super(view);
     this.context = view.getContext();
     primaryTextView = view.findViewById(R.id.primary_text);
@@ -84,16 +79,25 @@ final class NewCallLogViewHolder extends RecyclerView.ViewHolder {
     menuButton = view.findViewById(R.id.menu_button);
 
     this.clock = clock;
-    this.realtimeRowProcessor = realtimeRowProcessor;
     this.glidePhotoManager = glidePhotoManager;
     uiExecutorService = DialerExecutorComponent.get(context).uiExecutor();
   }
 
-  /** @param cursor a cursor from {@link CoalescedAnnotatedCallLogCursorLoader}. */
-  void bind(Cursor cursor) {
-    CoalescedRow row = CoalescedAnnotatedCallLogCursorLoader.toRow(cursor);
+  /**
+   * @param row a row read from {@link CoalescedAnnotatedCallLogCursorLoader}
+   * @param processedRow the result of {@link RealtimeRowProcessor#applyRealtimeProcessing} for
+   *     {@code row}
+   */
+  void bind(CoalescedRow row, ListenableFuture<CoalescedRow> processedRow) {
     currentRowId = row.id(); // Used to make sure async updates are applied to the correct views
 
+    // The row was usually prefetched before it scrolled into view; if its processing is done there
+    // is nothing to wait for.
+    if (processedRow.isDone()) {
+      displayRow(Futures.getUnchecked(processedRow));
+      return;
+    }
+
     // Even if there is additional real time processing necessary, we still want to immediately show
     // what information we have, rather than an empty card. For example, if CP2 information needs to
     // be queried on the fly, we can still show the phone number until the contact name loads.
@@ -101,10 +105,7 @@ final class NewCallLogViewHolder extends RecyclerView.ViewHolder {
 
     // Note: This leaks the view holder via the callback (which is an inner class), but this is OK
     // because we only create ~10 of them (and they'll be collected assuming all jobs finish).
-    Futures.addCallback(
-        realtimeRowProcessor.applyRealtimeProcessing(row),
-        new RealtimeRowFutureCallback(row),
-        uiExecutorService);
+    Futures.addCallback(processedRow, new RealtimeRowFutureCallback(row), uiExecutorService);
   }
 
   private void displayRow(CoalescedRow row) {
@@ -21,7 +21,6 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.support.annotation.MainThread;
 import android.support.annotation.VisibleForTesting;
-import android.util.ArrayMap;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.calllog.model.CoalescedRow;
 import com.android.dialer.calllogutils.NumberAttributesConverter;
@@ -32,7 +31,9 @@ import com.android.dialer.common.concurrent.Annotations.Ui;
 import com.android.dialer.common.concurrent.ThreadUtil;
 import com.android.dialer.inject.ApplicationContext;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
+import com.android.dialer.phonelookup.PhoneLookupInfoCache;
 import com.android.dialer.phonelookup.composite.CompositePhoneLookup;
+import com.android.dialer.phonelookup.database.PhoneLookupInfoCodec;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
 import com.google.common.collect.ImmutableMap;
@@ -54,11 +55,12 @@ import javax.inject.Inject;
  * as-is. However, there are certain times that a row from the AnnotatedCallLog cannot be displayed
  * without further work being performed.
  *
- * <p>For example, when there are many invalid numbers in the call log, we cannot efficiently update
- * the CP2 information for all of them at once, and so information for those rows must be retrieved
- * at display time.
+ * <p>Older versions marked the CP2 info of rows incomplete when there were too many invalid numbers
+ * to look up at once. Those rows are looked up at display time until the next refresh of the
+ * AnnotatedCallLog, which processes all numbers and clears the mark.
  *
- * <p>This class also updates {@link PhoneLookupHistory} with the results that it fetches.
+ * <p>This class also updates {@link PhoneLookupHistory} and the {@link PhoneLookupInfoCache} shared
+ * with the rest of the app with the results that it fetches.
  */
 public final class RealtimeRowProcessor {
 
@@ -69,11 +71,10 @@ public final class RealtimeRowProcessor {
 
   private final Context appContext;
   private final CompositePhoneLookup compositePhoneLookup;
+  private final PhoneLookupInfoCache phoneLookupInfoCache;
   private final ListeningExecutorService uiExecutor;
   private final ListeningExecutorService backgroundExecutor;
 
-  private final Map<DialerPhoneNumber, PhoneLookupInfo> cache = new ArrayMap<>();
-
   private final Map<DialerPhoneNumber, PhoneLookupInfo> queuedPhoneLookupHistoryWrites =
       new LinkedHashMap<>(); // Keep the order so the most recent looked up value always wins
   private final Runnable writePhoneLookupHistoryRunnable = this::writePhoneLookupHistory;
@@ -83,11 +84,13 @@ public final class RealtimeRowProcessor {
       @ApplicationContext Context appContext,
       @Ui ListeningExecutorService uiExecutor,
       @BackgroundExecutor ListeningExecutorService backgroundExecutor,
-      CompositePhoneLookup compositePhoneLookup) {
+      CompositePhoneLookup compositePhoneLookup,
+      PhoneLookupInfoCache phoneLookupInfoCache) {
     this.appContext = appContext;
     this.uiExecutor = uiExecutor;
     this.backgroundExecutor = backgroundExecutor;
     this.compositePhoneLookup = compositePhoneLookup;
+    this.phoneLookupInfoCache = phoneLookupInfoCache;
   }
 
   /**
@@ -96,33 +99,31 @@ public final class RealtimeRowProcessor {
    */
   @MainThread
   ListenableFuture<CoalescedRow> applyRealtimeProcessing(final CoalescedRow row) {
-    // Cp2DefaultDirectoryPhoneLookup can not always efficiently process all rows.
+    // Only rows written by older versions can still be incomplete, see the class documentation.
     if (!row.numberAttributes().getIsCp2InfoIncomplete()) {
       return Futures.immediateFuture(row);
     }
 
-    PhoneLookupInfo cachedPhoneLookupInfo = cache.get(row.number());
-    if (cachedPhoneLookupInfo != null) {
+    // Note: This loses country info when number is not valid.
+    String normalizedNumber = row.number().getNormalizedNumber();
+    PhoneLookupInfo cachedPhoneLookupInfo = phoneLookupInfoCache.get(normalizedNumber);
+    // The cache may also hold info read from PhoneLookupHistory, which is just as old as the row's.
+    if (cachedPhoneLookupInfo != null
+        && !cachedPhoneLookupInfo.getDefaultCp2Info().getIsIncomplete()) {
       return Futures.immediateFuture(applyPhoneLookupInfoToRow(cachedPhoneLookupInfo, row));
     }
 
+    long generation = phoneLookupInfoCache.getGeneration();
     ListenableFuture<PhoneLookupInfo> phoneLookupInfoFuture =
         compositePhoneLookup.lookup(row.number());
     return Futures.transform(
         phoneLookupInfoFuture,
         phoneLookupInfo -> {
           queuePhoneLookupHistoryWrite(row.number(), phoneLookupInfo);
-          cache.put(row.number(), phoneLookupInfo);
+          phoneLookupInfoCache.put(normalizedNumber, phoneLookupInfo, generation);
           return applyPhoneLookupInfoToRow(phoneLookupInfo, row);
         },
-        uiExecutor /* ensures the cache is updated on a single thread */);
-  }
-
-  /** Clears the internal cache. */
-  @MainThread
-  public void clearCache() {
-    Assert.isMainThread();
-    cache.clear();
+        uiExecutor /* ensures PhoneLookupHistory writes are queued on a single thread */);
   }
 
   @MainThread
@@ -162,7 +163,8 @@ public final class RealtimeRowProcessor {
 
                 ContentValues contentValues = new ContentValues();
                 contentValues.put(
-                    PhoneLookupHistory.PHONE_LOOKUP_INFO, phoneLookupInfo.toByteArray());
+                    PhoneLookupHistory.PHONE_LOOKUP_INFO,
+                    PhoneLookupInfoCodec.encode(phoneLookupInfo));
                 contentValues.put(PhoneLookupHistory.LAST_MODIFIED, currentTimestamp);
                 operations.add(
                     ContentProviderOperation.newUpdate(
@@ -16,15 +16,19 @@
 
 package com.android.dialer.commandline;
 
+import com.android.dialer.buildtype.BuildType;
+import com.android.dialer.buildtype.BuildType.Type;
 import com.android.dialer.commandline.impl.Blocking;
 import com.android.dialer.commandline.impl.Echo;
 import com.android.dialer.commandline.impl.Help;
+import com.android.dialer.commandline.impl.SmartDialBenchmarkCommand;
 import com.android.dialer.commandline.impl.Version;
 import com.android.dialer.function.Supplier;
 import com.google.common.collect.ImmutableMap;
 import dagger.Module;
 import dagger.Provides;
 import javax.inject.Inject;
+import javax.inject.Provider;
 
 /** Provides {@link Command} */
 @Module
@@ -32,9 +36,11 @@ public abstract class CommandLineModule {
 
   @Provides
   static Supplier<ImmutableMap<String, Command>> provideCommandSupplier(
-      AospCommandInjector aospCommandInjector) {
+      AospCommandInjector aospCommandInjector, DebugCommandInjector debugCommandInjector) {
 
-    return aospCommandInjector.inject(CommandSupplier.builder()).build();
+    return debugCommandInjector
+        .inject(aospCommandInjector.inject(CommandSupplier.builder()))
+        .build();
   }
 
   /** Injects standard commands to the builder */
@@ -60,4 +66,23 @@ public abstract class CommandLineModule {
       return builder;
     }
   }
+
+  /** Injects commands which are only available on bugfood and test builds. */
+  public static class DebugCommandInjector {
+    private final Provider<SmartDialBenchmarkCommand> smartDialBenchmark;
+
+    @Inject
+    DebugCommandInjector(Provider<SmartDialBenchmarkCommand> smartDialBenchmark) {
+      this.smartDialBenchmark = smartDialBenchmark;
+    }
+
+    public CommandSupplier.Builder inject(CommandSupplier.Builder builder) {
+      @Type int buildType = BuildType.get();
+      if (buildType != Type.BUGFOOD && buildType != Type.TEST) {
+        return builder;
+      }
+      builder.addCommand("smartdial-benchmark", smartDialBenchmark.get());
+      return builder;
+    }
+  }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.commandline.impl;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import com.android.dialer.commandline.Arguments;
+import com.android.dialer.commandline.Command;
+import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
+import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.smartdial.benchmark.SmartDialBenchmark;
+import com.android.dialer.smartdial.benchmark.SyntheticContactCorpus;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.List;
+import javax.inject.Inject;
+
+/** Benchmark the smart dial matcher over a synthetic contact corpus. */
+public class SmartDialBenchmarkCommand implements Command {
+
+  @NonNull
+  @Override
+  public String getShortDescription() {
+    return "benchmark smart dial matching";
+  }
+
+  @NonNull
+  @Override
+  public String getUsage() {
+    return "smartdial-benchmark [flags --]\n"
+        + "\n"
+        + "--contacts=N    number of synthetic contacts (default 10000)\n"
+        + "--languages=L   comma separated subset of eng,rus,ukr,bul (default all)\n"
+        + "--queries=Q     comma separated digit queries (default 2,26,264,5427)\n"
+        + "--iterations=I  measured passes per benchmark (default 5)\n"
+        + "--seed=S        corpus seed (default 1)";
+  }
+
+  private final Context appContext;
+  private final ListeningExecutorService executorService;
+
+  @Inject
+  SmartDialBenchmarkCommand(
+      @ApplicationContext Context context,
+      @BackgroundExecutor ListeningExecutorService executorService) {
+    this.appContext = context;
+    this.executorService = executorService;
+  }
+
+  @Override
+  public ListenableFuture<String> run(Arguments args) throws IllegalCommandLineArgumentException {
+    int contacts = getInt(args, "contacts", 10000);
+    int iterations = getInt(args, "iterations", 5);
+    long seed = getInt(args, "seed", 1);
+    List<String> languages = getList(args, "languages", "eng,rus,ukr,bul");
+    List<String> queries = getList(args, "queries", "2,26,264,5427");
+
+    if (contacts <= 0 || iterations <= 0) {
+      throw new IllegalCommandLineArgumentException("contacts and iterations must be positive");
+    }
+    for (String language : languages) {
+      if (!SyntheticContactCorpus.isSupportedLanguage(language)) {
+        throw new IllegalCommandLineArgumentException("unsupported language " + language);
+      }
+    }
+
+    return executorService.submit(
+        () ->
+            new SmartDialBenchmark(
+                    appContext,
+                    SyntheticContactCorpus.generate(contacts, languages, seed),
+                    queries,
+                    iterations)
+                .run());
+  }
+
+  private static int getInt(Arguments args, String flag, int defaultValue)
+      throws IllegalCommandLineArgumentException {
+    if (!args.getFlags().containsKey(flag)) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(args.getFlags().get(flag));
+    } catch (NumberFormatException e) {
+      throw new IllegalCommandLineArgumentException("integer value expected for " + flag);
+    }
+  }
+
+  private static List<String> getList(Arguments args, String flag, String defaultValue) {
+    String value = args.getFlags().containsKey(flag) ? args.getFlags().get(flag) : defaultValue;
+    return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(value);
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.contactchanges;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.ArrayMap;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.inject.ApplicationContext;
+import com.google.common.collect.ImmutableSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Reads contact updates and deletions from CP2 once for all consumers.
+ *
+ * <p>Consumers such as the smart dial database and the CP2 phone lookup each persist the time up to
+ * which they have processed contacts. Asking CP2 for everything after their own time means that
+ * after a sync every one of them reads the same rows. Instead, the feed keeps the latest update and
+ * deletion time of every contact which changed after the oldest time asked for so far (the
+ * "window"), and only asks CP2 for rows at or after its watermarks, the latest times it has seen.
+ * Usually that returns nothing, or just the rows changed since the previous consumer asked.
+ *
+ * <p>A consumer asking for a time before the window is served by a full query, after which the
+ * window is extended back to that time.
+ *
+ * <p>Consumers only move their time forward, so once every consumer has asked for a time after
+ * the start of the window, the changes before the oldest of those times are dropped and the window
+ * shrinks to it.
+ */
+@Singleton
+public final class ContactChangeFeed {
+
+  private final Context appContext;
+
+  /** The feed knows about all changes after this time. */
+  private long windowStart = Long.MAX_VALUE;
+
+  private long updatedWatermark;
+  private long deletedWatermark;
+
+  /** Contact ID to last updated timestamp, for contacts updated after {@link #windowStart}. */
+  private final Map<Long, Long> updatedTimestamps = new HashMap<>();
+
+  /** Contact ID to deleted timestamp, for contacts deleted after {@link #windowStart}. */
+  private final Map<Long, Long> deletedTimestamps = new HashMap<>();
+
+  /** Consumer name to the time it last asked for. */
+  private final Map<String, Long> sinceByConsumer = new ArrayMap<>();
+
+  @Inject
+  ContactChangeFeed(@ApplicationContext Context appContext) {
+    this.appContext = appContext;
+  }
+
+  /**
+   * Returns the contacts updated or deleted after {@code since}, in milliseconds since epoch.
+   *
+   * @param consumer a name identifying the caller, which is expected to only move {@code since}
+   *     forward
+   * @return null if CP2 couldn't be read, in which case the caller should not advance its time
+   */
+  @WorkerThread
+  @Nullable
+  public synchronized ContactChanges getChangesSince(String consumer, long since) {
+    Assert.isWorkerThread();
+    boolean read;
+    if (since < windowStart) {
+      read = queryUpdatedContacts(since) && queryDeletedContacts(since);
+      // Only extend the window if CP2 could be read; the next call tries again otherwise.
+      if (read) {
+        windowStart = since;
+        updatedWatermark = Math.max(updatedWatermark, since);
+        deletedWatermark = Math.max(deletedWatermark, since);
+      }
+    } else {
+      // Rows with the same timestamp as the watermark may have been written after the last query,
+      // so they are read again.
+      read = queryUpdatedContacts(updatedWatermark) && queryDeletedContacts(deletedWatermark);
+    }
+    if (!read) {
+      return null;
+    }
+    ContactChanges contactChanges =
+        ContactChanges.create(
+            idsChangedSince(updatedTimestamps, since),
+            idsChangedSince(deletedTimestamps, since),
+            Math.max(since, Math.max(updatedWatermark, deletedWatermark)));
+    sinceByConsumer.put(consumer, since);
+    trimWindow();
+    return contactChanges;
+  }
+
+  /** Drops the changes no consumer will ask for again. */
+  private void trimWindow() {
+    long oldestSince = Long.MAX_VALUE;
+    for (long since : sinceByConsumer.values()) {
+      oldestSince = Math.min(oldestSince, since);
+    }
+    if (oldestSince <= windowStart) {
+      return;
+    }
+    // Changes at the oldest time itself are never returned, see idsChangedSince.
+    removeTimestampsUpTo(updatedTimestamps, oldestSince);
+    removeTimestampsUpTo(deletedTimestamps, oldestSince);
+    windowStart = oldestSince;
+    LogUtil.v(
+        "ContactChangeFeed.trimWindow",
+        "window starts at %d, updated: %d, deleted: %d",
+        windowStart,
+        updatedTimestamps.size(),
+        deletedTimestamps.size());
+  }
+
+  /** Returns false if CP2 couldn't be queried. */
+  private boolean queryUpdatedContacts(long from) {
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                Contacts.CONTENT_URI,
+                new String[] {Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP},
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " >= ?",
+                new String[] {Long.toString(from)},
+                null)) {
+      if (cursor == null) {
+        LogUtil.w("ContactChangeFeed.queryUpdatedContacts", "null cursor");
+        return false;
+      }
+      while (cursor.moveToNext()) {
+        long contactId = cursor.getLong(0);
+        long timestamp = cursor.getLong(1);
+        updatedTimestamps.put(contactId, timestamp);
+        updatedWatermark = Math.max(updatedWatermark, timestamp);
+      }
+      LogUtil.v(
+          "ContactChangeFeed.queryUpdatedContacts",
+          "read %d rows from %d, watermark: %d",
+          cursor.getCount(),
+          from,
+          updatedWatermark);
+    }
+    return true;
+  }
+
+  /** Returns false if CP2 couldn't be queried. */
+  private boolean queryDeletedContacts(long from) {
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                DeletedContacts.CONTENT_URI,
+                new String[] {
+                  DeletedContacts.CONTACT_ID, DeletedContacts.CONTACT_DELETED_TIMESTAMP
+                },
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + " >= ?",
+                new String[] {Long.toString(from)},
+                null)) {
+      if (cursor == null) {
+        LogUtil.w("ContactChangeFeed.queryDeletedContacts", "null cursor");
+        return false;
+      }
+      while (cursor.moveToNext()) {
+        if (cursor.isNull(0)) {
+          // Row was deleted during iteration.
+          continue;
+        }
+        long contactId = cursor.getLong(0);
+        long timestamp = cursor.getLong(1);
+        deletedTimestamps.put(contactId, timestamp);
+        deletedWatermark = Math.max(deletedWatermark, timestamp);
+
+        // A deleted contact is no longer an updated one.
+        Long updatedTimestamp = updatedTimestamps.get(contactId);
+        if (updatedTimestamp != null && updatedTimestamp <= timestamp) {
+          updatedTimestamps.remove(contactId);
+        }
+      }
+      LogUtil.v(
+          "ContactChangeFeed.queryDeletedContacts",
+          "read %d rows from %d, watermark: %d",
+          cursor.getCount(),
+          from,
+          deletedWatermark);
+    }
+    return true;
+  }
+
+  private static void removeTimestampsUpTo(Map<Long, Long> timestamps, long time) {
+    Iterator<Long> iterator = timestamps.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next() <= time) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private static ImmutableSet<Long> idsChangedSince(Map<Long, Long> timestamps, long since) {
+    ImmutableSet.Builder<Long> ids = ImmutableSet.builder();
+    for (Entry<Long, Long> entry : timestamps.entrySet()) {
+      if (entry.getValue() > since) {
+        ids.add(entry.getKey());
+      }
+    }
+    return ids.build();
+  }
+}
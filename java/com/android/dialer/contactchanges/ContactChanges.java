@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.contactchanges;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableSet;
+
+/** Contacts which changed in CP2 after a given time, as returned by {@link ContactChangeFeed}. */
+@AutoValue
+public abstract class ContactChanges {
+
+  static ContactChanges create(
+      ImmutableSet<Long> updatedContactIds,
+      ImmutableSet<Long> deletedContactIds,
+      long latestTimestamp) {
+    return new AutoValue_ContactChanges(updatedContactIds, deletedContactIds, latestTimestamp);
+  }
+
+  /**
+   * IDs of the contacts whose {@link
+   * android.provider.ContactsContract.Contacts#CONTACT_LAST_UPDATED_TIMESTAMP} is after the given
+   * time, and which still exist.
+   */
+  public abstract ImmutableSet<Long> updatedContactIds();
+
+  /**
+   * IDs of the contacts whose {@link
+   * android.provider.ContactsContract.DeletedContacts#CONTACT_DELETED_TIMESTAMP} is after the given
+   * time.
+   */
+  public abstract ImmutableSet<Long> deletedContactIds();
+
+  /**
+   * The latest update or deletion time of the changed contacts, or the given time if there are
+   * none. Consumers can ask for the changes after this time next.
+   */
+  public abstract long latestTimestamp();
+
+  public boolean isEmpty() {
+    return updatedContactIds().isEmpty() && deletedContactIds().isEmpty();
+  }
+}
@@ -24,6 +24,7 @@ import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import com.android.dialer.bitmappool.BitmapPool;
 
 /** Provides static functions to decode bitmaps at the optimal size */
 public class BitmapUtil {
@@ -76,15 +77,37 @@ public class BitmapUtil {
     return sampleSize;
   }
 
-  /** Decodes the bitmap with the given sample size */
+  /**
+   * Decodes the bitmap with the given sample size, into a bitmap from the {@link BitmapPool} if one
+   * is large enough. The decoded bitmap is mutable, so that it can be pooled once unused.
+   */
   public static Bitmap decodeBitmapFromBytes(byte[] bytes, int sampleSize) {
-    final BitmapFactory.Options options;
-    if (sampleSize <= 1) {
-      options = null;
-    } else {
-      options = new BitmapFactory.Options();
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    if (sampleSize > 1) {
       options.inSampleSize = sampleSize;
     }
+    options.inMutable = true;
+
+    // The bounds are those of the image, before sampling.
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    options.inJustDecodeBounds = false;
+    if (options.outWidth > 0 && options.outHeight > 0) {
+      int scale = Math.max(1, sampleSize);
+      int width = (options.outWidth + scale - 1) / scale;
+      int height = (options.outHeight + scale - 1) / scale;
+      options.inBitmap = BitmapPool.getInstance().getReusable(width * height * 4);
+    }
+
+    if (options.inBitmap != null) {
+      try {
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+      } catch (IllegalArgumentException e) {
+        // The image can't be decoded into the pooled bitmap, e.g. because of its config.
+        BitmapPool.getInstance().put(options.inBitmap);
+        options.inBitmap = null;
+      }
+    }
     return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
   }
 
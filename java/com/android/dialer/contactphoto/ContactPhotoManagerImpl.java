@@ -38,6 +38,7 @@ import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
@@ -52,24 +53,31 @@ import android.util.LruCache;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
+import com.android.dialer.bitmappool.BitmapPool;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.constants.Constants;
 import com.android.dialer.constants.TrafficStatsTags;
 import com.android.dialer.util.PermissionsUtil;
 import com.android.dialer.util.UriUtils;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -77,6 +85,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
 
+  private static final String PRELOADER_THREAD_NAME = "ContactPhotoPreloader";
+
+  private static final String REMOTE_PHOTO_LOADER_THREAD_NAME = "ContactPhotoRemoteLoader";
+
   private static final int FADE_TRANSITION_DURATION = 200;
 
   /**
@@ -89,7 +101,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-  private static final String[] COLUMNS = new String[] {Photo._ID, Photo.PHOTO};
+  private static final String[] COLUMNS =
+      new String[] {Photo._ID, Photo.PHOTO, Photo.DATA_VERSION};
+
+  private static final String[] DATA_VERSION_COLUMNS =
+      new String[] {Photo._ID, Photo.DATA_VERSION};
 
   /**
    * Dummy object used to indicate that a bitmap for a given key could not be stored in the cache.
@@ -99,6 +115,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   private static final int HOLDER_CACHE_SIZE = 2000000;
   /** Cache size for {@link #bitmapCache} for devices with "large" RAM. */
   private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
+  /** Size of {@link #thumbnailDiskCache} in bytes, about 200 thumbnails of 96x96 pixels. */
+  private static final int THUMBNAIL_DISK_CACHE_SIZE = 8 * 1024 * 1024;
+  /** Directory of {@link #thumbnailDiskCache}, in the app's cache directory. */
+  private static final String THUMBNAIL_DISK_CACHE_DIRECTORY = "contact_thumbnails";
   /** Height/width of a thumbnail image */
   private static int thumbnailSize;
 
@@ -121,12 +141,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
    * #bitmapHolderCache}.
    */
   private final LruCache<Object, Bitmap> bitmapCache;
+  /**
+   * Decoded thumbnails of the photos loaded by ID, kept across restarts. Only accessed from
+   * {@link #loaderThread} and {@link #preloaderThread}.
+   */
+  private final ThumbnailDiskCache thumbnailDiskCache;
   /**
    * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request. The
    * request may swapped out before the photo loading request is started.
    */
   private final ConcurrentHashMap<ImageView, Request> pendingRequests =
       new ConcurrentHashMap<ImageView, Request>();
+  /**
+   * The bitmap drawn by each view this manager set a photo on. A bitmap drawn by a view is never
+   * added to the {@link BitmapPool}. Only accessed from the main thread.
+   */
+  private final WeakHashMap<ImageView, Bitmap> displayedBitmaps = new WeakHashMap<>();
   /** Handler for messages sent to the UI thread. */
   private final Handler mainThreadHandler = new Handler(this);
   /** For debug: How many times we had to reload cached photo for a stale entry */
@@ -135,8 +165,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   private final AtomicInteger freshCacheOverwrite = new AtomicInteger();
   /** {@code true} if ALL entries in {@link #bitmapHolderCache} are NOT fresh. */
   private volatile boolean bitmapHolderCacheAllUnfresh = true;
-  /** Thread responsible for loading photos from the database. Created upon the first request. */
+  /** Thread loading the photos of pending requests. Created upon the first request. */
   private LoaderThread loaderThread;
+  /** Thread preloading photos into the cache. Created along with {@link #loaderThread}. */
+  private LoaderThread preloaderThread;
+  /** Thread downloading photos with remote URIs. Created along with {@link #loaderThread}. */
+  private LoaderThread remotePhotoLoaderThread;
   /** A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time. */
   private boolean loadingRequested;
   /** Flag indicating if the image loading is paused. */
@@ -163,6 +197,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           @Override
           protected void entryRemoved(
               boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
+            if (evicted) {
+              recycleBitmap(key, oldValue);
+            }
             if (DEBUG) {
               dumpStats();
             }
@@ -173,6 +210,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         new LruCache<Object, BitmapHolder>(holderCacheSize) {
           @Override
           protected int sizeOf(Object key, BitmapHolder value) {
+            // Like bitmaps decoded from bytes, a thumbnail read from disk is only charged to
+            // bitmapCache, once it is displayed.
             return value.bytes != null ? value.bytes.length : 0;
           }
 
@@ -195,6 +234,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     thumbnailSize =
         context.getResources().getDimensionPixelSize(R.dimen.contact_browser_list_item_photo_size);
+    thumbnailDiskCache =
+        new ThumbnailDiskCache(
+            new File(context.getCacheDir(), THUMBNAIL_DISK_CACHE_DIRECTORY),
+            thumbnailSize,
+            (long) (cacheSizeAdjustment * THUMBNAIL_DISK_CACHE_SIZE));
 
     // Get a user agent string to use for URI photo requests.
     userAgent = Constants.get().getUserAgent(context);
@@ -258,7 +302,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       // sample size.
       if (height != width && Math.min(height, width) <= thumbnailSize * 2) {
         final int dimension = Math.min(height, width);
-        bitmap = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
+        Bitmap decoded = bitmap;
+        bitmap = ThumbnailUtils.extractThumbnail(decoded, dimension, dimension);
+        if (bitmap != decoded) {
+          BitmapPool.getInstance().put(decoded);
+        }
       }
       // make bitmap mutable and draw size onto it
       if (DEBUG_SIZES) {
@@ -361,6 +409,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
               + btk(safeDiv(bitmapBytes, numBitmaps)));
       // We don't get from L2 cache, so L2 stats is meaningless.
     }
+
+    LogUtil.d("ContactPhotoManagerImpl.dumpStats", "Pool: " + BitmapPool.getInstance().getStats());
   }
 
   @Override
@@ -372,12 +422,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       // Clear the caches.  Note all pending requests will be removed too.
       clear();
     }
+    BitmapPool.getInstance().trimMemory(level);
   }
 
   @Override
   public void preloadPhotosInBackground() {
     ensureLoaderThread();
-    loaderThread.requestPreloading();
+    preloaderThread.requestPreloading();
   }
 
   @Override
@@ -388,6 +439,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       boolean isCircular,
       DefaultImageRequest defaultImageRequest,
       DefaultImageProvider defaultProvider) {
+    displayedBitmaps.remove(view);
     if (photoId == 0) {
       // No photo is needed
       defaultProvider.applyDefaultImage(view, -1, darkTheme, defaultImageRequest);
@@ -410,6 +462,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       boolean isCircular,
       DefaultImageRequest defaultImageRequest,
       DefaultImageProvider defaultProvider) {
+    displayedBitmaps.remove(view);
     if (photoUri == null) {
       // No photo is needed
       defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme, defaultImageRequest);
@@ -470,6 +523,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   @Override
   public void removePhoto(ImageView view) {
     view.setImageDrawable(null);
+    displayedBitmaps.remove(view);
     pendingRequests.remove(view);
   }
 
@@ -527,7 +581,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       return false;
     }
 
-    if (holder.bytes == null) {
+    if (holder.bytes == null && !holder.isDiskCached()) {
       request.applyDefaultImage(view, request.isCircular);
       return holder.fresh;
     }
@@ -557,6 +611,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     } else {
       view.setImageDrawable(getDrawableForBitmap(context.getResources(), cachedBitmap, request));
     }
+    displayedBitmaps.put(view, cachedBitmap);
 
     // Put the bitmap in the LRU cache. But only do this for images that are small enough
     // (we require that at least six of those can be cached at the same time)
@@ -653,11 +708,30 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   public void ensureLoaderThread() {
     if (loaderThread == null) {
-      loaderThread = new LoaderThread(context.getContentResolver());
-      loaderThread.start();
+      ContentResolver resolver = context.getContentResolver();
+      preloaderThread =
+          startLoaderThread(PRELOADER_THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND, resolver);
+      remotePhotoLoaderThread =
+          startLoaderThread(
+              REMOTE_PHOTO_LOADER_THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND, resolver);
+      loaderThread =
+          startLoaderThread(LOADER_THREAD_NAME, Process.THREAD_PRIORITY_DEFAULT, resolver);
     }
   }
 
+  private LoaderThread startLoaderThread(String name, int priority, ContentResolver resolver) {
+    LoaderThread thread = new LoaderThread(name, priority, resolver);
+    thread.start();
+    // Create the handler now, as the other threads post to it.
+    thread.ensureHandler();
+    return thread;
+  }
+
+  private static boolean isRemoteUri(Uri uri) {
+    String scheme = uri.getScheme();
+    return "http".equals(scheme) || "https".equals(scheme);
+  }
+
   /**
    * Goes over pending loading requests and displays loaded photos. If some of the photos still
    * haven't been loaded, sends another request for image loading.
@@ -691,8 +765,27 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
   }
 
+  /**
+   * Adds a bitmap evicted from {@link #bitmapCache} to the {@link BitmapPool}, to be decoded into
+   * again, unless a view still draws it. It is removed from its holder first, so it is decoded
+   * again from the holder's bytes when needed.
+   */
+  @UiThread
+  private void recycleBitmap(Object key, Bitmap bitmap) {
+    if (displayedBitmaps.containsValue(bitmap)) {
+      return;
+    }
+    BitmapHolder holder = bitmapHolderCache.get(key);
+    if (holder != null && holder.bitmapRef != null && holder.bitmapRef.get() == bitmap) {
+      holder.bitmap = null;
+      holder.bitmapRef = null;
+    }
+    BitmapPool.getInstance().put(bitmap);
+  }
+
   /** Stores the supplied bitmap in cache. */
-  private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+  private BitmapHolder cacheBitmap(
+      Object key, byte[] bytes, boolean preloading, int requestedExtent) {
     if (DEBUG) {
       BitmapHolder prev = bitmapHolderCache.get(key);
       if (prev != null && prev.bytes != null) {
@@ -729,6 +822,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     bitmapHolderCacheAllUnfresh = false;
+    return holder;
+  }
+
+  /**
+   * Stores a thumbnail read from {@link #thumbnailDiskCache} in cache. The holder only keeps it
+   * until it is displayed, when it moves to {@link #bitmapCache} like any other bitmap.
+   */
+  private void cacheDiskCachedBitmap(Object key, Bitmap bitmap) {
+    bitmapHolderCache.put(key, new BitmapHolder(bitmap));
+    bitmapHolderCacheAllUnfresh = false;
   }
 
   /**
@@ -766,7 +869,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         inflateBitmap(holder, request.getRequestedExtent());
         jpegsDecoded = true;
       } else {
-        if (holder == null || !holder.fresh) {
+        // A thumbnail read from disk has no bytes to decode, so it is read again once collected.
+        if (holder == null
+            || !holder.fresh
+            || (holder.isDiskCached()
+                && (holder.bitmapRef == null || holder.bitmapRef.get() == null))) {
           if (request.isUriRequest()) {
             uris.add(request);
           } else {
@@ -787,6 +894,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     final byte[] bytes;
     final int originalSmallerExtent;
+    /** Whether the bitmap was read from {@link ThumbnailDiskCache}, without bytes. */
+    final boolean diskCached;
 
     volatile boolean fresh;
     Bitmap bitmap;
@@ -797,6 +906,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       this.bytes = bytes;
       this.fresh = true;
       this.originalSmallerExtent = originalSmallerExtent;
+      this.diskCached = false;
+    }
+
+    /** Creates a holder for a thumbnail read from {@link ThumbnailDiskCache}, without bytes. */
+    public BitmapHolder(Bitmap diskCachedBitmap) {
+      this.bytes = null;
+      this.fresh = true;
+      this.originalSmallerExtent = -1;
+      this.diskCached = true;
+      this.bitmap = diskCachedBitmap;
+      this.bitmapRef = new SoftReference<>(diskCachedBitmap);
+      this.decodedSampleSize = 1;
+    }
+
+    boolean isDiskCached() {
+      return diskCached;
     }
   }
 
@@ -928,12 +1053,27 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
   }
 
-  /** The thread that performs loading of photos from the database. */
+  /**
+   * A thread that loads photos in the background. There are three of them, so that the photos on
+   * screen don't wait for the others:
+   *
+   * <ul>
+   *   <li>{@link #loaderThread} loads the photos of pending requests, from CP2 or local URIs.
+   *   <li>{@link #preloaderThread} preloads photos into the cache, at a lower priority and only
+   *       while no pending requests are being loaded.
+   *   <li>{@link #remotePhotoLoaderThread} downloads the photos of pending requests with remote
+   *       URIs, each of which can take seconds.
+   * </ul>
+   *
+   * <p>Requests that are no longer pending, e.g. after {@link #cancelPendingRequests(View)} or
+   * because their view was rebound while scrolling, are dropped instead of loaded.
+   */
   private class LoaderThread extends HandlerThread implements Callback {
 
     private static final int BUFFER_SIZE = 1024 * 16;
     private static final int MESSAGE_PRELOAD_PHOTOS = 0;
     private static final int MESSAGE_LOAD_PHOTOS = 1;
+    private static final int MESSAGE_LOAD_REMOTE_PHOTOS = 2;
 
     /** A pause between preload batches that yields to the UI thread. */
     private static final int PHOTO_PRELOAD_DELAY = 1000;
@@ -955,13 +1095,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private final Set<Long> photoIds = new HashSet<>();
     private final Set<String> photoIdsAsStrings = new HashSet<>();
     private final Set<Request> photoUris = new HashSet<>();
+    /** Requests queued on {@link #remotePhotoLoaderThread}, until their photo is loaded. */
+    private final Set<Request> remotePhotoUris = new HashSet<>();
     private final List<Long> preloadPhotoIds = new ArrayList<>();
+    /** Thumbnails decoded by the last batch, to be written to disk. */
+    private final Map<Long, ByteBuffer> diskCacheWrites = new HashMap<>();
     private Handler loaderThreadHandler;
     private byte[] buffer;
     private int preloadStatus = PRELOAD_STATUS_NOT_STARTED;
 
-    public LoaderThread(ContentResolver resolver) {
-      super(LOADER_THREAD_NAME);
+    public LoaderThread(String name, int priority, ContentResolver resolver) {
+      super(name, priority);
       this.resolver = resolver;
     }
 
@@ -983,7 +1127,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       }
 
       ensureHandler();
-      if (loaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+      if (loaderThread.loaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+        // Preloading is requested again once these are loaded.
         return;
       }
 
@@ -996,10 +1141,21 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     public void requestLoading() {
       ensureHandler();
-      loaderThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
+      preloaderThread.loaderThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
       loaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
     }
 
+    /** Sends a message to this thread to download remote photos, unless they are already queued. */
+    public void requestRemoteLoading(Collection<Request> requests) {
+      synchronized (remotePhotoUris) {
+        if (!remotePhotoUris.addAll(requests)) {
+          return;
+        }
+      }
+      ensureHandler();
+      loaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_REMOTE_PHOTOS);
+    }
+
     /**
      * Receives the above message, loads photos and then sends a message to the main thread to
      * process them.
@@ -1013,6 +1169,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         case MESSAGE_LOAD_PHOTOS:
           loadPhotosInBackground();
           break;
+        case MESSAGE_LOAD_REMOTE_PHOTOS:
+          loadRemotePhotosInBackground();
+          break;
       }
       return true;
     }
@@ -1055,11 +1214,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       int preloadSize = preloadPhotoIds.size();
       while (preloadSize > 0 && photoIds.size() < PRELOAD_BATCH) {
         preloadSize--;
-        count++;
         Long photoId = preloadPhotoIds.get(preloadSize);
+        preloadPhotoIds.remove(preloadSize);
+        if (bitmapHolderCache.get(photoId) != null) {
+          // Already loaded for a pending request.
+          continue;
+        }
+        count++;
         photoIds.add(photoId);
         photoIdsAsStrings.add(photoId.toString());
-        preloadPhotoIds.remove(preloadSize);
       }
 
       loadThumbnails(true);
@@ -1115,38 +1278,72 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         return;
       }
       obtainPhotoIdsAndUrisToLoad(photoIds, photoIdsAsStrings, photoUris);
+
+      // Download remote photos on their own thread, so that they don't delay the others.
+      List<Request> remoteRequests = new ArrayList<>();
+      Iterator<Request> iterator = photoUris.iterator();
+      while (iterator.hasNext()) {
+        Request request = iterator.next();
+        if (isRemoteUri(request.getUri())) {
+          remoteRequests.add(request);
+          iterator.remove();
+        }
+      }
+      if (!remoteRequests.isEmpty()) {
+        remotePhotoLoaderThread.requestRemoteLoading(remoteRequests);
+      }
+
       loadThumbnails(false);
-      loadUriBasedPhotos();
-      requestPreloading();
+      loadUriBasedPhotos(photoUris);
+      preloaderThread.requestPreloading();
     }
 
-    /** Loads thumbnail photos with ids */
     @WorkerThread
-    private void loadThumbnails(boolean preloading) {
-      if (photoIds.isEmpty()) {
+    private void loadRemotePhotosInBackground() {
+      photoUris.clear();
+      synchronized (remotePhotoUris) {
+        photoUris.addAll(remotePhotoUris);
+      }
+      if (photoUris.isEmpty()) {
         return;
       }
+      loadUriBasedPhotos(photoUris);
+      synchronized (remotePhotoUris) {
+        remotePhotoUris.removeAll(photoUris);
+      }
+    }
 
-      // Remove loaded photos from the preload queue: we don't want
-      // the preloading process to load them again.
-      if (!preloading && preloadStatus == PRELOAD_STATUS_IN_PROGRESS) {
-        for (Long id : photoIds) {
-          preloadPhotoIds.remove(id);
+    /** Removes the photos whose requests are no longer pending from the photos to load. */
+    private void retainPendingPhotoIds() {
+      Set<Long> pendingPhotoIds = new HashSet<>();
+      for (Request request : pendingRequests.values()) {
+        if (!request.isUriRequest()) {
+          pendingPhotoIds.add(request.getId());
         }
-        if (preloadPhotoIds.isEmpty()) {
-          preloadStatus = PRELOAD_STATUS_DONE;
+      }
+      if (photoIds.retainAll(pendingPhotoIds)) {
+        photoIdsAsStrings.clear();
+        for (Long id : photoIds) {
+          photoIdsAsStrings.add(String.valueOf(id));
         }
       }
+    }
 
-      stringBuilder.setLength(0);
-      stringBuilder.append(Photo._ID + " IN(");
-      for (int i = 0; i < photoIds.size(); i++) {
-        if (i != 0) {
-          stringBuilder.append(',');
-        }
-        stringBuilder.append('?');
+    /** Loads thumbnail photos with ids */
+    @WorkerThread
+    private void loadThumbnails(boolean preloading) {
+      if (photoIds.isEmpty()) {
+        return;
+      }
+
+      loadThumbnailsFromDiskCache();
+      if (!preloading) {
+        // Requests may have been cancelled by scrolling while the disk cache was read.
+        retainPendingPhotoIds();
+      }
+      if (photoIds.isEmpty()) {
+        return;
       }
-      stringBuilder.append(')');
 
       Cursor cursor = null;
       try {
@@ -1159,7 +1356,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             resolver.query(
                 Data.CONTENT_URI,
                 COLUMNS,
-                stringBuilder.toString(),
+                getPhotoIdSelection(photoIdsAsStrings.size()),
                 photoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
                 null);
 
@@ -1167,7 +1364,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           while (cursor.moveToNext()) {
             Long id = cursor.getLong(0);
             byte[] bytes = cursor.getBlob(1);
-            cacheBitmap(id, bytes, preloading, -1);
+            Bitmap bitmap = cacheBitmap(id, bytes, preloading, -1).bitmap;
+            ByteBuffer thumbnail =
+                bitmap == null ? null : ThumbnailDiskCache.encode(cursor.getInt(2), bitmap);
+            if (thumbnail != null) {
+              diskCacheWrites.put(id, thumbnail);
+            }
             photoIds.remove(id);
           }
         }
@@ -1203,6 +1405,87 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       }
 
       mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+      writeThumbnailsToDiskCache();
+    }
+
+    /** Returns a selection for {@code count} photo IDs. */
+    private String getPhotoIdSelection(int count) {
+      stringBuilder.setLength(0);
+      stringBuilder.append(Photo._ID + " IN(");
+      for (int i = 0; i < count; i++) {
+        if (i != 0) {
+          stringBuilder.append(',');
+        }
+        stringBuilder.append('?');
+      }
+      stringBuilder.append(')');
+      return stringBuilder.toString();
+    }
+
+    /**
+     * Loads the thumbnails found in {@link #thumbnailDiskCache} and removes them from the photos to
+     * load. Only the data versions of the photos with a thumbnail on disk are read from CP2, to
+     * skip stale thumbnails.
+     */
+    @WorkerThread
+    private void loadThumbnailsFromDiskCache() {
+      List<String> diskCachedIds = new ArrayList<>();
+      for (long id : photoIds) {
+        if (thumbnailDiskCache.contains(id)) {
+          diskCachedIds.add(String.valueOf(id));
+        }
+      }
+      if (diskCachedIds.isEmpty()) {
+        return;
+      }
+
+      int loaded = 0;
+      Cursor cursor = null;
+      try {
+        cursor =
+            resolver.query(
+                Data.CONTENT_URI,
+                DATA_VERSION_COLUMNS,
+                getPhotoIdSelection(diskCachedIds.size()),
+                diskCachedIds.toArray(EMPTY_STRING_ARRAY),
+                null);
+        if (cursor == null) {
+          return;
+        }
+        while (cursor.moveToNext()) {
+          long id = cursor.getLong(0);
+          Bitmap bitmap = thumbnailDiskCache.get(id, cursor.getInt(1));
+          if (bitmap != null) {
+            cacheDiskCachedBitmap(id, bitmap);
+            photoIds.remove(id);
+            photoIdsAsStrings.remove(String.valueOf(id));
+            loaded++;
+          }
+        }
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
+
+      if (loaded > 0) {
+        // Show these while the remaining photos are read from CP2.
+        mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+      }
+      if (DEBUG) {
+        LogUtil.d(
+            "ContactPhotoManagerImpl.loadThumbnailsFromDiskCache",
+            "loaded " + loaded + " thumbnails from disk");
+      }
+    }
+
+    /** Writes the thumbnails decoded by the last call to {@link #loadThumbnails(boolean)}. */
+    @WorkerThread
+    private void writeThumbnailsToDiskCache() {
+      for (Entry<Long, ByteBuffer> entry : diskCacheWrites.entrySet()) {
+        thumbnailDiskCache.put(entry.getKey(), entry.getValue());
+      }
+      diskCacheWrites.clear();
     }
 
     /**
@@ -1210,8 +1493,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * display photos etc
      */
     @WorkerThread
-    private void loadUriBasedPhotos() {
-      for (Request uriRequest : photoUris) {
+    private void loadUriBasedPhotos(Set<Request> uriRequests) {
+      for (Request uriRequest : uriRequests) {
+        if (!pendingRequests.containsValue(uriRequest)) {
+          // Cancelled since it was queued.
+          continue;
+        }
         // Keep the original URI and use this to key into the cache.  Failure to do so will
         // result in an image being continually reloaded into cache if the original URI
         // has a contact type encodedFragment (eg nearby places business photo URLs).
@@ -1228,9 +1515,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           if (DEBUG) {
             LogUtil.d("ContactPhotoManagerImpl.loadUriBasedPhotos", "loading " + uri);
           }
-          final String scheme = uri.getScheme();
           InputStream is = null;
-          if (scheme.equals("http") || scheme.equals("https")) {
+          if (isRemoteUri(uri)) {
             TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
             try {
               final HttpURLConnection connection =
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.contactphoto;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import com.android.dialer.bitmappool.BitmapPool;
+import com.android.dialer.common.LogUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Size-bounded disk cache of decoded contact thumbnails, so that avatars can be shown after a
+ * restart without reading and decoding the photo blobs from CP2 again.
+ *
+ * <p>Each thumbnail is stored in its own file as the raw pixels of an ARGB_8888 bitmap, which are
+ * memory-mapped and copied straight into a bitmap from the {@link BitmapPool} when read. Files are
+ * named after the photo ID and the thumbnail size they were decoded for.
+ *
+ * <p>Layout, all values little endian ints:
+ *
+ * <ul>
+ *   <li>Header: magic, format version, {@link android.provider.ContactsContract.Data#DATA_VERSION}
+ *       of the photo, width, height
+ *   <li>Pixels: width * height * 4 bytes
+ * </ul>
+ *
+ * <p>CP2 updates a photo in place, so the data version is what identifies its content. A
+ * thumbnail whose data version differs from the caller's is stale; it is deleted and never
+ * returned.
+ *
+ * <p>When the cache grows beyond its maximum size, the least recently used files are deleted.
+ * Methods are synchronized, as the loader and preloader threads of {@link ContactPhotoManagerImpl}
+ * both use the cache.
+ */
+final class ThumbnailDiskCache {
+
+  private static final int MAGIC = 0x44544843; // "DTHC"
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 20;
+  private static final int HEADER_DATA_VERSION = 8;
+  private static final int HEADER_WIDTH = 12;
+  private static final int HEADER_HEIGHT = 16;
+
+  private static final int BYTES_PER_PIXEL = 4;
+
+  private final File directory;
+  private final int thumbnailSize;
+  private final long maxSizeBytes;
+
+  /** Total size of the files in {@link #directory}, or -1 until it has been read. */
+  private long sizeBytes = -1;
+
+  ThumbnailDiskCache(File directory, int thumbnailSize, long maxSizeBytes) {
+    this.directory = directory;
+    this.thumbnailSize = thumbnailSize;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * Returns the thumbnail of the photo with the given ID, read from its memory-mapped file.
+   *
+   * @return null if there is no thumbnail for the photo, or if it is stale or corrupt.
+   */
+  @WorkerThread
+  @Nullable
+  synchronized Bitmap get(long photoId, int dataVersion) {
+    File file = getFile(photoId);
+    if (!file.exists()) {
+      return null;
+    }
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel()) {
+      ByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+              .order(ByteOrder.LITTLE_ENDIAN);
+      if (!isValid(buffer, dataVersion)) {
+        LogUtil.i("ThumbnailDiskCache.get", "discarding stale thumbnail for photo %d", photoId);
+        delete(file);
+        return null;
+      }
+      // All pixels are overwritten, so a dirty bitmap will do.
+      Bitmap bitmap =
+          BitmapPool.getInstance()
+              .getDirty(
+                  buffer.getInt(HEADER_WIDTH),
+                  buffer.getInt(HEADER_HEIGHT),
+                  Bitmap.Config.ARGB_8888);
+      buffer.position(HEADER_SIZE);
+      bitmap.copyPixelsFromBuffer(buffer);
+      // Keep recently used thumbnails from being evicted.
+      file.setLastModified(System.currentTimeMillis());
+      return bitmap;
+    } catch (IOException e) {
+      LogUtil.e("ThumbnailDiskCache.get", "failed to map thumbnail", e);
+      return null;
+    } catch (OutOfMemoryError e) {
+      // The photo will be loaded from CP2 instead.
+      return null;
+    }
+  }
+
+  /** Returns whether a file exists for the photo with the given ID, which may still be stale. */
+  @WorkerThread
+  synchronized boolean contains(long photoId) {
+    return getFile(photoId).exists();
+  }
+
+  /**
+   * Copies a thumbnail into a buffer to be {@link #put(long, ByteBuffer)} later. The copy is taken
+   * right after decoding, as the bitmap may later be reused through the {@link BitmapPool}.
+   *
+   * @return null if the thumbnail can't be stored.
+   */
+  @Nullable
+  static ByteBuffer encode(int dataVersion, Bitmap bitmap) {
+    if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+      return null;
+    }
+    ByteBuffer buffer;
+    try {
+      buffer =
+          ByteBuffer.allocate(HEADER_SIZE + bitmap.getByteCount()).order(ByteOrder.LITTLE_ENDIAN);
+    } catch (OutOfMemoryError e) {
+      return null;
+    }
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(dataVersion);
+    buffer.putInt(bitmap.getWidth());
+    buffer.putInt(bitmap.getHeight());
+    bitmap.copyPixelsToBuffer(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Atomically writes a thumbnail returned by {@link #encode(int, Bitmap)} for the photo with the
+   * given ID, evicting others if needed.
+   */
+  @WorkerThread
+  synchronized void put(long photoId, ByteBuffer buffer) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      LogUtil.w("ThumbnailDiskCache.put", "failed to create %s", directory);
+      return;
+    }
+    ensureSizeRead();
+
+    File file = getFile(photoId);
+    long previousSize = file.length();
+    File tempFile = null;
+    try {
+      // A unique temp file, so that concurrent writers never rename each other's partial files.
+      tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+      try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+        outputStream.getChannel().write(buffer);
+      }
+    } catch (IOException e) {
+      LogUtil.e("ThumbnailDiskCache.put", "failed to write thumbnail", e);
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+      return;
+    }
+    if (!tempFile.renameTo(file)) {
+      LogUtil.w("ThumbnailDiskCache.put", "failed to rename %s", tempFile);
+      tempFile.delete();
+      return;
+    }
+    sizeBytes += file.length() - previousSize;
+    if (sizeBytes > maxSizeBytes) {
+      trimToSize();
+    }
+  }
+
+  private File getFile(long photoId) {
+    return new File(directory, photoId + "_" + thumbnailSize);
+  }
+
+  private static boolean isValid(ByteBuffer buffer, int dataVersion) {
+    if (buffer.capacity() < HEADER_SIZE
+        || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != VERSION
+        || buffer.getInt(HEADER_DATA_VERSION) != dataVersion) {
+      return false;
+    }
+    long width = buffer.getInt(HEADER_WIDTH);
+    long height = buffer.getInt(HEADER_HEIGHT);
+    return width > 0
+        && height > 0
+        && buffer.capacity() == HEADER_SIZE + width * height * BYTES_PER_PIXEL;
+  }
+
+  private void ensureSizeRead() {
+    if (sizeBytes >= 0) {
+      return;
+    }
+    sizeBytes = 0;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        sizeBytes += file.length();
+      }
+    }
+  }
+
+  /** Deletes the least recently used files until the cache is back to 3/4 of its maximum size. */
+  private void trimToSize() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(
+        files,
+        new Comparator<File>() {
+          @Override
+          public int compare(File first, File second) {
+            return Long.compare(first.lastModified(), second.lastModified());
+          }
+        });
+    long targetSizeBytes = maxSizeBytes / 4 * 3;
+    for (int i = 0; i < files.length && sizeBytes > targetSizeBytes; i++) {
+      delete(files[i]);
+    }
+    LogUtil.v("ThumbnailDiskCache.trimToSize", "trimmed to %d bytes", sizeBytes);
+  }
+
+  private void delete(File file) {
+    long length = file.length();
+    if (file.delete() && sizeBytes >= 0) {
+      sizeBytes -= length;
+    }
+  }
+}
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -41,13 +42,16 @@ import com.android.contacts.common.util.StopWatch;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.DialerExecutor.Worker;
 import com.android.dialer.common.concurrent.DialerExecutorComponent;
-import com.android.dialer.common.database.Selection;
+import com.android.dialer.compat.CompatUtils;
 import com.android.dialer.configprovider.ConfigProviderBindings;
+import com.android.dialer.contactchanges.ContactChangeFeedComponent;
+import com.android.dialer.contactchanges.ContactChanges;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
 import com.android.dialer.smartdial.util.SmartDialNameMatcher;
 import com.android.dialer.smartdial.util.SmartDialPrefix;
 import com.android.dialer.util.PermissionsUtil;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
@@ -65,7 +69,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    *   0-98   KitKat
    * </pre>
    */
-  public static final int DATABASE_VERSION = 10;
+  public static final int DATABASE_VERSION = 11;
 
   public static final String DATABASE_NAME = "dialer.db";
 
@@ -84,12 +88,59 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   private static final String DATABASE_VERSION_PROPERTY = "database_version";
   private static final int MAX_ENTRIES = 20;
 
+  /** Rows written per transaction while rebuilding the smart dial tables. */
+  private static final int UPDATE_BATCH_SIZE = 500;
+
+  /** Property holding the prefix table row count at the time of the last ANALYZE. */
+  private static final String ANALYZED_ROW_COUNT_PROPERTY = "analyzed_row_count";
+
+  /**
+   * Language the stored {@link SmartDialDbColumns#DIALPAD_NAME}s were computed for. The dialpad
+   * mapping depends on the locale, so a change forces a full rebuild.
+   */
+  private static final String DIALPAD_NAME_LANGUAGE_PROPERTY = "dialpad_name_language";
+
+  /** How much the prefix table has to grow or shrink, in percent, before it is re-analyzed. */
+  private static final int ANALYZE_ROW_COUNT_CHANGE_PERCENT = 10;
+
+  /** The most contacts whose rows a {@link SmartDialSearchSession} keeps between keystrokes. */
+  private static final int MAX_SESSION_CANDIDATE_CONTACTS = 2000;
+
+  /** Columns read by {@link #getLooseMatches}, in the order of the column indices used there. */
+  private static final String LOOSE_MATCH_COLUMNS =
+      SmartDialDbColumns.DATA_ID
+          + ", "
+          + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+          + ", "
+          + SmartDialDbColumns.PHOTO_ID
+          + ", "
+          + SmartDialDbColumns.NUMBER
+          + ", "
+          + SmartDialDbColumns.CONTACT_ID
+          + ", "
+          + SmartDialDbColumns.LOOKUP_KEY
+          + ", "
+          + SmartDialDbColumns.CARRIER_PRESENCE
+          + ", "
+          + SmartDialDbColumns.DIALPAD_NAME;
+
   private final Context context;
   private boolean isTestInstance = false;
 
+  /**
+   * In-memory copy of {@link Tables#PREFIX_TABLE}, rebuilt after every smart dial update. Null until
+   * the first query or update loads it.
+   */
+  @Nullable private volatile SmartDialPrefixTrie prefixTrie;
+
+  /** Guards loading {@link #prefixTrie}, so a lazy load can't overwrite a newer trie. */
+  private final Object prefixTrieLock = new Object();
+
   protected DialerDatabaseHelper(Context context, String databaseName, int dbVersion) {
     super(context, databaseName, null, dbVersion);
     this.context = Objects.requireNonNull(context, "Context must not be null");
+    // Lets dialpad lookups read the last committed snapshot while an update is writing.
+    setWriteAheadLoggingEnabled(true);
   }
 
   public void setIsTestInstance(boolean isTestInstance) {
@@ -108,9 +159,56 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
   private void setupTables(SQLiteDatabase db) {
     dropTables(db);
+    createSmartDialTable(db, Tables.SMARTDIAL_TABLE);
+    createPrefixTable(db, Tables.PREFIX_TABLE);
+
     db.execSQL(
         "CREATE TABLE "
-            + Tables.SMARTDIAL_TABLE
+            + Tables.PROPERTIES
+            + " ("
+            + PropertiesColumns.PROPERTY_KEY
+            + " TEXT PRIMARY KEY, "
+            + PropertiesColumns.PROPERTY_VALUE
+            + " TEXT "
+            + ");");
+
+    // This will need to also be updated in setupTablesForFilteredNumberTest and onUpgrade.
+    // Hardcoded so we know on glance what columns are updated in setupTables,
+    // and to be able to guarantee the state of the DB at each upgrade step.
+    db.execSQL(
+        "CREATE TABLE "
+            + Tables.FILTERED_NUMBER_TABLE
+            + " ("
+            + FilteredNumberColumns._ID
+            + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + FilteredNumberColumns.NORMALIZED_NUMBER
+            + " TEXT UNIQUE,"
+            + FilteredNumberColumns.NUMBER
+            + " TEXT,"
+            + FilteredNumberColumns.COUNTRY_ISO
+            + " TEXT,"
+            + FilteredNumberColumns.TIMES_FILTERED
+            + " INTEGER,"
+            + FilteredNumberColumns.LAST_TIME_FILTERED
+            + " LONG,"
+            + FilteredNumberColumns.CREATION_TIME
+            + " LONG,"
+            + FilteredNumberColumns.TYPE
+            + " INTEGER,"
+            + FilteredNumberColumns.SOURCE
+            + " INTEGER"
+            + ");");
+
+    setProperty(db, DATABASE_VERSION_PROPERTY, String.valueOf(DATABASE_VERSION));
+    if (!isTestInstance) {
+      resetSmartDialLastUpdatedTime();
+    }
+  }
+
+  private static void createSmartDialTable(SQLiteDatabase db, String smartDialTable) {
+    db.execSQL(
+        "CREATE TABLE "
+            + smartDialTable
             + " ("
             + SmartDialDbColumns._ID
             + " INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -141,12 +239,16 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + SmartDialDbColumns.IS_PRIMARY
             + " INTEGER, "
             + SmartDialDbColumns.CARRIER_PRESENCE
-            + " INTEGER NOT NULL DEFAULT 0"
+            + " INTEGER NOT NULL DEFAULT 0, "
+            + SmartDialDbColumns.DIALPAD_NAME
+            + " TEXT"
             + ");");
+  }
 
+  private static void createPrefixTable(SQLiteDatabase db, String prefixTable) {
     db.execSQL(
         "CREATE TABLE "
-            + Tables.PREFIX_TABLE
+            + prefixTable
             + " ("
             + PrefixColumns._ID
             + " INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -155,56 +257,17 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + PrefixColumns.CONTACT_ID
             + " INTEGER"
             + ");");
-
-    db.execSQL(
-        "CREATE TABLE "
-            + Tables.PROPERTIES
-            + " ("
-            + PropertiesColumns.PROPERTY_KEY
-            + " TEXT PRIMARY KEY, "
-            + PropertiesColumns.PROPERTY_VALUE
-            + " TEXT "
-            + ");");
-
-    // This will need to also be updated in setupTablesForFilteredNumberTest and onUpgrade.
-    // Hardcoded so we know on glance what columns are updated in setupTables,
-    // and to be able to guarantee the state of the DB at each upgrade step.
-    db.execSQL(
-        "CREATE TABLE "
-            + Tables.FILTERED_NUMBER_TABLE
-            + " ("
-            + FilteredNumberColumns._ID
-            + " INTEGER PRIMARY KEY AUTOINCREMENT,"
-            + FilteredNumberColumns.NORMALIZED_NUMBER
-            + " TEXT UNIQUE,"
-            + FilteredNumberColumns.NUMBER
-            + " TEXT,"
-            + FilteredNumberColumns.COUNTRY_ISO
-            + " TEXT,"
-            + FilteredNumberColumns.TIMES_FILTERED
-            + " INTEGER,"
-            + FilteredNumberColumns.LAST_TIME_FILTERED
-            + " LONG,"
-            + FilteredNumberColumns.CREATION_TIME
-            + " LONG,"
-            + FilteredNumberColumns.TYPE
-            + " INTEGER,"
-            + FilteredNumberColumns.SOURCE
-            + " INTEGER"
-            + ");");
-
-    setProperty(db, DATABASE_VERSION_PROPERTY, String.valueOf(DATABASE_VERSION));
-    if (!isTestInstance) {
-      resetSmartDialLastUpdatedTime();
-    }
   }
 
   public void dropTables(SQLiteDatabase db) {
+    prefixTrie = null;
     db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_TABLE);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_TABLE);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.PROPERTIES);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.FILTERED_NUMBER_TABLE);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.VOICEMAIL_ARCHIVE_TABLE);
+    db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_SHADOW_TABLE);
+    db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_SHADOW_TABLE);
   }
 
   @Override
@@ -264,6 +327,11 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       oldVersion = 10;
     }
 
+    if (oldVersion < 11) {
+      upgradeToVersion11(db);
+      oldVersion = 11;
+    }
+
     if (oldVersion != DATABASE_VERSION) {
       throw new IllegalStateException(
           "error upgrading the database to version " + DATABASE_VERSION);
@@ -276,6 +344,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     db.execSQL("ALTER TABLE smartdial_table ADD carrier_presence INTEGER NOT NULL DEFAULT 0");
   }
 
+  public void upgradeToVersion11(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE smartdial_table ADD dialpad_name TEXT");
+    // Existing rows have no dialpad name yet; reload all of them on the next update.
+    resetSmartDialLastUpdatedTime();
+  }
+
   /** Stores a key-value pair in the {@link Tables#PROPERTIES} table. */
   public void setProperty(String key, String value) {
     setProperty(getWritableDatabase(), key, value);
@@ -353,69 +427,32 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   }
 
   /**
-   * Removes rows in the smartdial database that matches the contacts that have been deleted by
-   * other apps since last update.
+   * Removes rows in the smartdial database that belong to the given contacts.
    *
    * @param db Database to operate on.
-   * @param lastUpdatedTimeMillis the last time at which an update to the smart dial database was
-   *     run.
+   * @param statements Compiled statements for {@code db}.
+   * @param contactIds IDs of the contacts to remove.
    */
-  private void removeDeletedContacts(SQLiteDatabase db, String lastUpdatedTimeMillis) {
-    Cursor deletedContactCursor = getDeletedContactCursor(lastUpdatedTimeMillis);
-
-    if (deletedContactCursor == null) {
+  private void removeContacts(
+      SQLiteDatabase db, SmartDialStatements statements, Set<Long> contactIds) {
+    if (contactIds.isEmpty()) {
       return;
     }
 
     db.beginTransaction();
     try {
-      if (!deletedContactCursor.moveToFirst()) {
-        return;
+      int batchCount = 0;
+      for (long contactId : contactIds) {
+        statements.deleteContact(contactId);
+        batchCount = commitIfBatchFull(db, statements, batchCount + 1);
       }
 
-      do {
-        if (deletedContactCursor.isNull(DeleteContactQuery.DELETED_CONTACT_ID)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.removeDeletedContacts",
-              "contact_id column null. Row was deleted during iteration, skipping");
-          continue;
-        }
-
-        long deleteContactId = deletedContactCursor.getLong(DeleteContactQuery.DELETED_CONTACT_ID);
-
-        Selection smartDialSelection =
-            Selection.column(SmartDialDbColumns.CONTACT_ID).is("=", deleteContactId);
-        db.delete(
-            Tables.SMARTDIAL_TABLE,
-            smartDialSelection.getSelection(),
-            smartDialSelection.getSelectionArgs());
-
-        Selection prefixSelection =
-            Selection.column(PrefixColumns.CONTACT_ID).is("=", deleteContactId);
-        db.delete(
-            Tables.PREFIX_TABLE,
-            prefixSelection.getSelection(),
-            prefixSelection.getSelectionArgs());
-      } while (deletedContactCursor.moveToNext());
-
       db.setTransactionSuccessful();
     } finally {
-      deletedContactCursor.close();
       db.endTransaction();
     }
   }
 
-  private Cursor getDeletedContactCursor(String lastUpdateMillis) {
-    return context
-        .getContentResolver()
-        .query(
-            DeleteContactQuery.URI,
-            DeleteContactQuery.PROJECTION,
-            DeleteContactQuery.SELECT_UPDATED_CLAUSE,
-            new String[] {lastUpdateMillis},
-            null);
-  }
-
   /**
    * Removes potentially corrupted entries in the database. These contacts may be added before the
    * previous instance of the dialer was destroyed for some reason. For data integrity, we delete
@@ -445,37 +482,6 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         null);
   }
 
-  /**
-   * Removes rows in the smartdial database that matches updated contacts.
-   *
-   * @param db Database pointer to the smartdial database
-   * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
-   */
-  @VisibleForTesting
-  void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
-    db.beginTransaction();
-    try {
-      updatedContactCursor.moveToPosition(-1);
-      while (updatedContactCursor.moveToNext()) {
-        if (updatedContactCursor.isNull(UpdatedContactQuery.UPDATED_CONTACT_ID)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.removeUpdatedContacts",
-              "contact_id column null. Row was deleted during iteration, skipping");
-          continue;
-        }
-
-        final Long contactId = updatedContactCursor.getLong(UpdatedContactQuery.UPDATED_CONTACT_ID);
-
-        db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" + contactId, null);
-        db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" + contactId, null);
-      }
-
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
-    }
-  }
-
   /**
    * Inserts updated contacts as rows to the smartdial table.
    *
@@ -486,54 +492,24 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   @VisibleForTesting
   protected void insertUpdatedContactsAndNumberPrefix(
       SQLiteDatabase db, Cursor updatedContactCursor, Long currentMillis) {
+    try (SmartDialStatements statements =
+        new SmartDialStatements(
+            db, Tables.SMARTDIAL_TABLE, Tables.PREFIX_TABLE, /* commitInBatches = */ false)) {
+      insertUpdatedContactsAndNumberPrefix(db, statements, updatedContactCursor, currentMillis);
+    }
+  }
+
+  private void insertUpdatedContactsAndNumberPrefix(
+      SQLiteDatabase db,
+      SmartDialStatements statements,
+      Cursor updatedContactCursor,
+      long currentMillis) {
+    final SQLiteStatement insert = statements.insertContact;
+    final SQLiteStatement numberInsert = statements.insertPrefix;
+
     db.beginTransaction();
     try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.SMARTDIAL_TABLE
-              + " ("
-              + SmartDialDbColumns.DATA_ID
-              + ", "
-              + SmartDialDbColumns.NUMBER
-              + ", "
-              + SmartDialDbColumns.CONTACT_ID
-              + ", "
-              + SmartDialDbColumns.LOOKUP_KEY
-              + ", "
-              + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-              + ", "
-              + SmartDialDbColumns.PHOTO_ID
-              + ", "
-              + SmartDialDbColumns.LAST_TIME_USED
-              + ", "
-              + SmartDialDbColumns.TIMES_USED
-              + ", "
-              + SmartDialDbColumns.STARRED
-              + ", "
-              + SmartDialDbColumns.IS_SUPER_PRIMARY
-              + ", "
-              + SmartDialDbColumns.IN_VISIBLE_GROUP
-              + ", "
-              + SmartDialDbColumns.IS_PRIMARY
-              + ", "
-              + SmartDialDbColumns.CARRIER_PRESENCE
-              + ", "
-              + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-              + ") "
-              + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
-      final String numberSqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
-
+      int batchCount = 0;
       updatedContactCursor.moveToPosition(-1);
       while (updatedContactCursor.moveToNext()) {
         insert.clearBindings();
@@ -562,14 +538,15 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
           insert.bindString(4, lookupKey);
         }
 
-        final String displayName = updatedContactCursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
+        String displayName = updatedContactCursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
         if (displayName == null) {
-          insert.bindString(5, context.getResources().getString(R.string.missing_name));
-        } else {
-          insert.bindString(5, displayName);
+          displayName = context.getResources().getString(R.string.missing_name);
         }
+        insert.bindString(5, displayName);
+        insert.bindString(15, SmartDialNameMatcher.toDialpadName(context, displayName));
+        final long contactId = updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
         insert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
-        insert.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+        insert.bindLong(3, contactId);
         insert.bindLong(6, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
         insert.bindLong(7, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
         insert.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
@@ -580,16 +557,16 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         insert.bindLong(13, updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
         insert.bindLong(14, currentMillis);
         insert.executeInsert();
-        final String contactPhoneNumber = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
         final ArrayList<String> numberPrefixes =
-            SmartDialPrefix.parseToNumberTokens(context, contactPhoneNumber);
+            SmartDialPrefix.parseToNumberTokens(context, number);
 
         for (String numberPrefix : numberPrefixes) {
-          numberInsert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+          numberInsert.bindLong(1, contactId);
           numberInsert.bindString(2, numberPrefix);
           numberInsert.executeInsert();
           numberInsert.clearBindings();
         }
+        batchCount = commitIfBatchFull(db, statements, batchCount + 1);
       }
 
       db.setTransactionSuccessful();
@@ -606,22 +583,22 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    */
   @VisibleForTesting
   void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
+    try (SmartDialStatements statements =
+        new SmartDialStatements(
+            db, Tables.SMARTDIAL_TABLE, Tables.PREFIX_TABLE, /* commitInBatches = */ false)) {
+      insertNamePrefixes(db, statements, nameCursor);
+    }
+  }
+
+  private void insertNamePrefixes(
+      SQLiteDatabase db, SmartDialStatements statements, Cursor nameCursor) {
     final int columnIndexName = nameCursor.getColumnIndex(SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
     final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
+    final SQLiteStatement insert = statements.insertPrefix;
 
     db.beginTransaction();
     try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
+      int batchCount = 0;
       while (nameCursor.moveToNext()) {
         if (nameCursor.isNull(columnIndexContactId)) {
           LogUtil.i(
@@ -633,13 +610,15 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         /** Computes a list of prefixes of a given contact name. */
         final ArrayList<String> namePrefixes =
             SmartDialPrefix.generateNamePrefixes(context, nameCursor.getString(columnIndexName));
+        final long contactId = nameCursor.getLong(columnIndexContactId);
 
         for (String namePrefix : namePrefixes) {
-          insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
+          insert.bindLong(1, contactId);
           insert.bindString(2, namePrefix);
           insert.executeInsert();
           insert.clearBindings();
         }
+        batchCount = commitIfBatchFull(db, statements, batchCount + 1);
       }
 
       db.setTransactionSuccessful();
@@ -648,12 +627,41 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
   }
 
+  /**
+   * Commits the current transaction and starts a new one once {@code batchCount} reaches {@link
+   * #UPDATE_BATCH_SIZE}, so that a full rebuild doesn't hold the database lock in one go.
+   *
+   * <p>Only the shadow tables of a full rebuild are committed in batches. Nobody reads them until
+   * they are swapped in, and a partial rebuild is dropped by the next one, since {@link
+   * #LAST_UPDATED_MILLIS} is only advanced once the update completes. A delta update writes the
+   * live tables and is applied in a single transaction.
+   *
+   * @return The number of rows in the transaction that is now open.
+   */
+  private static int commitIfBatchFull(
+      SQLiteDatabase db, SmartDialStatements statements, int batchCount) {
+    if (!statements.commitInBatches || batchCount < UPDATE_BATCH_SIZE) {
+      return batchCount;
+    }
+    db.setTransactionSuccessful();
+    db.endTransaction();
+    db.beginTransaction();
+    return 0;
+  }
+
   /**
    * Updates the smart dial and prefix database. This method queries the Delta API to get changed
    * contacts since last update, and updates the records in smartdial database and prefix database
    * accordingly. It also queries the deleted contact database to remove newly deleted contacts
    * since last update.
    *
+   * <p>A full rebuild (forced, or the first one) is written into {@link
+   * Tables#SMARTDIAL_SHADOW_TABLE} and {@link Tables#PREFIX_SHADOW_TABLE}, which have no indexes
+   * while they are filled, and then swapped in with a rename. Together with write-ahead logging
+   * this means {@link #getLooseMatches} keeps reading the previous data, without waiting, until the
+   * swap commits. A delta update is small and is applied to the live tables in place, in a single
+   * transaction, so that readers never see it half applied.
+   *
    * @param forceUpdate If set to true, update the database by reloading all contacts.
    */
   @WorkerThread
@@ -675,7 +683,13 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     long sharedPrefLastUpdateMillis =
         databaseLastUpdateSharedPref.getLong(LAST_UPDATED_MILLIS, defaultLastUpdateMillis);
 
-    final String lastUpdateMillis = String.valueOf(forceUpdate ? 0 : sharedPrefLastUpdateMillis);
+    final String dialpadNameLanguage = CompatUtils.getLocale(context).getISO3Language();
+    final boolean dialpadNameLanguageChanged =
+        !dialpadNameLanguage.equals(getProperty(db, DIALPAD_NAME_LANGUAGE_PROPERTY, ""));
+
+    final String lastUpdateMillis =
+        String.valueOf(forceUpdate || dialpadNameLanguageChanged ? 0 : sharedPrefLastUpdateMillis);
+    final boolean isFullRebuild = lastUpdateMillis.equals("0");
 
     LogUtil.i(
         "DialerDatabaseHelper.updateSmartDialDatabase", "last updated at %s", lastUpdateMillis);
@@ -687,112 +701,189 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       stopWatch.lap("Queried the Contacts database");
     }
 
-    /** Removes contacts that have been deleted. */
-    removeDeletedContacts(db, lastUpdateMillis);
-    removePotentiallyCorruptedContacts(db, lastUpdateMillis);
-
-    if (DEBUG) {
-      stopWatch.lap("Finished deleting deleted entries");
-    }
+    /** Tables written by this update. */
+    final String smartDialTable =
+        isFullRebuild ? Tables.SMARTDIAL_SHADOW_TABLE : Tables.SMARTDIAL_TABLE;
+    final String prefixTable = isFullRebuild ? Tables.PREFIX_SHADOW_TABLE : Tables.PREFIX_TABLE;
 
-    /**
-     * If the database did not exist before, jump through deletion as there is nothing to delete.
-     */
-    if (!lastUpdateMillis.equals("0")) {
+    if (isFullRebuild) {
       /**
-       * Removes contacts that have been updated. Updated contact information will be inserted
-       * later. Note that this has to use a separate result set from updatePhoneCursor, since it is
-       * possible for a contact to be updated (e.g. phone number deleted), but have no results show
-       * up in updatedPhoneCursor (since all of its phone numbers have been deleted).
+       * Every row is about to be reloaded, so there is no point in looking up deleted or updated
+       * contacts. The shadow tables get no indexes until they are swapped in, so the bulk insert
+       * below doesn't maintain them row by row.
        */
-      final Cursor updatedContactCursor =
-          context
-              .getContentResolver()
-              .query(
-                  UpdatedContactQuery.URI,
-                  UpdatedContactQuery.PROJECTION,
-                  UpdatedContactQuery.SELECT_UPDATED_CLAUSE,
-                  new String[] {lastUpdateMillis},
-                  null);
-      if (updatedContactCursor == null) {
-        LogUtil.e(
-            "DialerDatabaseHelper.updateSmartDialDatabase",
-            "smartDial query received null for cursor");
-        return;
-      }
+      db.beginTransaction();
       try {
-        removeUpdatedContacts(db, updatedContactCursor);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_SHADOW_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_SHADOW_TABLE);
+        createSmartDialTable(db, Tables.SMARTDIAL_SHADOW_TABLE);
+        createPrefixTable(db, Tables.PREFIX_SHADOW_TABLE);
+        db.setTransactionSuccessful();
       } finally {
-        updatedContactCursor.close();
+        db.endTransaction();
       }
       if (DEBUG) {
-        stopWatch.lap("Finished deleting entries belonging to updated contacts");
+        stopWatch.lap("Created shadow tables for full rebuild");
       }
     }
 
-    /**
-     * Queries the contact database to get all phone numbers that have been updated since the last
-     * update time.
-     */
-    final Cursor updatedPhoneCursor =
-        context
-            .getContentResolver()
-            .query(
-                PhoneQuery.URI,
-                PhoneQuery.PROJECTION,
-                PhoneQuery.SELECTION,
-                new String[] {lastUpdateMillis},
-                null);
-    if (updatedPhoneCursor == null) {
-      LogUtil.e(
-          "DialerDatabaseHelper.updateSmartDialDatabase",
-          "smartDial query received null for cursor");
-      return;
-    }
-
-    try {
-      /** Inserts recently updated phone numbers to the smartdial database. */
-      insertUpdatedContactsAndNumberPrefix(db, updatedPhoneCursor, currentMillis);
-      if (DEBUG) {
-        stopWatch.lap("Finished building the smart dial table");
+    try (SmartDialStatements statements =
+        new SmartDialStatements(db, smartDialTable, prefixTable, isFullRebuild)) {
+      // A delta update writes the live tables, so all of it is applied in one transaction, which
+      // the steps below join. Returning early rolls it back.
+      if (!isFullRebuild) {
+        db.beginTransaction();
       }
-    } finally {
-      updatedPhoneCursor.close();
-    }
-
-    /**
-     * Gets a list of distinct contacts which have been updated, and adds the name prefixes of these
-     * contacts to the prefix table.
-     */
-    final Cursor nameCursor =
-        db.rawQuery(
-            "SELECT DISTINCT "
-                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-                + ", "
-                + SmartDialDbColumns.CONTACT_ID
-                + " FROM "
-                + Tables.SMARTDIAL_TABLE
-                + " WHERE "
-                + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-                + " = "
-                + currentMillis,
-            new String[] {});
-    if (nameCursor != null) {
       try {
-        if (DEBUG) {
-          stopWatch.lap("Queried the smart dial table for contact names");
+        if (!isFullRebuild) {
+          /** Gets the contacts deleted and updated since the last update from the shared feed. */
+          final ContactChanges contactChanges =
+              ContactChangeFeedComponent.get(context)
+                  .contactChangeFeed()
+                  .getChangesSince(
+                      "DialerDatabaseHelper.updateSmartDialDatabase",
+                      Long.parseLong(lastUpdateMillis));
+          if (contactChanges == null) {
+            LogUtil.e(
+                "DialerDatabaseHelper.updateSmartDialDatabase",
+                "couldn't read contact changes, not updating");
+            return;
+          }
+
+          /** Removes contacts that have been deleted. */
+          removeContacts(db, statements, contactChanges.deletedContactIds());
+          removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+
+          if (DEBUG) {
+            stopWatch.lap("Finished deleting deleted entries");
+          }
+
+          /**
+           * Removes contacts that have been updated. Updated contact information will be inserted
+           * later. Note that this has to use a separate result set from updatePhoneCursor, since
+           * it is possible for a contact to be updated (e.g. phone number deleted), but have no
+           * results show up in updatedPhoneCursor (since all of its phone numbers have been
+           * deleted).
+           */
+          removeContacts(db, statements, contactChanges.updatedContactIds());
+          if (DEBUG) {
+            stopWatch.lap("Finished deleting entries belonging to updated contacts");
+          }
+        }
+
+        /**
+         * Queries the contact database to get all phone numbers that have been updated since the
+         * last update time.
+         */
+        final Cursor updatedPhoneCursor =
+            context
+                .getContentResolver()
+                .query(
+                    PhoneQuery.URI,
+                    PhoneQuery.PROJECTION,
+                    PhoneQuery.SELECTION,
+                    new String[] {lastUpdateMillis},
+                    null);
+        if (updatedPhoneCursor == null) {
+          LogUtil.e(
+              "DialerDatabaseHelper.updateSmartDialDatabase",
+              "smartDial query received null for cursor");
+          return;
         }
 
-        /** Inserts prefixes of names into the prefix table. */
-        insertNamePrefixes(db, nameCursor);
-        if (DEBUG) {
-          stopWatch.lap("Finished building the name prefix table");
+        try {
+          /** Inserts recently updated phone numbers to the smartdial database. */
+          insertUpdatedContactsAndNumberPrefix(db, statements, updatedPhoneCursor, currentMillis);
+          if (DEBUG) {
+            stopWatch.lap("Finished building the smart dial table");
+          }
+        } finally {
+          updatedPhoneCursor.close();
+        }
+
+        /**
+         * Gets a list of distinct contacts which have been updated, and adds the name prefixes of
+         * these contacts to the prefix table.
+         */
+        final Cursor nameCursor =
+            db.rawQuery(
+                "SELECT DISTINCT "
+                    + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+                    + ", "
+                    + SmartDialDbColumns.CONTACT_ID
+                    + " FROM "
+                    + smartDialTable
+                    + " WHERE "
+                    + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+                    + " = "
+                    + currentMillis,
+                new String[] {});
+        if (nameCursor != null) {
+          try {
+            if (DEBUG) {
+              stopWatch.lap("Queried the smart dial table for contact names");
+            }
+
+            /** Inserts prefixes of names into the prefix table. */
+            insertNamePrefixes(db, statements, nameCursor);
+            if (DEBUG) {
+              stopWatch.lap("Finished building the name prefix table");
+            }
+          } finally {
+            nameCursor.close();
+          }
+        }
+        if (!isFullRebuild) {
+          db.setTransactionSuccessful();
         }
       } finally {
-        nameCursor.close();
+        if (!isFullRebuild) {
+          db.endTransaction();
+        }
       }
     }
 
+    if (isFullRebuild) {
+      swapInShadowTables(db);
+      if (DEBUG) {
+        stopWatch.lap(TAG + "Finished swapping in shadow tables");
+      }
+    } else {
+      /** Makes sure the indexes exist; a no-op unless they were lost. */
+      createSmartDialIndexes(db);
+      if (DEBUG) {
+        stopWatch.lap(TAG + "Finished recreating index");
+      }
+    }
+
+    /** Updates the database index statistics if the tables changed enough to matter. */
+    analyzeIfNeeded(db, isFullRebuild);
+    if (DEBUG) {
+      stopWatch.lap(TAG + "Finished updating index stats");
+    }
+
+    synchronized (prefixTrieLock) {
+      prefixTrie = loadPrefixTrie(db);
+    }
+    if (DEBUG) {
+      stopWatch.stopAndLog(TAG + "Finished rebuilding prefix trie", 0);
+    }
+
+    setProperty(db, DIALPAD_NAME_LANGUAGE_PROPERTY, dialpadNameLanguage);
+
+    final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
+    editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
+    editor.apply();
+
+    LogUtil.i("DialerDatabaseHelper.updateSmartDialDatabase", "broadcasting smart dial update");
+
+    // Notify content observers that smart dial database has been updated.
+    Intent intent = new Intent(ACTION_SMART_DIAL_UPDATED);
+    intent.setPackage(context.getPackageName());
+    context.sendBroadcast(intent);
+  }
+
+  private static void createSmartDialIndexes(SQLiteDatabase db) {
     /** Creates index on contact_id for fast JOIN operation. */
     db.execSQL(
         "CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON "
@@ -842,91 +933,243 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + " ("
             + PrefixColumns.CONTACT_ID
             + ");");
+  }
 
-    if (DEBUG) {
-      stopWatch.lap(TAG + "Finished recreating index");
+  /**
+   * Replaces the live smart dial tables with the shadow tables filled by a full rebuild, and
+   * indexes them. Readers see either the old or the new tables, never a mix.
+   */
+  private static void swapInShadowTables(SQLiteDatabase db) {
+    db.beginTransaction();
+    try {
+      db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_TABLE);
+      db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_TABLE);
+      db.execSQL(
+          "ALTER TABLE " + Tables.SMARTDIAL_SHADOW_TABLE + " RENAME TO " + Tables.SMARTDIAL_TABLE);
+      db.execSQL("ALTER TABLE " + Tables.PREFIX_SHADOW_TABLE + " RENAME TO " + Tables.PREFIX_TABLE);
+      createSmartDialIndexes(db);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
+  }
 
-    /** Updates the database index statistics. */
+  /**
+   * Runs ANALYZE on the smart dial tables after a full rebuild, or when the number of rows in the
+   * prefix table moved by more than {@link #ANALYZE_ROW_COUNT_CHANGE_PERCENT} percent since the
+   * tables were last analyzed. Small deltas don't change the query plans, so their statistics are
+   * left alone.
+   */
+  private void analyzeIfNeeded(SQLiteDatabase db, boolean isFullRebuild) {
+    final long rowCount = DatabaseUtils.queryNumEntries(db, Tables.PREFIX_TABLE);
+    final long analyzedRowCount = getPropertyAsInt(db, ANALYZED_ROW_COUNT_PROPERTY, -1);
+    final long threshold = analyzedRowCount * ANALYZE_ROW_COUNT_CHANGE_PERCENT / 100;
+    if (!isFullRebuild
+        && analyzedRowCount >= 0
+        && Math.abs(rowCount - analyzedRowCount) <= threshold) {
+      LogUtil.i(
+          "DialerDatabaseHelper.analyzeIfNeeded",
+          "skipping, %d rows vs %d when last analyzed",
+          rowCount,
+          analyzedRowCount);
+      return;
+    }
     db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
     db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
     db.execSQL("ANALYZE smartdial_contact_id_index");
     db.execSQL("ANALYZE smartdial_last_update_index");
     db.execSQL("ANALYZE nameprefix_index");
     db.execSQL("ANALYZE nameprefix_contact_id_index");
-    if (DEBUG) {
-      stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
-    }
-
-    final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
-    editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
-    editor.apply();
+    setProperty(db, ANALYZED_ROW_COUNT_PROPERTY, String.valueOf(rowCount));
+  }
 
-    LogUtil.i("DialerDatabaseHelper.updateSmartDialDatabase", "broadcasting smart dial update");
+  /**
+   * Reads {@link Tables#PREFIX_TABLE} into a {@link SmartDialPrefixTrie}.
+   *
+   * @param db Database pointer to the smartdial database.
+   * @return The trie, or null if the prefix table could not be read.
+   */
+  @Nullable
+  private SmartDialPrefixTrie loadPrefixTrie(SQLiteDatabase db) {
+    final Cursor cursor =
+        db.rawQuery(
+            "SELECT "
+                + PrefixColumns.PREFIX
+                + ", "
+                + PrefixColumns.CONTACT_ID
+                + " FROM "
+                + Tables.PREFIX_TABLE
+                + " ORDER BY "
+                + PrefixColumns.PREFIX,
+            null);
+    if (cursor == null) {
+      return null;
+    }
+    try {
+      final SmartDialPrefixTrie.Builder builder = new SmartDialPrefixTrie.Builder();
+      while (cursor.moveToNext()) {
+        builder.add(cursor.getString(0), cursor.getLong(1));
+      }
+      final SmartDialPrefixTrie trie = builder.build();
+      LogUtil.i("DialerDatabaseHelper.loadPrefixTrie", "loaded %d prefixes", trie.size());
+      return trie;
+    } finally {
+      cursor.close();
+    }
+  }
 
-    // Notify content observers that smart dial database has been updated.
-    Intent intent = new Intent(ACTION_SMART_DIAL_UPDATED);
-    intent.setPackage(context.getPackageName());
-    context.sendBroadcast(intent);
+  /** Returns {@link #prefixTrie}, loading it first if no update has built it yet. */
+  @Nullable
+  private SmartDialPrefixTrie getOrLoadPrefixTrie(SQLiteDatabase db) {
+    SmartDialPrefixTrie trie = prefixTrie;
+    if (trie != null) {
+      return trie;
+    }
+    synchronized (prefixTrieLock) {
+      if (prefixTrie == null) {
+        prefixTrie = loadPrefixTrie(db);
+      }
+      return prefixTrie;
+    }
   }
 
   /**
    * Returns a list of candidate contacts where the query is a prefix of the dialpad index of the
    * contact's name or phone number.
    *
+   * <p>This doesn't take the lock held by {@link #updateSmartDialDatabase}; it reads the last
+   * committed data and the current prefix trie, so it never waits for an update to finish.
+   *
    * @param query The prefix of a contact's dialpad index.
    * @return A list of top candidate contacts that will be suggested to user to match their input.
    */
   @WorkerThread
-  public synchronized ArrayList<ContactNumber> getLooseMatches(
+  public ArrayList<ContactNumber> getLooseMatches(
       String query, SmartDialNameMatcher nameMatcher) {
+    return getLooseMatches(query, nameMatcher, null);
+  }
+
+  /**
+   * Same as {@link #getLooseMatches(String, SmartDialNameMatcher)}, but reuses the candidates kept
+   * by {@code session} when {@code query} extends the session's previous query, and stores the new
+   * candidates back into the session.
+   */
+  @WorkerThread
+  ArrayList<ContactNumber> getLooseMatches(
+      String query, SmartDialNameMatcher nameMatcher, @Nullable SmartDialSearchSession session) {
     final SQLiteDatabase db = getReadableDatabase();
 
-    /** Uses SQL query wildcard '%' to represent prefix matching. */
-    final String looseQuery = query + "%";
+    final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
 
-    final ArrayList<ContactNumber> result = new ArrayList<>();
+    final SmartDialPrefixTrie trie =
+        SmartDialPrefixTrie.isSupportedQuery(query) ? getOrLoadPrefixTrie(db) : null;
+    final boolean useTrie = trie != null && SmartDialPrefixTrie.isSupportedQuery(query);
+
+    if (useTrie && session != null && session.canRefine(query, trie)) {
+      /** The query only got longer, so every new candidate is one of the previous candidates. */
+      final long[] contactIds = trie.getContactIdsWithPrefix(query);
+      final ArrayList<ContactNumber> candidates = new ArrayList<>();
+      for (ContactNumber candidate : session.getCandidates()) {
+        if (Arrays.binarySearch(contactIds, candidate.id) >= 0) {
+          candidates.add(candidate);
+        }
+      }
+      session.setCandidates(query, trie, candidates);
+      if (DEBUG) {
+        stopWatch.lap("Refined previous candidates: " + candidates.size() + " left");
+      }
+      final ArrayList<ContactNumber> result = new ArrayList<>();
+      final Set<ContactMatch> duplicates = new HashSet<>();
+      for (ContactNumber candidate : candidates) {
+        if (result.size() >= MAX_ENTRIES) {
+          break;
+        }
+        addIfMatches(result, duplicates, candidate, query, nameMatcher);
+      }
+      if (DEBUG) {
+        stopWatch.stopAndLog(TAG + "Finished refining matches", 0);
+      }
+      return result;
+    }
 
-    final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
+    if (session != null) {
+      session.reset();
+    }
+
+    final ArrayList<ContactNumber> result = new ArrayList<>();
 
     final String currentTimeStamp = Long.toString(System.currentTimeMillis());
 
+    /**
+     * Candidates are only kept for the next keystroke if the prefix trie bounds their number, since
+     * keeping them means reading every row instead of stopping at {@link #MAX_ENTRIES} matches.
+     */
+    ArrayList<ContactNumber> candidates = null;
+
     /** Queries the database to find contacts that have an index matching the query prefix. */
-    final Cursor cursor =
-        db.rawQuery(
-            "SELECT "
-                + SmartDialDbColumns.DATA_ID
-                + ", "
-                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-                + ", "
-                + SmartDialDbColumns.PHOTO_ID
-                + ", "
-                + SmartDialDbColumns.NUMBER
-                + ", "
-                + SmartDialDbColumns.CONTACT_ID
-                + ", "
-                + SmartDialDbColumns.LOOKUP_KEY
-                + ", "
-                + SmartDialDbColumns.CARRIER_PRESENCE
-                + " FROM "
-                + Tables.SMARTDIAL_TABLE
-                + " WHERE "
-                + SmartDialDbColumns.CONTACT_ID
-                + " IN "
-                + " (SELECT "
-                + PrefixColumns.CONTACT_ID
-                + " FROM "
-                + Tables.PREFIX_TABLE
-                + " WHERE "
-                + Tables.PREFIX_TABLE
-                + "."
-                + PrefixColumns.PREFIX
-                + " LIKE '"
-                + looseQuery
-                + "')"
-                + " ORDER BY "
-                + SmartDialSortingOrder.SORT_ORDER,
-            new String[] {currentTimeStamp});
+    final Cursor cursor;
+    if (useTrie) {
+      final long[] contactIds = trie.getContactIdsWithPrefix(query);
+      if (DEBUG) {
+        stopWatch.lap("Prefix trie lookup completed: " + contactIds.length + " contacts");
+      }
+      if (contactIds.length == 0) {
+        if (session != null) {
+          session.setCandidates(query, trie, new ArrayList<>());
+        }
+        return result;
+      }
+      if (session != null && contactIds.length <= MAX_SESSION_CANDIDATE_CONTACTS) {
+        candidates = new ArrayList<>();
+      }
+      final StringBuilder contactIdList = new StringBuilder();
+      for (long contactId : contactIds) {
+        if (contactIdList.length() > 0) {
+          contactIdList.append(',');
+        }
+        contactIdList.append(contactId);
+      }
+      cursor =
+          db.rawQuery(
+              "SELECT "
+                  + LOOSE_MATCH_COLUMNS
+                  + " FROM "
+                  + Tables.SMARTDIAL_TABLE
+                  + " WHERE "
+                  + SmartDialDbColumns.CONTACT_ID
+                  + " IN ("
+                  + contactIdList
+                  + ")"
+                  + " ORDER BY "
+                  + SmartDialSortingOrder.SORT_ORDER,
+              new String[] {currentTimeStamp});
+    } else {
+      /** Uses SQL query wildcard '%' to represent prefix matching. */
+      final String looseQuery = query + "%";
+      cursor =
+          db.rawQuery(
+              "SELECT "
+                  + LOOSE_MATCH_COLUMNS
+                  + " FROM "
+                  + Tables.SMARTDIAL_TABLE
+                  + " WHERE "
+                  + SmartDialDbColumns.CONTACT_ID
+                  + " IN "
+                  + " (SELECT "
+                  + PrefixColumns.CONTACT_ID
+                  + " FROM "
+                  + Tables.PREFIX_TABLE
+                  + " WHERE "
+                  + Tables.PREFIX_TABLE
+                  + "."
+                  + PrefixColumns.PREFIX
+                  + " LIKE '"
+                  + looseQuery
+                  + "')"
+                  + " ORDER BY "
+                  + SmartDialSortingOrder.SORT_ORDER,
+              new String[] {currentTimeStamp});
+    }
     if (cursor == null) {
       return result;
     }
@@ -943,53 +1186,39 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       final int columnId = 4;
       final int columnLookupKey = 5;
       final int columnCarrierPresence = 6;
+      final int columnDialpadName = 7;
       if (DEBUG) {
         stopWatch.lap("Found column IDs");
       }
 
       final Set<ContactMatch> duplicates = new HashSet<>();
-      int counter = 0;
       if (DEBUG) {
         stopWatch.lap("Moved cursor to start");
       }
       /** Iterates the cursor to find top contact suggestions without duplication. */
-      while ((cursor.moveToNext()) && (counter < MAX_ENTRIES)) {
-        final long dataID = cursor.getLong(columnDataId);
-        final String displayName = cursor.getString(columnDisplayNamePrimary);
-        final String phoneNumber = cursor.getString(columnNumber);
-        final long id = cursor.getLong(columnId);
-        final long photoId = cursor.getLong(columnPhotoId);
-        final String lookupKey = cursor.getString(columnLookupKey);
-        final int carrierPresence = cursor.getInt(columnCarrierPresence);
-
-        /**
-         * If a contact already exists and another phone number of the contact is being processed,
-         * skip the second instance.
-         */
-        final ContactMatch contactMatch = new ContactMatch(lookupKey, id);
-        if (duplicates.contains(contactMatch)) {
-          continue;
+      while (cursor.moveToNext() && (candidates != null || result.size() < MAX_ENTRIES)) {
+        final ContactNumber candidate =
+            new ContactNumber(
+                cursor.getLong(columnId),
+                cursor.getLong(columnDataId),
+                cursor.getString(columnDisplayNamePrimary),
+                cursor.getString(columnNumber),
+                cursor.getString(columnLookupKey),
+                cursor.getLong(columnPhotoId),
+                cursor.getInt(columnCarrierPresence),
+                cursor.getString(columnDialpadName));
+        if (candidates != null) {
+          candidates.add(candidate);
         }
-
-        /**
-         * If the contact has either the name or number that matches the query, add to the result.
-         */
-        final boolean nameMatches = nameMatcher.matches(context, displayName);
-        final boolean numberMatches =
-            (nameMatcher.matchesNumber(context, phoneNumber, query) != null);
-        if (nameMatches || numberMatches) {
-          /** If a contact has not been added, add it to the result and the hash set. */
-          duplicates.add(contactMatch);
-          result.add(
-              new ContactNumber(
-                  id, dataID, displayName, phoneNumber, lookupKey, photoId, carrierPresence));
-          counter++;
-          if (DEBUG) {
-            stopWatch.lap("Added one result: Name: " + displayName);
-          }
+        if (result.size() < MAX_ENTRIES) {
+          addIfMatches(result, duplicates, candidate, query, nameMatcher);
         }
       }
 
+      if (candidates != null) {
+        session.setCandidates(query, trie, candidates);
+      }
+
       if (DEBUG) {
         stopWatch.stopAndLog(TAG + "Finished loading cursor", 0);
       }
@@ -999,6 +1228,47 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     return result;
   }
 
+  /**
+   * Adds {@code candidate} to {@code result} if its name or number matches the query and no other
+   * number of the same contact has been added yet.
+   */
+  private void addIfMatches(
+      ArrayList<ContactNumber> result,
+      Set<ContactMatch> duplicates,
+      ContactNumber candidate,
+      String query,
+      SmartDialNameMatcher nameMatcher) {
+    /**
+     * If a contact already exists and another phone number of the contact is being processed, skip
+     * the second instance.
+     */
+    final ContactMatch contactMatch = new ContactMatch(candidate.lookupKey, candidate.id);
+    if (duplicates.contains(contactMatch)) {
+      return;
+    }
+
+    /** If the contact has either the name or number that matches the query, add to the result. */
+    final boolean nameMatches =
+        candidate.dialpadName != null
+            ? nameMatcher.matchesDialpadName(candidate.dialpadName)
+            : nameMatcher.matches(context, candidate.displayName);
+    final boolean numberMatches =
+        (nameMatcher.matchesNumber(context, candidate.phoneNumber, query) != null);
+    if (nameMatches || numberMatches) {
+      /** If a contact has not been added, add it to the result and the hash set. */
+      duplicates.add(contactMatch);
+      result.add(candidate);
+      if (DEBUG) {
+        LogUtil.v(TAG, "Added one result: Name: " + candidate.displayName);
+      }
+    }
+  }
+
+  /** Starts a new {@link SmartDialSearchSession} backed by this helper. */
+  public SmartDialSearchSession newSmartDialSearchSession() {
+    return new SmartDialSearchSession(this);
+  }
+
   public interface Tables {
 
     /** Saves a list of numbers to be blocked. */
@@ -1007,6 +1277,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String SMARTDIAL_TABLE = "smartdial_table";
     /** Saves all possible prefixes to refer to a contacts. */
     String PREFIX_TABLE = "prefix_table";
+    /** Full smart dial rebuilds fill this table, then rename it to {@link #SMARTDIAL_TABLE}. */
+    String SMARTDIAL_SHADOW_TABLE = "smartdial_table_shadow";
+    /** Full smart dial rebuilds fill this table, then rename it to {@link #PREFIX_TABLE}. */
+    String PREFIX_SHADOW_TABLE = "prefix_table_shadow";
     /** Saves all archived voicemail information. */
     String VOICEMAIL_ARCHIVE_TABLE = "voicemail_archive_table";
     /** Database properties for internal use */
@@ -1030,6 +1304,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String IS_PRIMARY = "is_primary";
     String CARRIER_PRESENCE = "carrier_presence";
     String LAST_SMARTDIAL_UPDATE_TIME = "last_smartdial_update_time";
+    /** The display name mapped to dialpad characters, see {@link SmartDialNameMatcher}. */
+    String DIALPAD_NAME = "dialpad_name";
   }
 
   public interface PrefixColumns extends BaseColumns {
@@ -1104,44 +1380,6 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String SELECTION = SELECT_UPDATED_CLAUSE + " AND " + SELECT_IGNORE_LOOKUP_KEY_TOO_LONG_CLAUSE;
   }
 
-  /**
-   * Query for all contacts that have been updated since the last time the smart dial database was
-   * updated.
-   */
-  public interface UpdatedContactQuery {
-
-    Uri URI = ContactsContract.Contacts.CONTENT_URI;
-
-    String[] PROJECTION =
-        new String[] {
-          ContactsContract.Contacts._ID // 0
-        };
-
-    int UPDATED_CONTACT_ID = 0;
-
-    String SELECT_UPDATED_CLAUSE =
-        ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?";
-  }
-
-  /** Query options for querying the deleted contact database. */
-  public interface DeleteContactQuery {
-
-    Uri URI = ContactsContract.DeletedContacts.CONTENT_URI;
-
-    String[] PROJECTION =
-        new String[] {
-          ContactsContract.DeletedContacts.CONTACT_ID, // 0
-          ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP, // 1
-        };
-
-    int DELETED_CONTACT_ID = 0;
-    int DELETED_TIMESTAMP = 1;
-
-    /** Selects only rows that have been deleted after a certain time stamp. */
-    String SELECT_UPDATED_CLAUSE =
-        ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?";
-  }
-
   /**
    * Gets the sorting order for the smartdial table. This computes a SQL "ORDER BY" argument by
    * composing contact status and recent contact details together.
@@ -1226,6 +1464,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     public final long photoId;
     public final int carrierPresence;
 
+    /** {@link #displayName} mapped to dialpad characters, or null if it wasn't precomputed. */
+    @Nullable public final String dialpadName;
+
     public ContactNumber(
         long id,
         long dataID,
@@ -1234,6 +1475,18 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         String lookupKey,
         long photoId,
         int carrierPresence) {
+      this(id, dataID, displayName, phoneNumber, lookupKey, photoId, carrierPresence, null);
+    }
+
+    public ContactNumber(
+        long id,
+        long dataID,
+        String displayName,
+        String phoneNumber,
+        String lookupKey,
+        long photoId,
+        int carrierPresence,
+        @Nullable String dialpadName) {
       this.dataId = dataID;
       this.id = id;
       this.displayName = displayName;
@@ -1241,6 +1494,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       this.lookupKey = lookupKey;
       this.photoId = photoId;
       this.carrierPresence = carrierPresence;
+      this.dialpadName = dialpadName;
     }
 
     @Override
@@ -1268,6 +1522,99 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
   }
 
+  /**
+   * Statements compiled once per smart dial update and shared by every step of it, instead of
+   * being compiled (or parsed from a new SQL string) for each step or row. They write to the given
+   * tables, which are the shadow tables during a full rebuild.
+   */
+  private static final class SmartDialStatements implements AutoCloseable {
+
+    final SQLiteStatement insertContact;
+    final SQLiteStatement insertPrefix;
+    final SQLiteStatement deleteContactRows;
+    final SQLiteStatement deletePrefixRows;
+
+    /** Whether the writes may be committed in batches, see {@link #commitIfBatchFull}. */
+    final boolean commitInBatches;
+
+    SmartDialStatements(
+        SQLiteDatabase db, String smartDialTable, String prefixTable, boolean commitInBatches) {
+      this.commitInBatches = commitInBatches;
+      insertContact =
+          db.compileStatement(
+              "INSERT INTO "
+                  + smartDialTable
+                  + " ("
+                  + SmartDialDbColumns.DATA_ID
+                  + ", "
+                  + SmartDialDbColumns.NUMBER
+                  + ", "
+                  + SmartDialDbColumns.CONTACT_ID
+                  + ", "
+                  + SmartDialDbColumns.LOOKUP_KEY
+                  + ", "
+                  + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+                  + ", "
+                  + SmartDialDbColumns.PHOTO_ID
+                  + ", "
+                  + SmartDialDbColumns.LAST_TIME_USED
+                  + ", "
+                  + SmartDialDbColumns.TIMES_USED
+                  + ", "
+                  + SmartDialDbColumns.STARRED
+                  + ", "
+                  + SmartDialDbColumns.IS_SUPER_PRIMARY
+                  + ", "
+                  + SmartDialDbColumns.IN_VISIBLE_GROUP
+                  + ", "
+                  + SmartDialDbColumns.IS_PRIMARY
+                  + ", "
+                  + SmartDialDbColumns.CARRIER_PRESENCE
+                  + ", "
+                  + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+                  + ", "
+                  + SmartDialDbColumns.DIALPAD_NAME
+                  + ") "
+                  + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      insertPrefix =
+          db.compileStatement(
+              "INSERT INTO "
+                  + prefixTable
+                  + " ("
+                  + PrefixColumns.CONTACT_ID
+                  + ", "
+                  + PrefixColumns.PREFIX
+                  + ") "
+                  + " VALUES (?, ?)");
+      deleteContactRows =
+          db.compileStatement(
+              "DELETE FROM "
+                  + smartDialTable
+                  + " WHERE "
+                  + SmartDialDbColumns.CONTACT_ID
+                  + " = ?");
+      deletePrefixRows =
+          db.compileStatement(
+              "DELETE FROM " + prefixTable + " WHERE " + PrefixColumns.CONTACT_ID + " = ?");
+    }
+
+    /** Deletes every smart dial and prefix row of the contact. */
+    void deleteContact(long contactId) {
+      deleteContactRows.bindLong(1, contactId);
+      deleteContactRows.executeUpdateDelete();
+      deletePrefixRows.bindLong(1, contactId);
+      deletePrefixRows.executeUpdateDelete();
+    }
+
+    @Override
+    public void close() {
+      insertContact.close();
+      insertPrefix.close();
+      deleteContactRows.close();
+      deletePrefixRows.close();
+    }
+  }
+
   /** Data format for finding duplicated contacts. */
   private static class ContactMatch {
 
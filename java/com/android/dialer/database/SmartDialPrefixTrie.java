@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.support.annotation.NonNull;
+import java.util.Arrays;
+
+/**
+ * In-memory, path-compressed T9 trie mirroring {@link DialerDatabaseHelper.Tables#PREFIX_TABLE}.
+ *
+ * <p>The trie answers the same question as {@code prefix LIKE 'query%'}: which contacts have at
+ * least one name or number prefix starting with the query digits. All nodes live in parallel
+ * primitive arrays so that a trie for tens of thousands of contacts is a handful of objects.
+ *
+ * <p>Keys are added in sorted order, which means the keys (and therefore the contact ids) below
+ * any node form one contiguous range. A lookup walks at most {@code query.length()} digits and then
+ * copies that range.
+ *
+ * <p>Instances are immutable once built and safe to share between threads.
+ */
+final class SmartDialPrefixTrie {
+
+  private static final long[] EMPTY = new long[0];
+
+  /** Digits of every key, back to back. Edge labels point into this pool. */
+  private final byte[] digits;
+
+  /** Contact ids in key order. */
+  private final long[] contactIds;
+
+  // Node arrays. Node 0 is the root and has an empty label.
+  private final int[] labelStart;
+  private final int[] labelLength;
+  private final int[] firstChild;
+  private final int[] nextSibling;
+  private final int[] rangeStart;
+  private final int[] rangeEnd;
+
+  private SmartDialPrefixTrie(
+      byte[] digits,
+      long[] contactIds,
+      int[] labelStart,
+      int[] labelLength,
+      int[] firstChild,
+      int[] nextSibling,
+      int[] rangeStart,
+      int[] rangeEnd) {
+    this.digits = digits;
+    this.contactIds = contactIds;
+    this.labelStart = labelStart;
+    this.labelLength = labelLength;
+    this.firstChild = firstChild;
+    this.nextSibling = nextSibling;
+    this.rangeStart = rangeStart;
+    this.rangeEnd = rangeEnd;
+  }
+
+  /** Returns true if every character of {@code query} can be looked up in the trie. */
+  static boolean isSupportedQuery(String query) {
+    for (int i = 0; i < query.length(); i++) {
+      char ch = query.charAt(i);
+      if (ch < '0' || ch > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the sorted, distinct ids of contacts with a prefix that starts with {@code query}.
+   *
+   * <p>{@code query} must satisfy {@link #isSupportedQuery(String)}.
+   */
+  @NonNull
+  long[] getContactIdsWithPrefix(String query) {
+    int node = findNode(query);
+    if (node < 0) {
+      return EMPTY;
+    }
+    long[] result = Arrays.copyOfRange(contactIds, rangeStart[node], rangeEnd[node]);
+    Arrays.sort(result);
+    int distinct = 0;
+    for (int i = 0; i < result.length; i++) {
+      if (i == 0 || result[i] != result[distinct - 1]) {
+        result[distinct++] = result[i];
+      }
+    }
+    return distinct == result.length ? result : Arrays.copyOf(result, distinct);
+  }
+
+  /** Number of (prefix, contact) entries held by the trie. */
+  int size() {
+    return contactIds.length;
+  }
+
+  /** Returns the node whose subtree holds exactly the keys starting with {@code query}, or -1. */
+  private int findNode(String query) {
+    int node = 0;
+    int position = 0;
+    while (position < query.length()) {
+      byte digit = (byte) (query.charAt(position) - '0');
+      int child = firstChild[node];
+      while (child != -1 && digits[labelStart[child]] != digit) {
+        child = nextSibling[child];
+      }
+      if (child == -1) {
+        return -1;
+      }
+      int labelEnd = labelStart[child] + labelLength[child];
+      for (int i = labelStart[child]; i < labelEnd && position < query.length(); i++) {
+        if (digits[i] != (byte) (query.charAt(position) - '0')) {
+          return -1;
+        }
+        position++;
+      }
+      node = child;
+    }
+    return node;
+  }
+
+  /**
+   * Accumulates (prefix, contact id) pairs and builds a {@link SmartDialPrefixTrie}.
+   *
+   * <p>Prefixes must be added in non-decreasing order, e.g. straight from a cursor sorted by
+   * {@link DialerDatabaseHelper.PrefixColumns#PREFIX}. Prefixes with non-digit characters are
+   * ignored since they can never match a dialpad query.
+   */
+  static final class Builder {
+
+    private byte[] digits = new byte[1024];
+    private int digitCount;
+
+    private int[] keyStart = new int[256];
+    private int[] keyLength = new int[256];
+    private long[] contactIds = new long[256];
+    private int keyCount;
+
+    private int[] labelStart;
+    private int[] labelLength;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] rangeStart;
+    private int[] rangeEnd;
+    private int nodeCount;
+
+    /** Adds one row. Returns false if the row was ignored. */
+    boolean add(String prefix, long contactId) {
+      if (prefix == null || !isSupportedQuery(prefix)) {
+        return false;
+      }
+      if (keyCount > 0 && compareToLastKey(prefix) < 0) {
+        throw new IllegalStateException("prefixes must be added in sorted order");
+      }
+      if (keyCount == contactIds.length) {
+        int capacity = keyCount * 2;
+        keyStart = Arrays.copyOf(keyStart, capacity);
+        keyLength = Arrays.copyOf(keyLength, capacity);
+        contactIds = Arrays.copyOf(contactIds, capacity);
+      }
+      if (digitCount + prefix.length() > digits.length) {
+        digits = Arrays.copyOf(digits, Math.max(digits.length * 2, digitCount + prefix.length()));
+      }
+      keyStart[keyCount] = digitCount;
+      keyLength[keyCount] = prefix.length();
+      contactIds[keyCount] = contactId;
+      keyCount++;
+      for (int i = 0; i < prefix.length(); i++) {
+        digits[digitCount++] = (byte) (prefix.charAt(i) - '0');
+      }
+      return true;
+    }
+
+    SmartDialPrefixTrie build() {
+      // A path-compressed trie over n keys never has more than 2n nodes (plus the root).
+      int maxNodes = 2 * keyCount + 1;
+      labelStart = new int[maxNodes];
+      labelLength = new int[maxNodes];
+      firstChild = new int[maxNodes];
+      nextSibling = new int[maxNodes];
+      rangeStart = new int[maxNodes];
+      rangeEnd = new int[maxNodes];
+      nodeCount = 0;
+
+      int root = newNode(0, 0, 0, keyCount);
+      buildChildren(root, 0, keyCount, 0);
+
+      return new SmartDialPrefixTrie(
+          Arrays.copyOf(digits, digitCount),
+          Arrays.copyOf(contactIds, keyCount),
+          Arrays.copyOf(labelStart, nodeCount),
+          Arrays.copyOf(labelLength, nodeCount),
+          Arrays.copyOf(firstChild, nodeCount),
+          Arrays.copyOf(nextSibling, nodeCount),
+          Arrays.copyOf(rangeStart, nodeCount),
+          Arrays.copyOf(rangeEnd, nodeCount));
+    }
+
+    /**
+     * Attaches children to {@code parent} for the sorted keys in [{@code from}, {@code to}), all of
+     * which share their first {@code depth} digits.
+     */
+    private void buildChildren(int parent, int from, int to, int depth) {
+      // Keys that end exactly at this depth sort first and stay attached to the parent.
+      int start = from;
+      while (start < to && keyLength[start] == depth) {
+        start++;
+      }
+      int lastChild = -1;
+      while (start < to) {
+        byte digit = digitAt(start, depth);
+        int end = start + 1;
+        while (end < to && digitAt(end, depth) == digit) {
+          end++;
+        }
+
+        // Extend the edge for as long as every key in the group agrees.
+        int childDepth = depth + 1;
+        while (keyLength[start] > childDepth && allShareDigit(start, end, childDepth)) {
+          childDepth++;
+        }
+
+        int child = newNode(keyStart[start] + depth, childDepth - depth, start, end);
+        if (lastChild == -1) {
+          firstChild[parent] = child;
+        } else {
+          nextSibling[lastChild] = child;
+        }
+        lastChild = child;
+        buildChildren(child, start, end, childDepth);
+        start = end;
+      }
+    }
+
+    private boolean allShareDigit(int from, int to, int depth) {
+      byte digit = digitAt(from, depth);
+      for (int i = from + 1; i < to; i++) {
+        if (keyLength[i] <= depth || digitAt(i, depth) != digit) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private int newNode(int labelStart, int labelLength, int rangeStart, int rangeEnd) {
+      int node = nodeCount++;
+      this.labelStart[node] = labelStart;
+      this.labelLength[node] = labelLength;
+      this.firstChild[node] = -1;
+      this.nextSibling[node] = -1;
+      this.rangeStart[node] = rangeStart;
+      this.rangeEnd[node] = rangeEnd;
+      return node;
+    }
+
+    private byte digitAt(int key, int depth) {
+      return digits[keyStart[key] + depth];
+    }
+
+    private int compareToLastKey(String prefix) {
+      int last = keyCount - 1;
+      int length = Math.min(keyLength[last], prefix.length());
+      for (int i = 0; i < length; i++) {
+        int diff = (prefix.charAt(i) - '0') - digitAt(last, i);
+        if (diff != 0) {
+          return diff;
+        }
+      }
+      return prefix.length() - keyLength[last];
+    }
+  }
+}
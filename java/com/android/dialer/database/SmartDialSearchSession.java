@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.smartdial.util.SmartDialNameMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the smart dial candidates of the previous query so that the next keystroke only has to
+ * filter them.
+ *
+ * <p>Typing "2255" after "225" can only narrow the set of contacts with a matching prefix, so the
+ * session filters the rows it already holds instead of going back to the database. Any other
+ * change to the query (backspace, paste, clearing the dialpad) or a smart dial database update
+ * starts over with a full query.
+ *
+ * <p>Queries through one session are serialized; sessions don't share state.
+ */
+public final class SmartDialSearchSession {
+
+  private final DialerDatabaseHelper dialerDatabaseHelper;
+
+  @Nullable private String query;
+  @Nullable private SmartDialPrefixTrie trie;
+  @Nullable private List<ContactNumber> candidates;
+
+  SmartDialSearchSession(DialerDatabaseHelper dialerDatabaseHelper) {
+    this.dialerDatabaseHelper = dialerDatabaseHelper;
+  }
+
+  /**
+   * Returns the top smart dial matches for {@code query}.
+   *
+   * @see DialerDatabaseHelper#getLooseMatches(String, SmartDialNameMatcher)
+   */
+  @WorkerThread
+  public synchronized ArrayList<ContactNumber> getLooseMatches(
+      String query, SmartDialNameMatcher nameMatcher) {
+    return dialerDatabaseHelper.getLooseMatches(query, nameMatcher, this);
+  }
+
+  /** Drops the kept candidates so that the next query goes to the database. */
+  public synchronized void reset() {
+    query = null;
+    trie = null;
+    candidates = null;
+  }
+
+  /**
+   * Returns true if the kept candidates are a superset of the candidates for {@code newQuery}, i.e.
+   * {@code newQuery} extends the previous query and the data hasn't been rebuilt since.
+   */
+  boolean canRefine(String newQuery, SmartDialPrefixTrie currentTrie) {
+    return candidates != null
+        && query != null
+        && trie == currentTrie
+        && newQuery.length() > query.length()
+        && newQuery.startsWith(query);
+  }
+
+  List<ContactNumber> getCandidates() {
+    return candidates;
+  }
+
+  void setCandidates(String query, SmartDialPrefixTrie trie, List<ContactNumber> candidates) {
+    this.query = query;
+    this.trie = trie;
+    this.candidates = candidates;
+  }
+}
@@ -16,6 +16,9 @@
 
 package com.android.dialer.glide;
 
+import android.content.Context;
+import com.android.dialer.bitmappool.BitmapPool;
+import com.bumptech.glide.GlideBuilder;
 import com.bumptech.glide.annotation.GlideModule;
 import com.bumptech.glide.module.AppGlideModule;
 
@@ -24,4 +27,10 @@ import com.bumptech.glide.module.AppGlideModule;
  * generated API, which most documentations are based on.
  */
 @GlideModule
-public class DialerGlideModule extends AppGlideModule {}
+public class DialerGlideModule extends AppGlideModule {
+
+  @Override
+  public void applyOptions(Context context, GlideBuilder builder) {
+    builder.setBitmapPool(new SharedBitmapPool(BitmapPool.getInstance()));
+  }
+}
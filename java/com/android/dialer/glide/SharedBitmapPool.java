@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.glide;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import com.android.dialer.bitmappool.BitmapPool;
+
+/**
+ * Glide's bitmap pool, backed by the {@link BitmapPool} shared with the rest of the app, so that
+ * bitmaps released by Glide can be reused by the contact photo manager and letter tiles, and the
+ * other way round.
+ */
+final class SharedBitmapPool implements com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool {
+
+  private final BitmapPool bitmapPool;
+
+  SharedBitmapPool(BitmapPool bitmapPool) {
+    this.bitmapPool = bitmapPool;
+  }
+
+  @Override
+  public long getMaxSize() {
+    return bitmapPool.getMaxSizeBytes();
+  }
+
+  @Override
+  public void setSizeMultiplier(float sizeMultiplier) {
+    bitmapPool.setSizeMultiplier(sizeMultiplier);
+  }
+
+  @Override
+  public void put(Bitmap bitmap) {
+    bitmapPool.put(bitmap);
+  }
+
+  @NonNull
+  @Override
+  public Bitmap get(int width, int height, Bitmap.Config config) {
+    return bitmapPool.get(width, height, config);
+  }
+
+  @NonNull
+  @Override
+  public Bitmap getDirty(int width, int height, Bitmap.Config config) {
+    return bitmapPool.getDirty(width, height, config);
+  }
+
+  @Override
+  public void clearMemory() {
+    bitmapPool.clear();
+  }
+
+  @Override
+  public void trimMemory(int level) {
+    bitmapPool.trimMemory(level);
+  }
+}
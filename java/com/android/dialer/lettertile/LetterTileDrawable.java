@@ -33,6 +33,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.telecom.TelecomManager;
 import android.text.TextUtils;
+import com.android.dialer.bitmappool.BitmapPool;
 import com.android.dialer.common.Assert;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -187,8 +188,9 @@ public class LetterTileDrawable extends Drawable {
     drawLetterTile(canvas);
   }
 
+  /** Draws the letter tile into a new bitmap, reused from the {@link BitmapPool} if possible. */
   public Bitmap getBitmap(int width, int height) {
-    Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+    Bitmap bitmap = BitmapPool.getInstance().get(width, height, Config.ARGB_8888);
     this.setBounds(0, 0, width, height);
     Canvas canvas = new Canvas(bitmap);
     this.draw(canvas);
@@ -26,6 +26,8 @@ public abstract class PhoneLookupComponent {
 
   public abstract CompositePhoneLookup compositePhoneLookup();
 
+  public abstract PhoneLookupInfoCache phoneLookupInfoCache();
+
   public static PhoneLookupComponent get(Context context) {
     return ((HasComponent) ((HasRootComponent) context.getApplicationContext()).component())
         .phoneLookupComponent();
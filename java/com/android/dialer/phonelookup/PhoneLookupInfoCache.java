@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.phonelookup;
+
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+import com.android.dialer.common.LogUtil;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Process-wide, size-bounded cache of {@link PhoneLookupInfo} keyed by normalized number, in front
+ * of the PhoneLookupHistory.
+ *
+ * <p>Every writer of PhoneLookupHistory (the call log refresh, the call log's display time lookups
+ * and the in-call UI) also puts the info it writes here. Only the call log reads it, to skip
+ * PhoneLookupHistory queries and display time lookups; call details shows the info stored in the
+ * annotated call log row instead.
+ *
+ * <p>Entries are invalidated as a whole by bumping the generation, which happens once the phone
+ * lookups have been told about a bulk update (the info of any number may have changed then). Since
+ * lookups and queries are asynchronous, callers read {@link #getGeneration()} before starting one
+ * and pass it to {@link #put(String, PhoneLookupInfo, long)}, which drops results that started
+ * before the last invalidation.
+ *
+ * <p>All methods are thread-safe.
+ */
+@Singleton
+public final class PhoneLookupInfoCache {
+
+  /** Enough for every distinct number in a full annotated call log. */
+  private static final int MAX_SIZE = 1000;
+
+  private final LruCache<String, PhoneLookupInfo> cache = new LruCache<>(MAX_SIZE);
+
+  private long generation;
+
+  @Inject
+  PhoneLookupInfoCache() {}
+
+  /** Returns the cached info for {@code normalizedNumber}, or null. */
+  @Nullable
+  public PhoneLookupInfo get(String normalizedNumber) {
+    return cache.get(normalizedNumber);
+  }
+
+  /** The generation to pass to {@link #put(String, PhoneLookupInfo, long)}. */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Caches {@code phoneLookupInfo}, unless the cache has been invalidated since {@code generation}
+   * was read.
+   */
+  public synchronized void put(
+      String normalizedNumber, PhoneLookupInfo phoneLookupInfo, long generation) {
+    if (generation == this.generation) {
+      cache.put(normalizedNumber, phoneLookupInfo);
+    }
+  }
+
+  /** Drops all entries, and any pending {@link #put(String, PhoneLookupInfo, long)}. */
+  public synchronized void invalidate() {
+    generation++;
+    cache.evictAll();
+    LogUtil.i(
+        "PhoneLookupInfoCache.invalidate",
+        "generation: %d, hits: %d, misses: %d, evictions: %d",
+        generation,
+        getHitCount(),
+        getMissCount(),
+        getEvictionCount());
+  }
+
+  public int getHitCount() {
+    return cache.hitCount();
+  }
+
+  public int getMissCount() {
+    return cache.missCount();
+  }
+
+  /** Number of entries dropped, to stay within the size limit or by {@link #invalidate()}. */
+  public int getEvictionCount() {
+    return cache.evictionCount();
+  }
+}
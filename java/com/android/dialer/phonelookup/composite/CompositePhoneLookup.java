@@ -18,18 +18,23 @@ package com.android.dialer.phonelookup.composite;
 
 import android.content.Context;
 import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.calllog.CallLogState;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.LightweightExecutor;
+import com.android.dialer.common.concurrent.Annotations.NonUiSerial;
 import com.android.dialer.common.concurrent.DialerFutures;
+import com.android.dialer.configprovider.ConfigProviderBindings;
+import com.android.dialer.inject.ApplicationContext;
 import com.android.dialer.metrics.FutureTimer;
 import com.android.dialer.metrics.FutureTimer.LogCatMode;
 import com.android.dialer.metrics.Metrics;
 import com.android.dialer.phonelookup.PhoneLookup;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
 import com.android.dialer.phonelookup.PhoneLookupInfo.Builder;
+import com.android.dialer.phonelookup.PhoneLookupInfoCache;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -41,7 +46,11 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.inject.Inject;
 
 /**
@@ -52,22 +61,72 @@ import javax.inject.Inject;
  */
 public final class CompositePhoneLookup {
 
+  /**
+   * Config key template for the deadline of a sub-lookup's {@link
+   * PhoneLookup#getMostRecentInfo(ImmutableMap)}, in milliseconds. Formatted with the lookup's
+   * simple class name, e.g. "phone_lookup_deadline_millis_SpamPhoneLookup".
+   */
+  private static final String DEADLINE_CONFIG_KEY_TEMPLATE = "phone_lookup_deadline_millis_%s";
+
+  private static final long DEFAULT_DEADLINE_MILLIS = 2_000;
+
+  private final Context appContext;
   private final ImmutableList<PhoneLookup> phoneLookups;
   private final FutureTimer futureTimer;
   private final CallLogState callLogState;
+  private final PhoneLookupInfoCache phoneLookupInfoCache;
   private final ListeningExecutorService lightweightExecutorService;
+  private final ScheduledExecutorService scheduledExecutorService;
 
   @VisibleForTesting
   @Inject
   public CompositePhoneLookup(
+      @ApplicationContext Context appContext,
       ImmutableList<PhoneLookup> phoneLookups,
       FutureTimer futureTimer,
       CallLogState callLogState,
-      @LightweightExecutor ListeningExecutorService lightweightExecutorService) {
+      PhoneLookupInfoCache phoneLookupInfoCache,
+      @LightweightExecutor ListeningExecutorService lightweightExecutorService,
+      @NonUiSerial ScheduledExecutorService scheduledExecutorService) {
+    this.appContext = appContext;
     this.phoneLookups = phoneLookups;
     this.futureTimer = futureTimer;
     this.callLogState = callLogState;
+    this.phoneLookupInfoCache = phoneLookupInfoCache;
     this.lightweightExecutorService = lightweightExecutorService;
+    this.scheduledExecutorService = scheduledExecutorService;
+  }
+
+  /** Result of {@link #getMostRecentInfo(ImmutableMap)}. */
+  public static final class MostRecentInfo {
+
+    private final ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> infoMap;
+    private final ImmutableList<PhoneLookup<?>> lateLookups;
+    @Nullable
+    private final ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>> lateInfoMap;
+
+    private MostRecentInfo(
+        ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> infoMap,
+        ImmutableList<PhoneLookup<?>> lateLookups,
+        @Nullable ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>> lateInfoMap) {
+      this.infoMap = infoMap;
+      this.lateLookups = lateLookups;
+      this.lateInfoMap = lateInfoMap;
+    }
+
+    /** The most recent info, with existing info for the sub-lookups which missed their deadline. */
+    public ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> getInfoMap() {
+      return infoMap;
+    }
+
+    /**
+     * The complete info, once the sub-lookups which missed their deadline have finished. Null if
+     * all of them made it, in which case {@link #getInfoMap()} is already complete.
+     */
+    @Nullable
+    public ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>> getLateInfoMap() {
+      return lateInfoMap;
+    }
   }
 
   /**
@@ -132,41 +191,61 @@ public final class CompositePhoneLookup {
   /**
    * Delegates to a set of dependent lookups and combines results.
    *
-   * <p>Note: If any of the dependent lookups fails, the returned future will also fail. If any of
-   * the dependent lookups does not complete, the returned future will also not complete.
+   * <p>Once the call log has been built, each dependent lookup has a deadline (configurable per
+   * lookup, see {@link #DEADLINE_CONFIG_KEY_TEMPLATE}). A lookup which misses it keeps the info it
+   * had in {@code existingInfoMap} in {@link MostRecentInfo#getInfoMap()}, and its real result is
+   * delivered later through {@link MostRecentInfo#getLateInfoMap()}. The initial build has no
+   * existing info to fall back on, so it waits for every lookup.
+   *
+   * <p>Note: If any of the dependent lookups fails, the returned future (or the late info future,
+   * if the lookup missed its deadline) will also fail.
    */
   @SuppressWarnings("unchecked")
-  public ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>> getMostRecentInfo(
+  public ListenableFuture<MostRecentInfo> getMostRecentInfo(
       ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> existingInfoMap) {
     return Futures.transformAsync(
         callLogState.isBuilt(),
         isBuilt -> {
           List<ListenableFuture<ImmutableMap<DialerPhoneNumber, ?>>> futures = new ArrayList<>();
+          List<ListenableFuture<ImmutableMap<DialerPhoneNumber, ?>>> onTimeFutures =
+              new ArrayList<>();
           for (PhoneLookup phoneLookup : phoneLookups) {
-            futures.add(buildSubmapAndGetMostRecentInfo(existingInfoMap, phoneLookup, isBuilt));
+            ListenableFuture<ImmutableMap<DialerPhoneNumber, ?>> future =
+                buildSubmapAndGetMostRecentInfo(existingInfoMap, phoneLookup, isBuilt);
+            futures.add(future);
+            onTimeFutures.add(isBuilt ? withDeadline(future, phoneLookup) : future);
           }
-          ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>> combinedFuture =
+          ListenableFuture<MostRecentInfo> combinedFuture =
               Futures.transform(
-                  Futures.allAsList(futures),
-                  (allMaps) -> {
-                    ImmutableMap.Builder<DialerPhoneNumber, PhoneLookupInfo> combinedMap =
-                        ImmutableMap.builder();
-                    for (DialerPhoneNumber dialerPhoneNumber : existingInfoMap.keySet()) {
-                      PhoneLookupInfo.Builder combinedInfo = PhoneLookupInfo.newBuilder();
-                      for (int i = 0; i < allMaps.size(); i++) {
-                        ImmutableMap<DialerPhoneNumber, ?> map = allMaps.get(i);
-                        Object subInfo = map.get(dialerPhoneNumber);
-                        if (subInfo == null) {
-                          throw new IllegalStateException(
-                              "A sublookup didn't return an info for number: "
-                                  + LogUtil.sanitizePhoneNumber(
-                                      dialerPhoneNumber.getNormalizedNumber()));
-                        }
-                        phoneLookups.get(i).setSubMessage(combinedInfo, subInfo);
+                  Futures.allAsList(onTimeFutures),
+                  (onTimeMaps) -> {
+                    List<ImmutableMap<DialerPhoneNumber, ?>> allMaps = new ArrayList<>();
+                    ImmutableList.Builder<PhoneLookup<?>> lateLookups = ImmutableList.builder();
+                    List<ListenableFuture<ImmutableMap<DialerPhoneNumber, ?>>> lateFutures =
+                        new ArrayList<>();
+                    for (int i = 0; i < onTimeMaps.size(); i++) {
+                      ImmutableMap<DialerPhoneNumber, ?> map = onTimeMaps.get(i);
+                      if (map == null) {
+                        // Keep the existing info of a late lookup until its result arrives.
+                        map = buildSubmap(existingInfoMap, phoneLookups.get(i));
+                        lateLookups.add(phoneLookups.get(i));
+                        lateFutures.add(futures.get(i));
                       }
-                      combinedMap.put(dialerPhoneNumber, combinedInfo.build());
+                      allMaps.add(map);
+                    }
+                    ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> infoMap =
+                        combine(existingInfoMap.keySet(), phoneLookups, allMaps);
+                    if (lateFutures.isEmpty()) {
+                      return new MostRecentInfo(infoMap, ImmutableList.of(), null);
                     }
-                    return combinedMap.build();
+                    ImmutableList<PhoneLookup<?>> lateLookupList = lateLookups.build();
+                    ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>>
+                        lateInfoMapFuture =
+                            Futures.transform(
+                                Futures.allAsList(lateFutures),
+                                lateMaps -> patch(infoMap, lateLookupList, lateMaps),
+                                lightweightExecutorService);
+                    return new MostRecentInfo(infoMap, lateLookupList, lateInfoMapFuture);
                   },
                   lightweightExecutorService);
           String eventName = getMostRecentInfoEventName(this, isBuilt);
@@ -176,29 +255,132 @@ public final class CompositePhoneLookup {
         MoreExecutors.directExecutor());
   }
 
+  /**
+   * Returns a future with the result of {@code future}, or with null if {@code phoneLookup} misses
+   * its deadline. {@code future} itself keeps running in that case.
+   */
+  private <T> ListenableFuture<T> withDeadline(
+      ListenableFuture<T> future, PhoneLookup<?> phoneLookup) {
+    String lookupName = phoneLookup.getClass().getSimpleName();
+    long deadlineMillis =
+        ConfigProviderBindings.get(appContext)
+            .getLong(
+                String.format(DEADLINE_CONFIG_KEY_TEMPLATE, lookupName), DEFAULT_DEADLINE_MILLIS);
+    ListenableFuture<T> timedFuture =
+        Futures.withTimeout(
+            Futures.nonCancellationPropagating(future),
+            deadlineMillis,
+            TimeUnit.MILLISECONDS,
+            scheduledExecutorService);
+    return Futures.catching(
+        timedFuture,
+        TimeoutException.class,
+        e -> {
+          LogUtil.w(
+              "CompositePhoneLookup.withDeadline",
+              "%s missed its %d ms deadline, will patch results when it finishes",
+              lookupName,
+              deadlineMillis);
+          return null;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> combine(
+      Set<DialerPhoneNumber> dialerPhoneNumbers,
+      List<? extends PhoneLookup> phoneLookups,
+      List<ImmutableMap<DialerPhoneNumber, ?>> allMaps) {
+    ImmutableMap.Builder<DialerPhoneNumber, PhoneLookupInfo> combinedMap = ImmutableMap.builder();
+    for (DialerPhoneNumber dialerPhoneNumber : dialerPhoneNumbers) {
+      PhoneLookupInfo.Builder combinedInfo = PhoneLookupInfo.newBuilder();
+      setSubMessages(combinedInfo, dialerPhoneNumber, phoneLookups, allMaps);
+      combinedMap.put(dialerPhoneNumber, combinedInfo.build());
+    }
+    return combinedMap.build();
+  }
+
+  /** Returns {@code infoMap} with the sub-messages of {@code lateLookups} replaced. */
+  private static ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> patch(
+      ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> infoMap,
+      List<PhoneLookup<?>> lateLookups,
+      List<ImmutableMap<DialerPhoneNumber, ?>> lateMaps) {
+    ImmutableMap.Builder<DialerPhoneNumber, PhoneLookupInfo> patchedMap = ImmutableMap.builder();
+    for (Entry<DialerPhoneNumber, PhoneLookupInfo> entry : infoMap.entrySet()) {
+      PhoneLookupInfo.Builder patchedInfo = entry.getValue().toBuilder();
+      setSubMessages(patchedInfo, entry.getKey(), lateLookups, lateMaps);
+      patchedMap.put(entry.getKey(), patchedInfo.build());
+    }
+    return patchedMap.build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void setSubMessages(
+      PhoneLookupInfo.Builder info,
+      DialerPhoneNumber dialerPhoneNumber,
+      List<? extends PhoneLookup> phoneLookups,
+      List<ImmutableMap<DialerPhoneNumber, ?>> maps) {
+    for (int i = 0; i < maps.size(); i++) {
+      Object subInfo = maps.get(i).get(dialerPhoneNumber);
+      if (subInfo == null) {
+        throw new IllegalStateException(
+            "A sublookup didn't return an info for number: "
+                + LogUtil.sanitizePhoneNumber(dialerPhoneNumber.getNormalizedNumber()));
+      }
+      phoneLookups.get(i).setSubMessage(info, subInfo);
+    }
+  }
+
+  private static <T> ImmutableMap<DialerPhoneNumber, T> buildSubmap(
+      ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> existingInfoMap,
+      PhoneLookup<T> phoneLookup) {
+    return ImmutableMap.copyOf(
+        Maps.transformEntries(
+            existingInfoMap,
+            (dialerPhoneNumber, phoneLookupInfo) -> phoneLookup.getSubMessage(phoneLookupInfo)));
+  }
+
   private <T> ListenableFuture<ImmutableMap<DialerPhoneNumber, T>> buildSubmapAndGetMostRecentInfo(
       ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> existingInfoMap,
       PhoneLookup<T> phoneLookup,
       boolean isBuilt) {
-    Map<DialerPhoneNumber, T> submap =
-        Maps.transformEntries(
-            existingInfoMap,
-            (dialerPhoneNumber, phoneLookupInfo) ->
-                phoneLookup.getSubMessage(existingInfoMap.get(dialerPhoneNumber)));
     ListenableFuture<ImmutableMap<DialerPhoneNumber, T>> mostRecentInfoFuture =
-        phoneLookup.getMostRecentInfo(ImmutableMap.copyOf(submap));
+        phoneLookup.getMostRecentInfo(buildSubmap(existingInfoMap, phoneLookup));
     String eventName = getMostRecentInfoEventName(phoneLookup, isBuilt);
     futureTimer.applyTiming(mostRecentInfoFuture, eventName);
     return mostRecentInfoFuture;
   }
 
-  /** Delegates to sub-lookups' {@link PhoneLookup#onSuccessfulBulkUpdate()}. */
-  public ListenableFuture<Void> onSuccessfulBulkUpdate() {
+  /**
+   * Delegates to sub-lookups' {@link PhoneLookup#onSuccessfulBulkUpdate()}, except for the ones
+   * whose results haven't arrived yet. See {@link #onSuccessfulLateUpdate(MostRecentInfo)}.
+   *
+   * @param mostRecentInfo the result of {@link #getMostRecentInfo(ImmutableMap)} which was applied
+   */
+  public ListenableFuture<Void> onSuccessfulBulkUpdate(MostRecentInfo mostRecentInfo) {
+    List<PhoneLookup<?>> onTimeLookups = new ArrayList<>();
+    for (PhoneLookup<?> phoneLookup : phoneLookups) {
+      if (!mostRecentInfo.lateLookups.contains(phoneLookup)) {
+        onTimeLookups.add(phoneLookup);
+      }
+    }
+    return onSuccessfulBulkUpdate(onTimeLookups);
+  }
+
+  /**
+   * Delegates to {@link PhoneLookup#onSuccessfulBulkUpdate()} of the sub-lookups which missed their
+   * deadline, once {@link MostRecentInfo#getLateInfoMap()} has been applied.
+   */
+  public ListenableFuture<Void> onSuccessfulLateUpdate(MostRecentInfo mostRecentInfo) {
+    return onSuccessfulBulkUpdate(mostRecentInfo.lateLookups);
+  }
+
+  private ListenableFuture<Void> onSuccessfulBulkUpdate(List<PhoneLookup<?>> lookupsToNotify) {
     return Futures.transformAsync(
         callLogState.isBuilt(),
         isBuilt -> {
           List<ListenableFuture<Void>> futures = new ArrayList<>();
-          for (PhoneLookup<?> phoneLookup : phoneLookups) {
+          for (PhoneLookup<?> phoneLookup : lookupsToNotify) {
             ListenableFuture<Void> phoneLookupFuture = phoneLookup.onSuccessfulBulkUpdate();
             futures.add(phoneLookupFuture);
             String eventName = onSuccessfulBulkUpdatedEventName(phoneLookup, isBuilt);
@@ -206,7 +388,13 @@ public final class CompositePhoneLookup {
           }
           ListenableFuture<Void> combinedFuture =
               Futures.transform(
-                  Futures.allAsList(futures), unused -> null, lightweightExecutorService);
+                  Futures.allAsList(futures),
+                  unused -> {
+                    // The lookups may now return different info for any number.
+                    phoneLookupInfoCache.invalidate();
+                    return null;
+                  },
+                  lightweightExecutorService);
           String eventName = onSuccessfulBulkUpdatedEventName(this, isBuilt);
           futureTimer.applyTiming(combinedFuture, eventName);
           return combinedFuture;
@@ -44,6 +44,22 @@ final class Cp2Projections {
         Phone.LOOKUP_KEY // 8
       };
 
+  // Projection for loosely matching raw numbers against the PHONE table; PHONE_PROJECTION followed
+  // by the number as entered by the user.
+  private static final String[] PHONE_WITH_NUMBER_PROJECTION =
+      new String[] {
+        Phone.DISPLAY_NAME_PRIMARY, // 0
+        Phone.PHOTO_THUMBNAIL_URI, // 1
+        Phone.PHOTO_URI, // 2
+        Phone.PHOTO_ID, // 3
+        Phone.TYPE, // 4
+        Phone.LABEL, // 5
+        Phone.NORMALIZED_NUMBER, // 6
+        Phone.CONTACT_ID, // 7
+        Phone.LOOKUP_KEY, // 8
+        Phone.NUMBER // 9
+      };
+
   // Projection for performing lookups using the PHONE_LOOKUP table
   private static final String[] PHONE_LOOKUP_PROJECTION =
       new String[] {
@@ -58,7 +74,7 @@ final class Cp2Projections {
         PhoneLookup.LOOKUP_KEY // 8
       };
 
-  // The following indexes should match both PHONE_PROJECTION and PHONE_LOOKUP_PROJECTION above.
+  // The following indexes should match all projections above.
   private static final int CP2_INFO_NAME_INDEX = 0;
   private static final int CP2_INFO_PHOTO_THUMBNAIL_URI_INDEX = 1;
   private static final int CP2_INFO_PHOTO_URI_INDEX = 2;
@@ -69,19 +85,27 @@ final class Cp2Projections {
   private static final int CP2_INFO_CONTACT_ID_INDEX = 7;
   private static final int CP2_INFO_LOOKUP_KEY_INDEX = 8;
 
+  // Only in PHONE_WITH_NUMBER_PROJECTION.
+  private static final int PHONE_NUMBER_INDEX = 9;
+
   private Cp2Projections() {}
 
   static String[] getProjectionForPhoneTable() {
     return PHONE_PROJECTION;
   }
 
+  static String[] getProjectionForPhoneTableWithNumber() {
+    return PHONE_WITH_NUMBER_PROJECTION;
+  }
+
   static String[] getProjectionForPhoneLookupTable() {
     return PHONE_LOOKUP_PROJECTION;
   }
 
   /**
    * Builds a {@link Cp2ContactInfo} based on the current row of {@code cursor}, of which the
-   * projection is either {@link #PHONE_PROJECTION} or {@link #PHONE_LOOKUP_PROJECTION}.
+   * projection is {@link #PHONE_PROJECTION}, {@link #PHONE_WITH_NUMBER_PROJECTION} or {@link
+   * #PHONE_LOOKUP_PROJECTION}.
    */
   static Cp2ContactInfo buildCp2ContactInfoFromCursor(Context appContext, Cursor cursor) {
     String displayName = cursor.getString(CP2_INFO_NAME_INDEX);
@@ -123,4 +147,12 @@ final class Cp2Projections {
   static String getNormalizedNumberFromCursor(Cursor cursor) {
     return cursor.getString(CP2_INFO_NORMALIZED_NUMBER_INDEX);
   }
+
+  /**
+   * Returns the number as entered by the user in the current row of {@code cursor}, of which the
+   * projection is {@link #PHONE_WITH_NUMBER_PROJECTION}.
+   */
+  static String getNumberFromCursor(Cursor cursor) {
+    return cursor.getString(PHONE_NUMBER_INDEX);
+  }
 }
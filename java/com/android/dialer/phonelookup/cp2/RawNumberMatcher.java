@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.phonelookup.cp2;
+
+import android.support.annotation.Nullable;
+import android.support.v4.util.ArrayMap;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loosely matches many raw (invalid) numbers against the numbers of the PHONE table in one pass.
+ *
+ * <p>Loose matching can't be expressed as a batch selection, which is why raw numbers used to be
+ * looked up one PHONE_LOOKUP query each. Instead, all rows of the PHONE table are read once and
+ * each of their numbers is passed to {@link #addMatches(String, Set)}.
+ *
+ * <p>Like CP2's PHONE_LOOKUP, two numbers can only match if their last {@link #MIN_MATCH} digits
+ * (or all digits, for shorter numbers) are equal, so raw numbers are indexed by those digits. The
+ * few candidates sharing them are then compared with {@link PhoneNumberUtils#compare(String,
+ * String)}, the loose comparison CP2 applies after its min match lookup. Post-dial portions are
+ * ignored on both sides.
+ */
+final class RawNumberMatcher {
+
+  /** Number of trailing digits CP2 uses for its min match. */
+  private static final int MIN_MATCH = 7;
+
+  private final Map<String, List<String>> rawNumbersByKey = new ArrayMap<>();
+
+  /** keyLengths[i] is true if some raw number has a key of i digits. */
+  private final boolean[] keyLengths = new boolean[MIN_MATCH + 1];
+
+  /** Numbers without digits (e.g. empty ones) are ignored; they never match a PHONE row. */
+  RawNumberMatcher(Set<String> rawNumbers) {
+    for (String rawNumber : rawNumbers) {
+      String digits = getDigits(PhoneNumberUtils.extractNetworkPortion(rawNumber));
+      if (digits.isEmpty()) {
+        continue;
+      }
+      String key = digits.substring(Math.max(0, digits.length() - MIN_MATCH));
+      List<String> numbers = rawNumbersByKey.get(key);
+      if (numbers == null) {
+        numbers = new ArrayList<>(1);
+        rawNumbersByKey.put(key, numbers);
+      }
+      numbers.add(rawNumber);
+      keyLengths[key.length()] = true;
+    }
+  }
+
+  /** Returns true if no number can match, in which case the PHONE table doesn't need to be read. */
+  boolean isEmpty() {
+    return rawNumbersByKey.isEmpty();
+  }
+
+  /** Adds the raw numbers which loosely match {@code cp2Number} to {@code matches}. */
+  void addMatches(@Nullable String cp2Number, Set<String> matches) {
+    if (TextUtils.isEmpty(cp2Number)) {
+      return;
+    }
+    String networkPortion = PhoneNumberUtils.extractNetworkPortion(cp2Number);
+    String digits = getDigits(networkPortion);
+    for (int length = 1; length <= Math.min(MIN_MATCH, digits.length()); length++) {
+      if (!keyLengths[length]) {
+        continue;
+      }
+      List<String> candidates = rawNumbersByKey.get(digits.substring(digits.length() - length));
+      if (candidates == null) {
+        continue;
+      }
+      for (String candidate : candidates) {
+        if (PhoneNumberUtils.compare(
+            PhoneNumberUtils.extractNetworkPortion(candidate), networkPortion)) {
+          matches.add(candidate);
+        }
+      }
+    }
+  }
+
+  private static String getDigits(@Nullable String networkPortion) {
+    if (networkPortion == null) {
+      return "";
+    }
+    StringBuilder digits = new StringBuilder(networkPortion.length());
+    for (int i = 0; i < networkPortion.length(); i++) {
+      char c = networkPortion.charAt(i);
+      if (c >= '0' && c <= '9') {
+        digits.append(c);
+      }
+    }
+    return digits.toString();
+  }
+}
@@ -17,8 +17,10 @@
 package com.android.dialer.phonelookup.database;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.SystemClock;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
@@ -27,7 +29,7 @@ import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContra
 class PhoneLookupHistoryDatabaseHelper extends SQLiteOpenHelper {
 
   PhoneLookupHistoryDatabaseHelper(Context appContext) {
-    super(appContext, "phone_lookup_history.db", null, 1);
+    super(appContext, "phone_lookup_history.db", null, 2);
   }
 
   // TODO(zachh): LAST_MODIFIED is no longer read and can be deleted.
@@ -61,5 +63,53 @@ class PhoneLookupHistoryDatabaseHelper extends SQLiteOpenHelper {
   }
 
   @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion < 2) {
+      upgradePhoneLookupInfoFormat(db);
+    }
+  }
+
+  /** Rewrites the rows stored in an older {@link PhoneLookupInfoCodec} format. */
+  private static void upgradePhoneLookupInfoFormat(SQLiteDatabase db) {
+    long startTime = SystemClock.uptimeMillis();
+    int upgradedRows = 0;
+    SQLiteStatement update =
+        db.compileStatement(
+            "update "
+                + PhoneLookupHistory.TABLE
+                + " set "
+                + PhoneLookupHistory.PHONE_LOOKUP_INFO
+                + " = ? where "
+                + PhoneLookupHistory.NORMALIZED_NUMBER
+                + " = ?");
+    try (Cursor cursor =
+        db.query(
+            PhoneLookupHistory.TABLE,
+            new String[] {
+              PhoneLookupHistory.NORMALIZED_NUMBER, PhoneLookupHistory.PHONE_LOOKUP_INFO
+            },
+            null,
+            null,
+            null,
+            null,
+            null)) {
+      while (cursor.moveToNext()) {
+        byte[] blob = cursor.getBlob(1);
+        if (!PhoneLookupInfoCodec.needsUpgrade(blob)) {
+          continue;
+        }
+        update.bindBlob(1, PhoneLookupInfoCodec.encode(PhoneLookupInfoCodec.decode(blob)));
+        update.bindString(2, cursor.getString(0));
+        update.executeUpdateDelete();
+        upgradedRows++;
+      }
+    } finally {
+      update.close();
+    }
+    LogUtil.i(
+        "PhoneLookupHistoryDatabaseHelper.upgradePhoneLookupInfoFormat",
+        "upgraded %d rows, took: %dms",
+        upgradedRows,
+        SystemClock.uptimeMillis() - startTime);
+  }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.phonelookup.database;
+
+import com.android.dialer.phonelookup.PhoneLookupInfo;
+import com.android.dialer.phonelookup.PhoneLookupInfo.Cp2Info.Cp2ContactInfo;
+import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
+import com.google.protobuf.CodedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes {@link PhoneLookupInfo} for the {@link PhoneLookupHistory#PHONE_LOOKUP_INFO} column.
+ *
+ * <p>Layout, big endian:
+ *
+ * <ul>
+ *   <li>{@link #MARKER}, a byte which a serialized {@link PhoneLookupInfo} never starts with
+ *   <li>Format version, one byte
+ *   <li>Number of contact IDs of the default directory CP2 info, unsigned short
+ *   <li>Those contact IDs, 8 bytes each
+ *   <li>The serialized {@link PhoneLookupInfo}
+ * </ul>
+ *
+ * <p>The fixed header lets contact IDs be read without parsing the proto. Rows written before the
+ * header existed hold just the serialized proto; they are recognized by their first byte, still
+ * decoded, and rewritten when the database is upgraded.
+ */
+public final class PhoneLookupInfoCodec {
+
+  /** Field number 0 is invalid in protos, so no tag of a serialized message starts with 0. */
+  private static final byte MARKER = 0;
+
+  private static final byte VERSION = 1;
+
+  private static final int CONTACT_ID_COUNT_OFFSET = 2;
+  private static final int CONTACT_IDS_OFFSET = 4;
+  private static final int CONTACT_ID_SIZE = 8;
+
+  private PhoneLookupInfoCodec() {}
+
+  public static byte[] encode(PhoneLookupInfo phoneLookupInfo) {
+    int contactIdCount =
+        Math.min(phoneLookupInfo.getDefaultCp2Info().getCp2ContactInfoCount(), 0xFFFF);
+    int protoOffset = CONTACT_IDS_OFFSET + contactIdCount * CONTACT_ID_SIZE;
+    byte[] proto = phoneLookupInfo.toByteArray();
+
+    ByteBuffer buffer = ByteBuffer.allocate(protoOffset + proto.length);
+    buffer.put(MARKER).put(VERSION).putShort((short) contactIdCount);
+    for (int i = 0; i < contactIdCount; i++) {
+      buffer.putLong(phoneLookupInfo.getDefaultCp2Info().getCp2ContactInfo(i).getContactId());
+    }
+    buffer.put(proto);
+    return buffer.array();
+  }
+
+  /** Decodes a value written by {@link #encode(PhoneLookupInfo)} or by older versions. */
+  public static PhoneLookupInfo decode(byte[] blob) {
+    int protoOffset = getProtoOffset(blob);
+    try {
+      return PhoneLookupInfo.parseFrom(
+          CodedInputStream.newInstance(blob, protoOffset, blob.length - protoOffset));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Adds the contact IDs of the default directory CP2 info of an encoded value to {@code
+   * contactIds}, only parsing the proto for values in the old format.
+   */
+  public static void addDefaultCp2ContactIds(byte[] blob, Set<Long> contactIds) {
+    if (!hasHeader(blob)) {
+      for (Cp2ContactInfo info : decode(blob).getDefaultCp2Info().getCp2ContactInfoList()) {
+        contactIds.add(info.getContactId());
+      }
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(blob);
+    int contactIdCount = buffer.getShort(CONTACT_ID_COUNT_OFFSET) & 0xFFFF;
+    for (int i = 0; i < contactIdCount; i++) {
+      contactIds.add(buffer.getLong(CONTACT_IDS_OFFSET + i * CONTACT_ID_SIZE));
+    }
+  }
+
+  /** Returns true if {@code blob} was written by an older version and should be re-encoded. */
+  static boolean needsUpgrade(byte[] blob) {
+    return !hasHeader(blob) || blob[1] != VERSION;
+  }
+
+  private static boolean hasHeader(byte[] blob) {
+    // The default instance serializes to no bytes at all.
+    return blob.length > 0 && blob[0] == MARKER;
+  }
+
+  private static int getProtoOffset(byte[] blob) {
+    if (!hasHeader(blob)) {
+      return 0;
+    }
+    if (blob.length < CONTACT_IDS_OFFSET || blob[1] != VERSION) {
+      throw new IllegalStateException("unsupported phone lookup info format");
+    }
+    int contactIdCount = ByteBuffer.wrap(blob).getShort(CONTACT_ID_COUNT_OFFSET) & 0xFFFF;
+    return CONTACT_IDS_OFFSET + contactIdCount * CONTACT_ID_SIZE;
+  }
+
+  /**
+   * Decodes many values, parsing identical ones only once.
+   *
+   * <p>Many numbers share the same info, e.g. all numbers without a contact which are neither spam
+   * nor blocked, and protos are immutable, so one instance can be returned for all of them.
+   * Instances are not thread-safe.
+   */
+  public static final class Decoder {
+
+    private final Map<ByteBuffer, PhoneLookupInfo> decoded = new HashMap<>();
+
+    public PhoneLookupInfo decode(byte[] blob) {
+      int protoOffset = getProtoOffset(blob);
+      // Only the proto is compared; values with the same info have the same header.
+      ByteBuffer key = ByteBuffer.wrap(blob, protoOffset, blob.length - protoOffset);
+      PhoneLookupInfo phoneLookupInfo = decoded.get(key);
+      if (phoneLookupInfo == null) {
+        phoneLookupInfo = PhoneLookupInfoCodec.decode(blob);
+        decoded.put(key, phoneLookupInfo);
+      }
+      return phoneLookupInfo;
+    }
+  }
+}
@@ -56,7 +56,8 @@ public class PhoneLookupHistoryContract {
     public static final String NORMALIZED_NUMBER = "normalized_number";
 
     /**
-     * The {@link com.android.dialer.phonelookup.PhoneLookupInfo} proto for the number. Required.
+     * The {@link com.android.dialer.phonelookup.PhoneLookupInfo} proto for the number, encoded with
+     * {@link com.android.dialer.phonelookup.database.PhoneLookupInfoCodec}. Required.
      *
      * <p>Type: BLOB
      */
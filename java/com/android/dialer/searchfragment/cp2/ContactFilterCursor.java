@@ -18,6 +18,7 @@ package com.android.dialer.searchfragment.cp2;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.CharArrayBuffer;
 import android.database.ContentObserver;
 import android.database.Cursor;
@@ -33,11 +34,19 @@ import android.support.annotation.Nullable;
 import android.support.v4.util.ArraySet;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import com.android.contacts.common.preference.ContactsPreferences;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.contactchanges.ContactChangeFeedComponent;
+import com.android.dialer.contactchanges.ContactChanges;
 import com.android.dialer.searchfragment.common.Projections;
 import com.android.dialer.searchfragment.common.QueryFilteringUtil;
+import com.android.dialer.storage.StorageComponent;
+import java.io.File;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -52,10 +61,24 @@ import java.util.Set;
  */
 final class ContactFilterCursor implements Cursor {
 
+  /** File in the cache directory holding the last {@link ContactTernarySearchTreeSnapshot}. */
+  private static final String SEARCH_TREE_SNAPSHOT_FILE = "contact_search_tree";
+
+  /** File in the cache directory holding the last {@link ContactT9Index}. */
+  private static final String T9_INDEX_FILE = "contact_t9_index";
+
+  /** Time of the latest contact change the search indexes were checked against. */
+  private static final String PREF_LAST_CONTACT_CHANGE_MILLIS =
+      "contactFilterCursorLastContactChangeMillis";
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
   private final Cursor cursor;
   // List of cursor ids that are valid for displaying after filtering.
   private final List<Integer> queryFilteredPositions = new ArrayList<>();
-  private final ContactTernarySearchTree contactTree;
+  private final ContactTernarySearchTreeSnapshot contactTree;
+  private final ContactT9Index t9Index;
 
   private int currentPosition = 0;
 
@@ -81,7 +104,9 @@ final class ContactFilterCursor implements Cursor {
    */
   ContactFilterCursor(Cursor cursor, @Nullable String query, Context context) {
     this.cursor = createCursor(cursor);
-    contactTree = buildContactSearchTree(context, this.cursor);
+    Long watermark = getIndexWatermark(context, this.cursor.getCount());
+    contactTree = loadContactSearchTree(context, this.cursor, watermark);
+    t9Index = loadContactT9Index(context, this.cursor, watermark);
     filter(query, context);
   }
 
@@ -235,56 +260,149 @@ final class ContactFilterCursor implements Cursor {
     return contactIdContacts;
   }
 
+  /**
+   * Returns the search tree of the cursor's rows, memory-mapped from the snapshot written by an
+   * earlier load if contacts haven't changed since, or built and written out otherwise.
+   *
+   * @param watermark see {@link #getIndexWatermark(Context, int)}. If null, the tree is built and
+   *     not written.
+   */
+  private static ContactTernarySearchTreeSnapshot loadContactSearchTree(
+      Context context, Cursor cursor, @Nullable Long watermark) {
+    if (watermark == null) {
+      return buildContactSearchTree(cursor).toSnapshot(0);
+    }
+    File file = new File(context.getCacheDir(), SEARCH_TREE_SNAPSHOT_FILE);
+    ContactTernarySearchTreeSnapshot snapshot =
+        ContactTernarySearchTreeSnapshot.open(file, watermark, cursor.getCount());
+    if (snapshot != null) {
+      return snapshot;
+    }
+
+    snapshot = buildContactSearchTree(cursor).toSnapshot(watermark);
+    try {
+      snapshot.writeTo(file);
+    } catch (IOException e) {
+      LogUtil.e("ContactFilterCursor.loadContactSearchTree", "failed to write snapshot", e);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Returns the T9 index of the cursor's rows, read from the file written by an earlier load if
+   * contacts haven't changed since, or built and written out otherwise.
+   *
+   * @param watermark see {@link #getIndexWatermark(Context, int)}. If null, the index is built and
+   *     not written.
+   */
+  private static ContactT9Index loadContactT9Index(
+      Context context, Cursor cursor, @Nullable Long watermark) {
+    if (watermark == null) {
+      return buildContactT9Index(context, cursor);
+    }
+    File file = new File(context.getCacheDir(), T9_INDEX_FILE);
+    ContactT9Index t9Index = ContactT9Index.readFrom(file, watermark, cursor.getCount());
+    if (t9Index != null) {
+      return t9Index;
+    }
+
+    t9Index = buildContactT9Index(context, cursor);
+    try {
+      t9Index.writeTo(file, watermark);
+    } catch (IOException e) {
+      LogUtil.e("ContactFilterCursor.loadContactT9Index", "failed to write index", e);
+    }
+    return t9Index;
+  }
+
+  /**
+   * Returns a watermark identifying everything the search indexes are built from, or null if CP2
+   * couldn't be read.
+   *
+   * <p>The indexes hold positions in the coalesced cursor, so they are only valid if CP2 returns
+   * the same rows in the same order. Instead of reading the rows, the watermark combines the time
+   * of the latest contact update or deletion, read from the shared {@link
+   * com.android.dialer.contactchanges.ContactChangeFeed}, with the row count and with what
+   * decides the names and their order without touching CP2's timestamps: the locale and the
+   * display and sort order settings.
+   */
+  @Nullable
+  private static Long getIndexWatermark(Context context, int count) {
+    SharedPreferences sharedPreferences = StorageComponent.get(context).unencryptedSharedPrefs();
+    // Starting at the current time on the first load keeps the feed from reading every contact.
+    long since =
+        sharedPreferences.getLong(PREF_LAST_CONTACT_CHANGE_MILLIS, System.currentTimeMillis());
+    ContactChanges contactChanges =
+        ContactChangeFeedComponent.get(context)
+            .contactChangeFeed()
+            .getChangesSince("ContactFilterCursor.getIndexWatermark", since);
+    if (contactChanges == null) {
+      LogUtil.w("ContactFilterCursor.getIndexWatermark", "couldn't read contact changes");
+      return null;
+    }
+    long lastContactChangeMillis = contactChanges.latestTimestamp();
+    sharedPreferences
+        .edit()
+        .putLong(PREF_LAST_CONTACT_CHANGE_MILLIS, lastContactChangeMillis)
+        .apply();
+
+    // Read the settings directly: ContactsPreferences needs a Looper, and this runs on the loader
+    // thread. Unset values hash the same every time, which is all the watermark needs.
+    SharedPreferences contactsPreferences =
+        context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE);
+    long hash = hash(FNV_OFFSET_BASIS, Locale.getDefault().toString());
+    hash = (hash ^ count) * FNV_PRIME;
+    int displayOrder = contactsPreferences.getInt(ContactsPreferences.DISPLAY_ORDER_KEY, 0);
+    int sortOrder = contactsPreferences.getInt(ContactsPreferences.SORT_ORDER_KEY, 0);
+    hash = (hash ^ displayOrder) * FNV_PRIME;
+    hash = (hash ^ sortOrder) * FNV_PRIME;
+    return (hash ^ lastContactChangeMillis) * FNV_PRIME;
+  }
+
+  /** 64-bit FNV-1a over the chars of {@code value}, with null and "" hashed differently. */
+  private static long hash(long hash, @Nullable String value) {
+    if (value == null) {
+      return (hash ^ 0xFFFF) * FNV_PRIME;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    // Terminate the value so that ("ab", "c") and ("a", "bc") differ.
+    return (hash ^ 0xFFFE) * FNV_PRIME;
+  }
+
   /**
    * Returns a ternary search trie based on the contact at the cursor's current position with the
    * following terms inserted:
    *
    * <ul>
    *   <li>Contact's whole display name, company name and nickname.
-   *   <li>The T9 representations of those values
-   *   <li>The T9 initials of those values
-   *   <li>All possible substrings a contact's phone number
+   *   <li>The white space divided parts of those values
    * </ul>
+   *
+   * <p>T9 and phone number matches are left to {@link ContactT9Index}.
    */
-  private static ContactTernarySearchTree buildContactSearchTree(Context context, Cursor cursor) {
+  private static ContactTernarySearchTree buildContactSearchTree(Cursor cursor) {
     ContactTernarySearchTree tree = new ContactTernarySearchTree();
     cursor.moveToPosition(-1);
     while (cursor.moveToNext()) {
       int position = cursor.getPosition();
       Set<String> queryMatches = new ArraySet<>();
-      addMatches(context, queryMatches, cursor.getString(Projections.DISPLAY_NAME));
-      addMatches(context, queryMatches, cursor.getString(Projections.COMPANY_NAME));
-      addMatches(context, queryMatches, cursor.getString(Projections.NICKNAME));
+      addMatches(queryMatches, cursor.getString(Projections.DISPLAY_NAME));
+      addMatches(queryMatches, cursor.getString(Projections.COMPANY_NAME));
+      addMatches(queryMatches, cursor.getString(Projections.NICKNAME));
       for (String query : queryMatches) {
         tree.put(query, position);
       }
-      String number = QueryFilteringUtil.digitsOnly(cursor.getString(Projections.PHONE_NUMBER));
-      Set<String> numberSubstrings = new ArraySet<>();
-      numberSubstrings.add(number);
-      for (int start = 0; start < number.length(); start++) {
-        numberSubstrings.add(number.substring(start, number.length()));
-      }
-      for (String substring : numberSubstrings) {
-        tree.put(substring, position);
-      }
     }
     return tree;
   }
 
-  /**
-   * Returns a set containing:
-   *
-   * <ul>
-   *   <li>The white space divided parts of phrase
-   *   <li>The T9 representation of the white space divided parts of phrase
-   *   <li>The T9 representation of the initials (i.e. first character of each part) of phrase
-   * </ul>
-   */
-  private static void addMatches(Context context, Set<String> existingMatches, String phrase) {
+  /** Adds phrase and its white space divided parts to {@code existingMatches}. */
+  private static void addMatches(Set<String> existingMatches, String phrase) {
     if (TextUtils.isEmpty(phrase)) {
       return;
     }
-    String initials = "";
     phrase = phrase.toLowerCase(Locale.getDefault());
     existingMatches.add(phrase);
     for (String name : phrase.split("\\s")) {
@@ -292,10 +410,21 @@ final class ContactFilterCursor implements Cursor {
         continue;
       }
       existingMatches.add(name);
-      existingMatches.add(QueryFilteringUtil.getT9Representation(name, context));
-      initials += name.charAt(0);
     }
-    existingMatches.add(QueryFilteringUtil.getT9Representation(initials, context));
+  }
+
+  /** Returns a {@link ContactT9Index} of the T9 names and phone numbers of the cursor's rows. */
+  private static ContactT9Index buildContactT9Index(Context context, Cursor cursor) {
+    ContactT9Index.Builder builder = new ContactT9Index.Builder(context);
+    cursor.moveToPosition(-1);
+    while (cursor.moveToNext()) {
+      builder.add(
+          cursor.getString(Projections.DISPLAY_NAME),
+          cursor.getString(Projections.COMPANY_NAME),
+          cursor.getString(Projections.NICKNAME),
+          cursor.getString(Projections.PHONE_NUMBER));
+    }
+    return builder.build();
   }
 
   /**
@@ -328,9 +457,15 @@ final class ContactFilterCursor implements Cursor {
         queryFilteredPositions.add(i);
       }
     } else {
-      queryFilteredPositions.addAll(contactTree.get(query.toLowerCase(Locale.getDefault())));
+      BitSet matches = new BitSet(cursor.getCount());
+      contactTree.addValues(query.toLowerCase(Locale.getDefault()), matches);
+      if (ContactT9Index.isSupportedQuery(query)) {
+        t9Index.addMatches(query, matches);
+      }
+      for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+        queryFilteredPositions.add(i);
+      }
     }
-    Collections.sort(queryFilteredPositions);
     currentPosition = 0;
     cursor.moveToFirst();
   }
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.searchfragment.cp2;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.searchfragment.common.QueryFilteringUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * Matches digit queries against the T9 representation of contacts' names and against their phone
+ * numbers.
+ *
+ * <p>Every contact is stored as three sequences of 4-bit digits ("nibbles"), packed 16 to a long:
+ *
+ * <ul>
+ *   <li>The T9 representation of its display name, company name and nickname
+ *   <li>The T9 initials of those values
+ *   <li>The digits of its phone number
+ * </ul>
+ *
+ * <p>A query is compared against the sequences with the Shift-And algorithm: bit {@code i} of the
+ * scan state is set while the last {@code i + 1} digits read equal the first {@code i + 1} digits
+ * of the query, so each digit of a contact costs one shift, one or and one and, and no strings are
+ * created per contact or per keystroke.
+ *
+ * <p>The matches are the same as the T9 and number terms {@link ContactFilterCursor} used to put in
+ * its {@link ContactTernarySearchTree}:
+ *
+ * <ul>
+ *   <li>The query is a prefix of the T9 representation of a white space divided part of a name
+ *   <li>The query is a prefix of the T9 initials of a name
+ *   <li>The query is contained in the phone number's digits
+ * </ul>
+ *
+ * <p>An index can be written to a file with {@link #writeTo(File, long)} and read back on the next
+ * launch with {@link #readFrom(File, long, int)}. The file holds a header (magic, format version,
+ * watermark as a long, contact count and number of longs, all little endian), then {@link
+ * #nibbles} and {@link #offsets}.
+ */
+final class ContactT9Index {
+
+  private static final int MAGIC = 0x44543949; // "DT9I"
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 24;
+  private static final int HEADER_WATERMARK = 8;
+  private static final int HEADER_CONTACT_COUNT = 16;
+  private static final int HEADER_NIBBLE_LONG_COUNT = 20;
+
+  private static final int LONG_SIZE = 8;
+  private static final int INT_SIZE = 4;
+
+  /** Nibble of a character that has no T9 digit, e.g. punctuation. Matches no query digit. */
+  private static final int OTHER = 0xE;
+
+  /** Nibble between two parts of a name. The next nibble starts a new part. */
+  private static final int SEPARATOR = 0xF;
+
+  private static final int NIBBLES_PER_LONG = 16;
+
+  /** Sequences stored per contact, in this order. */
+  private static final int SEQUENCE_NAMES = 0;
+  private static final int SEQUENCE_INITIALS = 1;
+  private static final int SEQUENCE_NUMBER = 2;
+  private static final int SEQUENCE_COUNT = 3;
+
+  private final long[] nibbles;
+
+  /**
+   * Start of each sequence in {@link #nibbles}. Sequence {@code k} of contact {@code p} spans
+   * [{@code offsets[SEQUENCE_COUNT * p + k]}, {@code offsets[SEQUENCE_COUNT * p + k + 1]}).
+   */
+  private final int[] offsets;
+
+  private final int contactCount;
+
+  private ContactT9Index(long[] nibbles, int[] offsets, int contactCount) {
+    this.nibbles = nibbles;
+    this.offsets = offsets;
+    this.contactCount = contactCount;
+  }
+
+  /**
+   * Reads the index stored in {@code file}.
+   *
+   * @return null if there is no index, or if it is corrupt, was built with a different watermark
+   *     or doesn't hold {@code contactCount} contacts.
+   */
+  @WorkerThread
+  @Nullable
+  static ContactT9Index readFrom(File file, long watermark, int contactCount) {
+    if (!file.exists()) {
+      return null;
+    }
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel()) {
+      ByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+              .order(ByteOrder.LITTLE_ENDIAN);
+      int offsetCount = SEQUENCE_COUNT * contactCount + 1;
+      if (buffer.capacity() < HEADER_SIZE
+          || buffer.getInt(0) != MAGIC
+          || buffer.getInt(4) != VERSION
+          || buffer.getLong(HEADER_WATERMARK) != watermark
+          || buffer.getInt(HEADER_CONTACT_COUNT) != contactCount) {
+        LogUtil.i("ContactT9Index.readFrom", "discarding stale index");
+        return null;
+      }
+      int nibbleLongCount = buffer.getInt(HEADER_NIBBLE_LONG_COUNT);
+      if (nibbleLongCount < 0
+          || buffer.capacity()
+              != HEADER_SIZE + (long) nibbleLongCount * LONG_SIZE + offsetCount * INT_SIZE) {
+        LogUtil.i("ContactT9Index.readFrom", "discarding corrupt index");
+        return null;
+      }
+
+      long[] nibbles = new long[nibbleLongCount];
+      buffer.position(HEADER_SIZE);
+      buffer.asLongBuffer().get(nibbles);
+      int[] offsets = new int[offsetCount];
+      buffer.position(HEADER_SIZE + nibbleLongCount * LONG_SIZE);
+      buffer.asIntBuffer().get(offsets);
+
+      // Scans stay within the nibbles only if the sequences are in order and end within them.
+      int previousOffset = 0;
+      for (int offset : offsets) {
+        if (offset < previousOffset) {
+          LogUtil.i("ContactT9Index.readFrom", "discarding corrupt index");
+          return null;
+        }
+        previousOffset = offset;
+      }
+      if (previousOffset > (long) nibbleLongCount * NIBBLES_PER_LONG) {
+        LogUtil.i("ContactT9Index.readFrom", "discarding corrupt index");
+        return null;
+      }
+      return new ContactT9Index(nibbles, offsets, contactCount);
+    } catch (IOException e) {
+      LogUtil.e("ContactT9Index.readFrom", "failed to read index", e);
+      return null;
+    }
+  }
+
+  /**
+   * Atomically replaces {@code file} with this index, built from contacts identified by {@code
+   * watermark}.
+   */
+  @WorkerThread
+  void writeTo(File file, long watermark) throws IOException {
+    ByteBuffer buffer =
+        ByteBuffer.allocate(HEADER_SIZE + nibbles.length * LONG_SIZE + offsets.length * INT_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putLong(watermark);
+    buffer.putInt(contactCount);
+    buffer.putInt(nibbles.length);
+    buffer.asLongBuffer().put(nibbles);
+    buffer.position(buffer.position() + nibbles.length * LONG_SIZE);
+    buffer.asIntBuffer().put(offsets);
+    buffer.clear();
+
+    // A unique temp file, so that concurrent writers never rename each other's partial files.
+    File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    boolean renamed = false;
+    try {
+      try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+        outputStream.getChannel().write(buffer);
+        outputStream.getFD().sync();
+      }
+      renamed = tempFile.renameTo(file);
+      if (!renamed) {
+        throw new IOException("failed to rename " + tempFile + " to " + file);
+      }
+    } finally {
+      if (!renamed) {
+        tempFile.delete();
+      }
+    }
+  }
+
+  /** Returns true if the query only contains digits, i.e. it can match a T9 name or a number. */
+  static boolean isSupportedQuery(String query) {
+    if (TextUtils.isEmpty(query)) {
+      return false;
+    }
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sets the bit of every contact position in {@code matches} whose T9 name, T9 initials or phone
+   * number matches {@code query}.
+   *
+   * <p>{@code query} must satisfy {@link #isSupportedQuery(String)}.
+   */
+  void addMatches(String query, BitSet matches) {
+    if (query.length() > Long.SIZE) {
+      // Longer than any real name part or number; a plain comparison is good enough.
+      addMatchesSlow(query, matches);
+      return;
+    }
+
+    // masks[d] has bit i set if the query's ith digit is d. OTHER and SEPARATOR match nothing.
+    long[] masks = new long[SEPARATOR + 1];
+    for (int i = 0; i < query.length(); i++) {
+      masks[query.charAt(i) - '0'] |= 1L << i;
+    }
+    long accept = 1L << (query.length() - 1);
+
+    for (int position = 0; position < contactCount; position++) {
+      int sequence = SEQUENCE_COUNT * position;
+      if (scan(sequence + SEQUENCE_NAMES, masks, accept, /* anchored = */ true)
+          || scan(sequence + SEQUENCE_INITIALS, masks, accept, /* anchored = */ true)
+          || scan(sequence + SEQUENCE_NUMBER, masks, accept, /* anchored = */ false)) {
+        matches.set(position);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the query occurs in the given sequence.
+   *
+   * @param anchored if true, a match has to start at the beginning of the sequence or right after
+   *     a {@link #SEPARATOR}. Otherwise it may start anywhere.
+   */
+  private boolean scan(int sequence, long[] masks, long accept, boolean anchored) {
+    long state = 0;
+    boolean atStart = true;
+    for (int i = offsets[sequence], end = offsets[sequence + 1]; i < end; i++) {
+      int nibble = nibbleAt(i);
+      if (nibble == SEPARATOR) {
+        state = 0;
+        atStart = true;
+        continue;
+      }
+      state = ((state << 1) | (atStart || !anchored ? 1 : 0)) & masks[nibble];
+      if ((state & accept) != 0) {
+        return true;
+      }
+      atStart = false;
+    }
+    return false;
+  }
+
+  private void addMatchesSlow(String query, BitSet matches) {
+    for (int position = 0; position < contactCount; position++) {
+      int sequence = SEQUENCE_COUNT * position;
+      if (scanSlow(sequence + SEQUENCE_NAMES, query, /* anchored = */ true)
+          || scanSlow(sequence + SEQUENCE_INITIALS, query, /* anchored = */ true)
+          || scanSlow(sequence + SEQUENCE_NUMBER, query, /* anchored = */ false)) {
+        matches.set(position);
+      }
+    }
+  }
+
+  private boolean scanSlow(int sequence, String query, boolean anchored) {
+    int start = offsets[sequence];
+    int end = offsets[sequence + 1];
+    for (int i = start; i + query.length() <= end; i++) {
+      if (anchored && i != start && nibbleAt(i - 1) != SEPARATOR) {
+        continue;
+      }
+      int j = 0;
+      while (j < query.length() && nibbleAt(i + j) == query.charAt(j) - '0') {
+        j++;
+      }
+      if (j == query.length()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int nibbleAt(int index) {
+    return (int) (nibbles[index / NIBBLES_PER_LONG] >>> (4 * (index % NIBBLES_PER_LONG))) & 0xF;
+  }
+
+  /**
+   * Builds a {@link ContactT9Index}. Contacts must be added in cursor position order, starting at
+   * position 0.
+   */
+  static final class Builder {
+
+    private final Context context;
+
+    private long[] nibbles = new long[64];
+    private int nibbleCount;
+
+    private int[] offsets = new int[SEQUENCE_COUNT * 64 + 1];
+    private int contactCount;
+
+    Builder(Context context) {
+      this.context = context;
+    }
+
+    /** Adds the contact at the next cursor position. */
+    void add(
+        @Nullable String displayName,
+        @Nullable String companyName,
+        @Nullable String nickName,
+        @Nullable String number) {
+      if (offsets.length < SEQUENCE_COUNT * (contactCount + 1) + 1) {
+        offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+      }
+      int sequence = SEQUENCE_COUNT * contactCount;
+      offsets[sequence] = nibbleCount;
+
+      String[] t9Names = {toT9(displayName), toT9(companyName), toT9(nickName)};
+      for (String t9Name : t9Names) {
+        appendT9(t9Name);
+        appendNibble(SEPARATOR);
+      }
+
+      offsets[sequence + SEQUENCE_INITIALS] = nibbleCount;
+      for (String t9Name : t9Names) {
+        appendInitials(t9Name);
+        appendNibble(SEPARATOR);
+      }
+
+      offsets[sequence + SEQUENCE_NUMBER] = nibbleCount;
+      if (number != null) {
+        for (int i = 0; i < number.length(); i++) {
+          char c = number.charAt(i);
+          if (Character.isDigit(c)) {
+            appendNibble(toNibble(c));
+          }
+        }
+      }
+
+      contactCount++;
+      offsets[SEQUENCE_COUNT * contactCount] = nibbleCount;
+    }
+
+    ContactT9Index build() {
+      return new ContactT9Index(
+          Arrays.copyOf(nibbles, (nibbleCount + NIBBLES_PER_LONG - 1) / NIBBLES_PER_LONG),
+          Arrays.copyOf(offsets, SEQUENCE_COUNT * contactCount + 1),
+          contactCount);
+    }
+
+    private String toT9(@Nullable String phrase) {
+      if (TextUtils.isEmpty(phrase)) {
+        return "";
+      }
+      return QueryFilteringUtil.getT9Representation(
+          phrase.toLowerCase(Locale.getDefault()), context);
+    }
+
+    private void appendT9(String t9Name) {
+      for (int i = 0; i < t9Name.length(); i++) {
+        char c = t9Name.charAt(i);
+        appendNibble(Character.isWhitespace(c) ? SEPARATOR : toNibble(c));
+      }
+    }
+
+    /** Appends the first character of every white space divided part of {@code t9Name}. */
+    private void appendInitials(String t9Name) {
+      boolean atStart = true;
+      for (int i = 0; i < t9Name.length(); i++) {
+        char c = t9Name.charAt(i);
+        if (Character.isWhitespace(c)) {
+          atStart = true;
+        } else if (atStart) {
+          appendNibble(toNibble(c));
+          atStart = false;
+        }
+      }
+    }
+
+    private void appendNibble(int nibble) {
+      if (nibbleCount == nibbles.length * NIBBLES_PER_LONG) {
+        nibbles = Arrays.copyOf(nibbles, 2 * nibbles.length);
+      }
+      nibbles[nibbleCount / NIBBLES_PER_LONG] |=
+          (long) nibble << (4 * (nibbleCount % NIBBLES_PER_LONG));
+      nibbleCount++;
+    }
+
+    private static int toNibble(char c) {
+      return c >= '0' && c <= '9' ? c - '0' : OTHER;
+    }
+  }
+}
@@ -18,6 +18,12 @@ package com.android.dialer.searchfragment.cp2;
 
 import android.support.v4.util.ArraySet;
 import android.text.TextUtils;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Set;
 
 /** Ternary Search Tree for searching a list of contacts. */
@@ -85,6 +91,62 @@ public class ContactTernarySearchTree {
     }
   }
 
+  /**
+   * Returns this tree flattened into a {@link ContactTernarySearchTreeSnapshot} built from contacts
+   * identified by {@code watermark}.
+   */
+  ContactTernarySearchTreeSnapshot toSnapshot(long watermark) {
+    // Number the nodes in pre-order so the root is node 0.
+    List<Node> nodes = new ArrayList<>();
+    int valueCount = 0;
+    Deque<Node> stack = new ArrayDeque<>();
+    if (root != null) {
+      stack.push(root);
+    }
+    while (!stack.isEmpty()) {
+      Node node = stack.pop();
+      node.index = nodes.size();
+      nodes.add(node);
+      valueCount += node.values.size();
+      if (node.right != null) {
+        stack.push(node.right);
+      }
+      if (node.mid != null) {
+        stack.push(node.mid);
+      }
+      if (node.left != null) {
+        stack.push(node.left);
+      }
+    }
+
+    ByteBuffer buffer =
+        ContactTernarySearchTreeSnapshot.allocate(watermark, nodes.size(), valueCount);
+    int valueStart = 0;
+    for (Node node : nodes) {
+      int[] values = new int[node.values.size()];
+      int i = 0;
+      for (int value : node.values) {
+        values[i++] = value;
+      }
+      Arrays.sort(values);
+      ContactTernarySearchTreeSnapshot.putNode(
+          buffer,
+          node.index,
+          node.key,
+          indexOf(node.left),
+          indexOf(node.mid),
+          indexOf(node.right),
+          values,
+          valueStart);
+      valueStart += values.length;
+    }
+    return ContactTernarySearchTreeSnapshot.wrap(buffer);
+  }
+
+  private static int indexOf(Node node) {
+    return node == null ? -1 : node.index;
+  }
+
   /** Node in ternary search trie. Children are denoted as left, middle and right nodes. */
   private static class Node {
     private char key;
@@ -93,5 +155,8 @@ public class ContactTernarySearchTree {
     private Node left;
     private Node mid;
     private Node right;
+
+    /** Position of the node in the last {@link #toSnapshot(long)}. */
+    private int index;
   }
 }
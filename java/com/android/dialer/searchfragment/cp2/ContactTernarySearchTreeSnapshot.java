@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.searchfragment.cp2;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import com.android.dialer.common.LogUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * Read-only {@link ContactTernarySearchTree} flattened into a single {@link ByteBuffer}.
+ *
+ * <p>The buffer is used as is for lookups, so a snapshot written by {@link #writeTo(File)} can be
+ * memory-mapped by {@link #open(File, long, int)} on the next launch instead of rebuilding the tree
+ * from CP2.
+ *
+ * <p>Layout, all values little endian ints unless noted:
+ *
+ * <ul>
+ *   <li>Header: magic, format version, watermark (long), node count, value count
+ *   <li>Nodes, {@link #NODE_SIZE} bytes each: key, left, mid and right node index (-1 if absent),
+ *       index of the node's first value and number of values. Node 0 is the root.
+ *   <li>Values: every node's values, sorted, one after the other
+ * </ul>
+ *
+ * <p>The watermark identifies the contacts the tree was built from. A snapshot whose watermark
+ * differs from the caller's is stale and is never returned by {@link #open(File, long, int)}.
+ * Nodes are numbered in pre-order, so every child's index is greater than its parent's. Opening a
+ * snapshot checks this and the value ranges, so that a corrupt file can't make lookups loop or
+ * read out of bounds.
+ */
+final class ContactTernarySearchTreeSnapshot {
+
+  private static final int MAGIC = 0x44545354; // "DTST"
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 24;
+  private static final int HEADER_WATERMARK = 8;
+  private static final int HEADER_NODE_COUNT = 16;
+  private static final int HEADER_VALUE_COUNT = 20;
+
+  private static final int NODE_SIZE = 24;
+  private static final int NODE_KEY = 0;
+  private static final int NODE_LEFT = 4;
+  private static final int NODE_MID = 8;
+  private static final int NODE_RIGHT = 12;
+  private static final int NODE_VALUE_START = 16;
+  private static final int NODE_VALUE_COUNT = 20;
+
+  private static final int VALUE_SIZE = 4;
+
+  private final ByteBuffer buffer;
+  private final int nodeCount;
+  private final int valuesOffset;
+
+  private ContactTernarySearchTreeSnapshot(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.nodeCount = buffer.getInt(HEADER_NODE_COUNT);
+    this.valuesOffset = HEADER_SIZE + nodeCount * NODE_SIZE;
+  }
+
+  /** Returns a buffer sized for the given tree with its header filled in. */
+  static ByteBuffer allocate(long watermark, int nodeCount, int valueCount) {
+    ByteBuffer buffer =
+        ByteBuffer.allocate(HEADER_SIZE + nodeCount * NODE_SIZE + valueCount * VALUE_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putLong(HEADER_WATERMARK, watermark);
+    buffer.putInt(HEADER_NODE_COUNT, nodeCount);
+    buffer.putInt(HEADER_VALUE_COUNT, valueCount);
+    return buffer;
+  }
+
+  /** Writes node {@code node} into a buffer returned by {@link #allocate(long, int, int)}. */
+  static void putNode(
+      ByteBuffer buffer,
+      int node,
+      char key,
+      int left,
+      int mid,
+      int right,
+      int[] values,
+      int start) {
+    int nodeOffset = HEADER_SIZE + node * NODE_SIZE;
+    buffer.putInt(nodeOffset + NODE_KEY, key);
+    buffer.putInt(nodeOffset + NODE_LEFT, left);
+    buffer.putInt(nodeOffset + NODE_MID, mid);
+    buffer.putInt(nodeOffset + NODE_RIGHT, right);
+    buffer.putInt(nodeOffset + NODE_VALUE_START, start);
+    buffer.putInt(nodeOffset + NODE_VALUE_COUNT, values.length);
+    int valuesOffset = HEADER_SIZE + buffer.getInt(HEADER_NODE_COUNT) * NODE_SIZE;
+    for (int i = 0; i < values.length; i++) {
+      buffer.putInt(valuesOffset + (start + i) * VALUE_SIZE, values[i]);
+    }
+  }
+
+  /** Wraps a buffer filled in with {@link #putNode}. */
+  static ContactTernarySearchTreeSnapshot wrap(ByteBuffer buffer) {
+    return new ContactTernarySearchTreeSnapshot(buffer);
+  }
+
+  /**
+   * Memory-maps the snapshot stored in {@code file}.
+   *
+   * @param positionCount the number of cursor positions; every value must be below it
+   * @return null if there is no snapshot, or if it is corrupt or was built with a different
+   *     watermark.
+   */
+  @WorkerThread
+  @Nullable
+  static ContactTernarySearchTreeSnapshot open(File file, long watermark, int positionCount) {
+    if (!file.exists()) {
+      return null;
+    }
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel()) {
+      // The mapping stays valid after the channel is closed.
+      ByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+              .order(ByteOrder.LITTLE_ENDIAN);
+      if (!isValid(buffer, watermark, positionCount)) {
+        LogUtil.i("ContactTernarySearchTreeSnapshot.open", "discarding stale snapshot");
+        return null;
+      }
+      return new ContactTernarySearchTreeSnapshot(buffer);
+    } catch (IOException e) {
+      LogUtil.e("ContactTernarySearchTreeSnapshot.open", "failed to map snapshot", e);
+      return null;
+    }
+  }
+
+  private static boolean isValid(ByteBuffer buffer, long watermark, int positionCount) {
+    if (buffer.capacity() < HEADER_SIZE
+        || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != VERSION
+        || buffer.getLong(HEADER_WATERMARK) != watermark) {
+      return false;
+    }
+    int nodeCount = buffer.getInt(HEADER_NODE_COUNT);
+    int valueCount = buffer.getInt(HEADER_VALUE_COUNT);
+    if (nodeCount < 0
+        || valueCount < 0
+        || buffer.capacity()
+            != HEADER_SIZE + (long) nodeCount * NODE_SIZE + (long) valueCount * VALUE_SIZE) {
+      return false;
+    }
+    for (int node = 0; node < nodeCount; node++) {
+      int nodeOffset = HEADER_SIZE + node * NODE_SIZE;
+      if (!isValidChild(node, buffer.getInt(nodeOffset + NODE_LEFT), nodeCount)
+          || !isValidChild(node, buffer.getInt(nodeOffset + NODE_MID), nodeCount)
+          || !isValidChild(node, buffer.getInt(nodeOffset + NODE_RIGHT), nodeCount)) {
+        return false;
+      }
+      long start = buffer.getInt(nodeOffset + NODE_VALUE_START);
+      long count = buffer.getInt(nodeOffset + NODE_VALUE_COUNT);
+      if (start < 0 || count < 0 || start + count > valueCount) {
+        return false;
+      }
+    }
+    int valuesOffset = HEADER_SIZE + nodeCount * NODE_SIZE;
+    for (int i = 0; i < valueCount; i++) {
+      int value = buffer.getInt(valuesOffset + i * VALUE_SIZE);
+      if (value < 0 || value >= positionCount) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isValidChild(int node, int child, int nodeCount) {
+    return child == -1 || (child > node && child < nodeCount);
+  }
+
+  /** Atomically replaces {@code file} with this snapshot. */
+  @WorkerThread
+  void writeTo(File file) throws IOException {
+    // A unique temp file, so that concurrent writers never rename each other's partial files.
+    File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    boolean renamed = false;
+    try {
+      try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        outputStream.getChannel().write(source);
+        outputStream.getFD().sync();
+      }
+      renamed = tempFile.renameTo(file);
+      if (!renamed) {
+        throw new IOException("failed to rename " + tempFile + " to " + file);
+      }
+    } finally {
+      if (!renamed) {
+        tempFile.delete();
+      }
+    }
+  }
+
+  /** Sets the bits of all values stored for {@code key}. */
+  void addValues(String key, BitSet values) {
+    if (TextUtils.isEmpty(key) || nodeCount == 0) {
+      return;
+    }
+    int node = 0;
+    int position = 0;
+    while (node != -1) {
+      int nodeOffset = HEADER_SIZE + node * NODE_SIZE;
+      char c = key.charAt(position);
+      char nodeKey = (char) buffer.getInt(nodeOffset + NODE_KEY);
+      if (c < nodeKey) {
+        node = buffer.getInt(nodeOffset + NODE_LEFT);
+      } else if (c > nodeKey) {
+        node = buffer.getInt(nodeOffset + NODE_RIGHT);
+      } else if (position < key.length() - 1) {
+        node = buffer.getInt(nodeOffset + NODE_MID);
+        position++;
+      } else {
+        int start = buffer.getInt(nodeOffset + NODE_VALUE_START);
+        int end = start + buffer.getInt(nodeOffset + NODE_VALUE_COUNT);
+        for (int i = start; i < end; i++) {
+          values.set(buffer.getInt(valuesOffset + i * VALUE_SIZE));
+        }
+        return;
+      }
+    }
+  }
+}
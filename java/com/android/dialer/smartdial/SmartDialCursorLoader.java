@@ -25,6 +25,7 @@ import com.android.dialer.common.LogUtil;
 import com.android.dialer.database.Database;
 import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.SmartDialSearchSession;
 import com.android.dialer.smartdial.util.SmartDialNameMatcher;
 import com.android.dialer.util.PermissionsUtil;
 import java.util.ArrayList;
@@ -42,6 +43,9 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
   private String query;
   private SmartDialNameMatcher nameMatcher;
 
+  /** Lets each keystroke refine the results of the previous one. */
+  private volatile SmartDialSearchSession searchSession;
+
   private boolean showEmptyListForNullQuery = true;
 
   public SmartDialCursorLoader(Context context) {
@@ -81,10 +85,12 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
     }
 
     /** Loads results from the database helper. */
-    final DialerDatabaseHelper dialerDatabaseHelper =
-        Database.get(context).getDatabaseHelper(context);
-    final ArrayList<ContactNumber> allMatches =
-        dialerDatabaseHelper.getLooseMatches(query, nameMatcher);
+    if (searchSession == null) {
+      final DialerDatabaseHelper dialerDatabaseHelper =
+          Database.get(context).getDatabaseHelper(context);
+      searchSession = dialerDatabaseHelper.newSmartDialSearchSession();
+    }
+    final ArrayList<ContactNumber> allMatches = searchSession.getLooseMatches(query, nameMatcher);
 
     if (DEBUG) {
       LogUtil.v(TAG, "Loaded matches " + allMatches.size());
@@ -157,6 +163,9 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
       releaseResources(cursor);
       cursor = null;
     }
+    if (searchSession != null) {
+      searchSession.reset();
+    }
   }
 
   @Override
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.smartdial.benchmark;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.annotation.WorkerThread;
+import com.android.dialer.smartdial.benchmark.SyntheticContactCorpus.Contact;
+import com.android.dialer.smartdial.map.CompositeSmartDialMap;
+import com.android.dialer.smartdial.util.SmartDialNameMatcher;
+import com.android.dialer.smartdial.util.SmartDialPrefix;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the per-contact smart dial operations that run on every keypress.
+ *
+ * <p>Each benchmark runs one warm-up pass over the corpus and then {@code iterations} measured
+ * passes, with contacts of each alphabet evaluated under a {@link Context} whose locale selects the
+ * matching smart dial map. Results are reported as nanoseconds and bytes allocated per operation,
+ * where one operation is one contact (times one query, for the matchers).
+ *
+ * <p>Allocations are the growth of the runtime's count of bytes allocated on the Java heap. The
+ * count is process-wide, so the benchmark is only meaningful while the rest of the app is idle,
+ * e.g. with the app in the background and no call in progress.
+ */
+public final class SmartDialBenchmark {
+
+  /** Locales whose ISO 639-2 language selects each alphabet of {@link SyntheticContactCorpus}. */
+  private static final ImmutableMap<String, Locale> LOCALES =
+      ImmutableMap.of(
+          "eng", Locale.US,
+          "rus", new Locale("ru", "RU"),
+          "ukr", new Locale("uk", "UA"),
+          "bul", new Locale("bg", "BG"));
+
+  private final Context appContext;
+  private final SyntheticContactCorpus corpus;
+  private final ImmutableList<String> queries;
+  private final int iterations;
+
+  /** Consumes benchmark results so the work can't be optimized away. */
+  private long sink;
+
+  public SmartDialBenchmark(
+      Context appContext, SyntheticContactCorpus corpus, List<String> queries, int iterations) {
+    this.appContext = appContext;
+    this.corpus = corpus;
+    this.queries = ImmutableList.copyOf(queries);
+    this.iterations = iterations;
+  }
+
+  /** Runs every benchmark and returns a human readable report. */
+  @WorkerThread
+  public String run() {
+    StringBuilder report = new StringBuilder();
+    report.append(
+        String.format(
+            Locale.US,
+            "contacts=%d queries=%s iterations=%d\n",
+            corpus.getContacts().size(),
+            queries,
+            iterations));
+    report.append(
+        String.format(Locale.US, "%-24s %-4s %12s %12s\n", "op", "lang", "ns/op", "B/op"));
+
+    for (String languageCode : LOCALES.keySet()) {
+      List<Contact> contacts = contactsFor(languageCode);
+      if (contacts.isEmpty()) {
+        continue;
+      }
+      Context context = localizedContext(languageCode);
+      appendResult(report, "matches", languageCode, measure(() -> matches(context, contacts)));
+      appendResult(
+          report, "matchesNumber", languageCode, measure(() -> matchesNumber(context, contacts)));
+      appendResult(
+          report,
+          "generateNamePrefixes",
+          languageCode,
+          measure(() -> generateNamePrefixes(context, contacts)));
+      appendResult(
+          report,
+          "getDialpadIndex",
+          languageCode,
+          measure(() -> getDialpadIndex(context, contacts)));
+    }
+    report.append("sink=").append(sink).append('\n');
+    return report.toString();
+  }
+
+  /** One pass over the corpus. Returns the number of operations performed. */
+  private interface Pass {
+    long run();
+  }
+
+  private long matches(Context context, List<Contact> contacts) {
+    long operations = 0;
+    for (String query : queries) {
+      SmartDialNameMatcher matcher = new SmartDialNameMatcher(query);
+      for (Contact contact : contacts) {
+        if (matcher.matches(context, contact.displayName)) {
+          sink++;
+        }
+        operations++;
+      }
+    }
+    return operations;
+  }
+
+  private long matchesNumber(Context context, List<Contact> contacts) {
+    long operations = 0;
+    for (String query : queries) {
+      SmartDialNameMatcher matcher = new SmartDialNameMatcher(query);
+      for (Contact contact : contacts) {
+        if (matcher.matchesNumber(context, contact.phoneNumber) != null) {
+          sink++;
+        }
+        operations++;
+      }
+    }
+    return operations;
+  }
+
+  private long generateNamePrefixes(Context context, List<Contact> contacts) {
+    for (Contact contact : contacts) {
+      sink += SmartDialPrefix.generateNamePrefixes(context, contact.displayName).size();
+    }
+    return contacts.size();
+  }
+
+  private long getDialpadIndex(Context context, List<Contact> contacts) {
+    for (Contact contact : contacts) {
+      String name = contact.displayName;
+      for (int i = 0; i < name.length(); i++) {
+        sink +=
+            CompositeSmartDialMap.getDialpadIndex(
+                context, CompositeSmartDialMap.normalizeCharacter(context, name.charAt(i)));
+      }
+    }
+    return contacts.size();
+  }
+
+  /** Returns {nanoseconds per operation, bytes allocated per operation}. */
+  private double[] measure(Pass pass) {
+    pass.run();
+
+    long allocatedBefore = getAllocatedBytes();
+    long operations = 0;
+    long start = SystemClock.elapsedRealtimeNanos();
+    for (int i = 0; i < iterations; i++) {
+      operations += pass.run();
+    }
+    long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+    long allocated = getAllocatedBytes() - allocatedBefore;
+
+    operations = Math.max(1, operations);
+    return new double[] {(double) elapsed / operations, (double) allocated / operations};
+  }
+
+  /**
+   * Returns the number of bytes allocated on the Java heap since the process started, or 0 if the
+   * runtime doesn't report it.
+   */
+  private static long getAllocatedBytes() {
+    String allocated = Debug.getRuntimeStat("art.gc.bytes-allocated");
+    if (allocated == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(allocated);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private List<Contact> contactsFor(String languageCode) {
+    List<Contact> contacts = new ArrayList<>();
+    for (Contact contact : corpus.getContacts()) {
+      if (contact.languageCode.equals(languageCode)) {
+        contacts.add(contact);
+      }
+    }
+    return contacts;
+  }
+
+  private Context localizedContext(String languageCode) {
+    Configuration configuration = new Configuration(appContext.getResources().getConfiguration());
+    configuration.setLocale(LOCALES.get(languageCode));
+    return appContext.createConfigurationContext(configuration);
+  }
+
+  private static void appendResult(
+      StringBuilder report, String op, String languageCode, double[] result) {
+    report.append(
+        String.format(
+            Locale.US, "%-24s %-4s %12.1f %12.1f\n", op, languageCode, result[0], result[1]));
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.smartdial.benchmark;
+
+import com.android.dialer.common.Assert;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A reproducible set of made-up contacts for exercising smart dial.
+ *
+ * <p>Names are built from random syllables in one of the alphabets that have a smart dial map
+ * (Latin, Russian, Ukrainian, Bulgarian), with a mix of one to three tokens, accents in some Latin
+ * names and separators such as '-' and '.'. Numbers are a mix of national, NANP and international
+ * formats so that both the plain and the country-code/NANP-offset paths of the matcher run.
+ */
+public final class SyntheticContactCorpus {
+
+  /** Alphabets keyed by the ISO 639-2 code that selects the matching smart dial map. */
+  static final ImmutableMap<String, String> ALPHABETS =
+      ImmutableMap.of(
+          "eng", "abcdefghijklmnopqrstuvwxyzéüñç",
+          "rus", "абвгдеёжзийклмнопрстуфхцчшщъыьэюя",
+          "ukr", "абвгґдеєжзиіїйклмнопрстуфхцчшщьюя",
+          "bul", "абвгдежзийклмнопрстуфхцчшщъьюя");
+
+  private static final String[] SEPARATORS = {" ", " ", " ", "-", ". "};
+
+  private static final String[] NUMBER_FORMATS = {
+    "(%s) %s-%s", "+1 %s-%s-%s", "+7 %s %s %s", "+380 %s %s-%s", "%s%s%s",
+  };
+
+  /** A made-up contact. */
+  public static final class Contact {
+    public final String languageCode;
+    public final String displayName;
+    public final String phoneNumber;
+
+    Contact(String languageCode, String displayName, String phoneNumber) {
+      this.languageCode = languageCode;
+      this.displayName = displayName;
+      this.phoneNumber = phoneNumber;
+    }
+  }
+
+  private final ImmutableList<Contact> contacts;
+
+  private SyntheticContactCorpus(ImmutableList<Contact> contacts) {
+    this.contacts = contacts;
+  }
+
+  /**
+   * Generates {@code size} contacts, spread evenly over {@code languageCodes}.
+   *
+   * @param languageCodes ISO 639-2 codes, each a key of {@link #ALPHABETS}.
+   * @param seed Seed for the generator; the same seed always gives the same corpus.
+   */
+  public static SyntheticContactCorpus generate(int size, List<String> languageCodes, long seed) {
+    Assert.checkArgument(size > 0);
+    Assert.checkArgument(!languageCodes.isEmpty());
+    for (String languageCode : languageCodes) {
+      Assert.checkArgument(ALPHABETS.containsKey(languageCode), "unknown %s", languageCode);
+    }
+
+    Random random = new Random(seed);
+    ImmutableList.Builder<Contact> contacts = ImmutableList.builder();
+    for (int i = 0; i < size; i++) {
+      String languageCode = languageCodes.get(i % languageCodes.size());
+      contacts.add(
+          new Contact(
+              languageCode,
+              randomName(random, ALPHABETS.get(languageCode)),
+              randomNumber(random)));
+    }
+    return new SyntheticContactCorpus(contacts.build());
+  }
+
+  /** Returns true if {@link #generate} accepts {@code languageCode}. */
+  public static boolean isSupportedLanguage(String languageCode) {
+    return ALPHABETS.containsKey(languageCode);
+  }
+
+  public ImmutableList<Contact> getContacts() {
+    return contacts;
+  }
+
+  private static String randomName(Random random, String alphabet) {
+    int tokens = 1 + random.nextInt(3);
+    StringBuilder name = new StringBuilder();
+    for (int token = 0; token < tokens; token++) {
+      if (token > 0) {
+        name.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+      }
+      int length = 2 + random.nextInt(8);
+      for (int i = 0; i < length; i++) {
+        char ch = alphabet.charAt(random.nextInt(alphabet.length()));
+        name.append(i == 0 ? Character.toUpperCase(ch) : ch);
+      }
+    }
+    return name.toString();
+  }
+
+  private static String randomNumber(Random random) {
+    return String.format(
+        Locale.US,
+        NUMBER_FORMATS[random.nextInt(NUMBER_FORMATS.length)],
+        randomDigits(random, 3),
+        randomDigits(random, 3),
+        randomDigits(random, 4));
+  }
+
+  private static String randomDigits(Random random, int count) {
+    StringBuilder digits = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      digits.append((char) ('0' + random.nextInt(10)));
+    }
+    return digits.toString();
+  }
+}
@@ -38,7 +38,22 @@ public class SmartDialNameMatcher {
   // positives
   private static final int INITIAL_LENGTH_LIMIT = 1;
 
-  private final ArrayList<SmartDialMatchPosition> matchPositions = new ArrayList<>();
+  /**
+   * Marks a character of a name that can't be typed on the dialpad, i.e. a separator between
+   * tokens, in the buffers produced by {@link #toDialpadChars(Context, CharSequence, char[])}. A
+   * printable character so that the converted name can be stored as text.
+   */
+  public static final char NOT_DIALPAD_CHAR = ' ';
+
+  private static final long NO_MATCH = -1L;
+
+  // Dialpad digits of the name being matched. Reused across calls to avoid allocating per name.
+  private char[] nameBuffer = new char[32];
+
+  // Match positions of the last name match, packed as start/end pairs. Reused across calls.
+  private int[] matchBuffer = new int[8];
+  private int matchCount;
+
   private String query;
 
   // Controls whether to treat an empty query as a match (with anything).
@@ -77,28 +92,38 @@ public class SmartDialNameMatcher {
   }
 
   /**
-   * Constructs empty highlight mask. Bit 0 at a position means there is no match, Bit 1 means there
-   * is a match and should be highlighted in the TextView.
+   * Converts a name to the dialpad digit of each of its characters, e.g. "Fred S." to "3733 7 ".
    *
-   * @param builder StringBuilder object
-   * @param length Length of the desired mask.
+   * <p>Characters are normalized first (see {@link CompositeSmartDialMap#normalizeCharacter}).
+   * Characters that can't be typed on the dialpad become {@link #NOT_DIALPAD_CHAR}.
+   *
+   * @param buffer Receives one char per character of {@code name}. Must be at least as long as
+   *     {@code name}.
+   * @return The number of chars written, i.e. {@code name.length()}.
    */
-  private void constructEmptyMask(StringBuilder builder, int length) {
-    for (int i = 0; i < length; ++i) {
-      builder.append("0");
+  public static int toDialpadChars(Context context, CharSequence name, char[] buffer) {
+    final int length = name.length();
+    for (int i = 0; i < length; i++) {
+      char ch = CompositeSmartDialMap.normalizeCharacter(context, name.charAt(i));
+      if (!CompositeSmartDialMap.isValidDialpadCharacter(context, ch)) {
+        buffer[i] = NOT_DIALPAD_CHAR;
+      } else if (CompositeSmartDialMap.isValidDialpadAlphabeticChar(context, ch)) {
+        buffer[i] = CompositeSmartDialMap.getDialpadNumericCharacter(context, ch);
+      } else {
+        buffer[i] = ch;
+      }
     }
+    return length;
   }
 
   /**
-   * Replaces the 0-bit at a position with 1-bit, indicating that there is a match.
-   *
-   * @param builder StringBuilder object.
-   * @param matchPos Match Positions to mask as 1.
+   * Returns {@code name} converted with {@link #toDialpadChars(Context, CharSequence, char[])}, as
+   * a string of the same length that can be stored and later passed to {@link
+   * #matchesDialpadName(String)}.
    */
-  private void replaceBitInMask(StringBuilder builder, SmartDialMatchPosition matchPos) {
-    for (int i = matchPos.start; i < matchPos.end; ++i) {
-      builder.replace(i, i + 1, "1");
-    }
+  public static String toDialpadName(Context context, String name) {
+    final char[] buffer = new char[name.length()];
+    return new String(buffer, 0, toDialpadChars(context, name, buffer));
   }
 
   /**
@@ -114,29 +139,29 @@ public class SmartDialNameMatcher {
     if (TextUtils.isEmpty(phoneNumber)) {
       return shouldMatchEmptyQuery ? new SmartDialMatchPosition(0, 0) : null;
     }
-    StringBuilder builder = new StringBuilder();
-    constructEmptyMask(builder, phoneNumber.length());
 
     // Try matching the number as is
-    SmartDialMatchPosition matchPos =
-        matchesNumberWithOffset(context, phoneNumber, query, /* offset = */ 0);
-    if (matchPos == null) {
+    long match = matchesNumberWithOffset(context, phoneNumber, query, /* offset = */ 0);
+
+    // Only numbers starting with '+', or any number in the NANP region, can have a country code
+    // or NANP offset, so skip parsing (and its allocations) for everything else.
+    if (match == NO_MATCH
+        && (phoneNumber.charAt(0) == '+' || SmartDialPrefix.getUserInNanpRegion())) {
       PhoneNumberTokens phoneNumberTokens = SmartDialPrefix.parsePhoneNumber(context, phoneNumber);
 
       if (phoneNumberTokens.countryCodeOffset != 0) {
-        matchPos =
+        match =
             matchesNumberWithOffset(
                 context, phoneNumber, query, phoneNumberTokens.countryCodeOffset);
       }
-      if (matchPos == null && phoneNumberTokens.nanpCodeOffset != 0) {
-        matchPos =
+      if (match == NO_MATCH && phoneNumberTokens.nanpCodeOffset != 0) {
+        match =
             matchesNumberWithOffset(context, phoneNumber, query, phoneNumberTokens.nanpCodeOffset);
       }
     }
-    if (matchPos != null) {
-      replaceBitInMask(builder, matchPos);
-    }
-    return matchPos;
+    return match == NO_MATCH
+        ? null
+        : new SmartDialMatchPosition((int) (match >>> 32), (int) match);
   }
 
   /**
@@ -158,13 +183,13 @@ public class SmartDialNameMatcher {
    * @param query - Normalized query (only contains numbers from 0-9)
    * @param offset - The position in the number to start the match against (used to ignore leading
    *     prefixes/country codes)
-   * @return {@literal null} if the number and the query don't match, a valid SmartDialMatchPosition
-   *     with the matching positions otherwise
+   * @return {@link #NO_MATCH} if the number and the query don't match, the start of the match in
+   *     the upper and the end of the match in the lower 32 bits otherwise
    */
-  private SmartDialMatchPosition matchesNumberWithOffset(
+  private long matchesNumberWithOffset(
       Context context, String phoneNumber, String query, int offset) {
     if (TextUtils.isEmpty(phoneNumber) || TextUtils.isEmpty(query)) {
-      return shouldMatchEmptyQuery ? new SmartDialMatchPosition(offset, offset) : null;
+      return shouldMatchEmptyQuery ? packMatch(offset, offset) : NO_MATCH;
     }
     int queryAt = 0;
     int numberAt = offset;
@@ -175,7 +200,7 @@ public class SmartDialNameMatcher {
       char ch = phoneNumber.charAt(i);
       if (CompositeSmartDialMap.isValidDialpadNumericChar(context, ch)) {
         if (ch != query.charAt(queryAt)) {
-          return null;
+          return NO_MATCH;
         }
         queryAt++;
       } else {
@@ -196,7 +221,11 @@ public class SmartDialNameMatcher {
       }
       numberAt++;
     }
-    return new SmartDialMatchPosition(0 + offset, numberAt);
+    return packMatch(offset, numberAt);
+  }
+
+  private static long packMatch(int start, int end) {
+    return ((long) start << 32) | end;
   }
 
   /**
@@ -217,42 +246,39 @@ public class SmartDialNameMatcher {
    * <p>Also, a match can extend across tokens. For example, typing 37337(FredS) would match (Fred
    * S)mith.
    *
-   * @param displayName The normalized(no accented characters) display name we intend to match
-   *     against.
-   * @param query The string of digits that we want to match the display name to.
-   * @param matchList An array list of {@link SmartDialMatchPosition}s that we add matched positions
-   *     to.
-   * @return Returns true if a combination of the tokens in displayName match the query string
-   *     contained in query. If the function returns true, matchList will contain an ArrayList of
-   *     match positions (multiple matches correspond to initial matches).
+   * <p>Nothing is allocated: the name is read from {@code name} and match positions are written
+   * to {@link #matchBuffer} as pairs starting at pair index {@code out}. A call that returns -1
+   * writes nothing, so a partial match recorded earlier by the caller survives a failed attempt.
+   *
+   * @param name The dialpad digits of the display name, see {@link #toDialpadChars}.
+   * @param nameFrom Index in {@code name} to start matching at.
+   * @param nameLength Number of valid chars in {@code name}.
+   * @param queryFrom Index in {@link #query} to start matching at.
+   * @param out Pair index in {@link #matchBuffer} to write match positions to.
+   * @return The number of match positions written if a combination of the tokens in the name
+   *     matches the rest of the query (multiple positions correspond to initial matches), or -1.
    */
-  private boolean matchesCombination(
-      Context context,
-      String displayName,
-      String query,
-      ArrayList<SmartDialMatchPosition> matchList) {
-    StringBuilder builder = new StringBuilder();
-    constructEmptyMask(builder, displayName.length());
-    final int nameLength = displayName.length();
+  private int matchesCombination(
+      char[] name, int nameFrom, int nameLength, int queryFrom, int out) {
     final int queryLength = query.length();
 
-    if (nameLength < queryLength) {
-      return false;
+    if (nameLength - nameFrom < queryLength - queryFrom) {
+      return -1;
     }
 
-    if (queryLength == 0) {
-      return false;
+    if (queryLength - queryFrom == 0) {
+      return -1;
     }
 
-    // The current character index in displayName
+    // The current character index in the name
     // E.g. 3 corresponds to 'd' in "Fred Smith"
-    int nameStart = 0;
+    int nameStart = nameFrom;
 
-    // The current character in the query we are trying to match the displayName against
-    int queryStart = 0;
+    // The current character in the query we are trying to match the name against
+    int queryStart = queryFrom;
 
     // The start position of the current token we are inspecting
-    int tokenStart = 0;
+    int tokenStart = nameFrom;
 
     // The number of non-alphabetic characters we've encountered so far in the current match.
     // E.g. if we've currently matched 3733764849 to (Fred Smith W)illiam, then the
@@ -260,16 +286,13 @@ public class SmartDialNameMatcher {
     // positions
     int seperatorCount = 0;
 
-    ArrayList<SmartDialMatchPosition> partial = new ArrayList<SmartDialMatchPosition>();
-    // Keep going until we reach the end of displayName
+    // The number of match positions of the partial (initial) match found so far, if any
+    int partialCount = -1;
+
+    // Keep going until we reach the end of the name
     while (nameStart < nameLength && queryStart < queryLength) {
-      char ch = displayName.charAt(nameStart);
-      // Strip diacritics from accented characters if any
-      ch = CompositeSmartDialMap.normalizeCharacter(context, ch);
-      if (CompositeSmartDialMap.isValidDialpadCharacter(context, ch)) {
-        if (CompositeSmartDialMap.isValidDialpadAlphabeticChar(context, ch)) {
-          ch = CompositeSmartDialMap.getDialpadNumericCharacter(context, ch);
-        }
+      char ch = name[nameStart];
+      if (ch != NOT_DIALPAD_CHAR) {
         if (ch != query.charAt(queryStart)) {
           // Failed to match the current character in the query.
 
@@ -287,24 +310,16 @@ public class SmartDialNameMatcher {
           // Yo-Yoghurt because the query match would fail on the 3rd character, and
           // then skip to the end of the "Yoghurt" token.
 
-          if (queryStart == 0
-              || CompositeSmartDialMap.isValidDialpadCharacter(
-                  context,
-                  CompositeSmartDialMap.normalizeCharacter(
-                      context, displayName.charAt(nameStart - 1)))) {
+          if (queryStart == queryFrom || name[nameStart - 1] != NOT_DIALPAD_CHAR) {
             // skip to the next token, in the case of 1 or 2.
-            while (nameStart < nameLength
-                && CompositeSmartDialMap.isValidDialpadCharacter(
-                    context,
-                    CompositeSmartDialMap.normalizeCharacter(
-                        context, displayName.charAt(nameStart)))) {
+            while (nameStart < nameLength && name[nameStart] != NOT_DIALPAD_CHAR) {
               nameStart++;
             }
             nameStart++;
           }
 
           // Restart the query and set the correct token position
-          queryStart = 0;
+          queryStart = queryFrom;
           seperatorCount = 0;
           tokenStart = nameStart;
         } else {
@@ -312,39 +327,29 @@ public class SmartDialNameMatcher {
 
             // As much as possible, we prioritize a full token match over a sub token
             // one so if we find a full token match, we can return right away
-            matchList.add(
-                new SmartDialMatchPosition(tokenStart, queryLength + tokenStart + seperatorCount));
-            for (SmartDialMatchPosition match : matchList) {
-              replaceBitInMask(builder, match);
-            }
-            return true;
-          } else if (ALLOW_INITIAL_MATCH && queryStart < INITIAL_LENGTH_LIMIT) {
+            setMatchPosition(
+                out, tokenStart, queryLength - queryFrom + tokenStart + seperatorCount);
+            return 1;
+          } else if (ALLOW_INITIAL_MATCH && queryStart - queryFrom < INITIAL_LENGTH_LIMIT) {
             // we matched the first character.
             // branch off and see if we can find another match with the remaining
             // characters in the query string and the remaining tokens
             // find the next separator in the query string
             int j;
             for (j = nameStart; j < nameLength; j++) {
-              if (!CompositeSmartDialMap.isValidDialpadCharacter(
-                  context,
-                  CompositeSmartDialMap.normalizeCharacter(context, displayName.charAt(j)))) {
+              if (name[j] == NOT_DIALPAD_CHAR) {
                 break;
               }
             }
             // this means there is at least one character left after the separator
             if (j < nameLength - 1) {
-              final String remainder = displayName.substring(j + 1);
-              final ArrayList<SmartDialMatchPosition> partialTemp = new ArrayList<>();
-              if (matchesCombination(
-                  context, remainder, query.substring(queryStart + 1), partialTemp)) {
-
-                // store the list of possible match positions
-                SmartDialMatchPosition.advanceMatchPositions(partialTemp, j + 1);
-                partialTemp.add(0, new SmartDialMatchPosition(nameStart, nameStart + 1));
-                // we found a partial token match, store the data in a
-                // temp buffer and return it if we end up not finding a full
-                // token match
-                partial = partialTemp;
+              final int count =
+                  matchesCombination(name, j + 1, nameLength, queryStart + 1, out + 1);
+              if (count >= 0) {
+                // we found a partial token match, keep it and return it if we end up not
+                // finding a full token match
+                setMatchPosition(out, nameStart, nameStart + 1);
+                partialCount = count + 1;
               }
             }
           }
@@ -356,7 +361,7 @@ public class SmartDialNameMatcher {
       } else {
         // found a separator, we skip this character and continue to the next one
         nameStart++;
-        if (queryStart == 0) {
+        if (queryStart == queryFrom) {
           // This means we found a separator before the start of a token,
           // so we should increment the token's start position to reflect its true
           // start position
@@ -368,17 +373,15 @@ public class SmartDialNameMatcher {
         }
       }
     }
-    // if we have no complete match at this point, then we attempt to fall back to the partial
-    // token match(if any). If we don't allow initial matching (ALLOW_INITIAL_MATCH = false)
-    // then partial will always be empty.
-    if (!partial.isEmpty()) {
-      matchList.addAll(partial);
-      for (SmartDialMatchPosition match : matchList) {
-        replaceBitInMask(builder, match);
-      }
-      return true;
-    }
-    return false;
+    // if we have no complete match at this point, then we fall back to the partial token
+    // match(if any). If we don't allow initial matching (ALLOW_INITIAL_MATCH = false) then
+    // partialCount will always be -1.
+    return partialCount;
+  }
+
+  private void setMatchPosition(int index, int start, int end) {
+    matchBuffer[2 * index] = start;
+    matchBuffer[2 * index + 1] = end;
   }
 
   /**
@@ -402,18 +405,70 @@ public class SmartDialNameMatcher {
    * @param displayName The normalized(no accented characters) display name we intend to match
    *     against.
    * @return Returns true if a combination of the tokens in displayName match the query string
-   *     contained in query. If the function returns true, matchList will contain an ArrayList of
-   *     match positions (multiple matches correspond to initial matches).
+   *     contained in query. If the function returns true, the match positions can be read with
+   *     {@link #getMatchPositions()} (multiple matches correspond to initial matches).
    */
   public boolean matches(Context context, String displayName) {
-    matchPositions.clear();
-    return matchesCombination(context, displayName, query, matchPositions);
+    if (nameBuffer.length < displayName.length()) {
+      nameBuffer = new char[Math.max(displayName.length(), 2 * nameBuffer.length)];
+    }
+    return matches(nameBuffer, toDialpadChars(context, displayName, nameBuffer));
+  }
+
+  /**
+   * Same as {@link #matches(Context, String)}, for a name that has already been converted with
+   * {@link #toDialpadChars(Context, CharSequence, char[])}. Doesn't allocate unless the query grew
+   * longer than any query matched before.
+   *
+   * @param dialpadChars The dialpad digits of the name. Only read, never kept.
+   * @param length The number of valid chars in {@code dialpadChars}.
+   */
+  public boolean matches(char[] dialpadChars, int length) {
+    // Every level of initial matching adds one position, so there are at most as many positions
+    // as query characters.
+    if (matchBuffer.length < 2 * query.length()) {
+      matchBuffer = new int[2 * query.length()];
+    }
+    matchCount = Math.max(0, matchesCombination(dialpadChars, 0, length, 0, 0));
+    return matchCount > 0;
+  }
+
+  /**
+   * Same as {@link #matches(Context, String)}, for a name that has already been converted with
+   * {@link #toDialpadName(Context, String)}, e.g. when it was stored at ingest time. Skips all
+   * per-character normalization.
+   */
+  public boolean matchesDialpadName(String dialpadName) {
+    final int length = dialpadName.length();
+    if (nameBuffer.length < length) {
+      nameBuffer = new char[Math.max(length, 2 * nameBuffer.length)];
+    }
+    dialpadName.getChars(0, length, nameBuffer, 0);
+    return matches(nameBuffer, length);
+  }
+
+  /** Returns the number of match positions found by the last name match. */
+  public int getMatchPositionCount() {
+    return matchCount;
+  }
+
+  /** Returns the start (inclusive) of the {@code index}th match position of the last name match. */
+  public int getMatchStart(int index) {
+    return matchBuffer[2 * index];
+  }
+
+  /** Returns the end (exclusive) of the {@code index}th match position of the last name match. */
+  public int getMatchEnd(int index) {
+    return matchBuffer[2 * index + 1];
   }
 
   public ArrayList<SmartDialMatchPosition> getMatchPositions() {
-    // Return a clone of mMatchPositions so that the caller can use it without
-    // worrying about it changing
-    return new ArrayList<>(matchPositions);
+    // Return a new list so that the caller can use it without worrying about it changing
+    final ArrayList<SmartDialMatchPosition> matchPositions = new ArrayList<>(matchCount);
+    for (int i = 0; i < matchCount; i++) {
+      matchPositions.add(new SmartDialMatchPosition(getMatchStart(i), getMatchEnd(i)));
+    }
+    return matchPositions;
   }
 
   public String getQuery() {
@@ -26,6 +26,8 @@ import com.android.dialer.common.concurrent.DialerExecutorComponent;
 import com.android.dialer.configprovider.ConfigProviderBindings;
 import com.android.dialer.phonelookup.PhoneLookupComponent;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
+import com.android.dialer.phonelookup.PhoneLookupInfoCache;
+import com.android.dialer.phonelookup.database.PhoneLookupInfoCodec;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
 import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
 import com.android.dialer.telecom.TelecomCallUtil;
@@ -39,7 +41,7 @@ import com.google.i18n.phonenumbers.PhoneNumberUtil;
 
 /**
  * Fetches the current {@link PhoneLookupInfo} for the provided call and writes it to the
- * PhoneLookupHistory.
+ * PhoneLookupHistory and the {@link PhoneLookupInfoCache}.
  */
 final class PhoneLookupHistoryRecorder {
 
@@ -54,6 +56,9 @@ final class PhoneLookupHistoryRecorder {
 
     ListeningExecutorService backgroundExecutor =
         DialerExecutorComponent.get(appContext).backgroundExecutor();
+    PhoneLookupInfoCache phoneLookupInfoCache =
+        PhoneLookupComponent.get(appContext).phoneLookupInfoCache();
+    long generation = phoneLookupInfoCache.getGeneration();
 
     ListenableFuture<DialerPhoneNumber> numberFuture =
         backgroundExecutor.submit(
@@ -87,7 +92,8 @@ final class PhoneLookupHistoryRecorder {
               return;
             }
             ContentValues contentValues = new ContentValues();
-            contentValues.put(PhoneLookupHistory.PHONE_LOOKUP_INFO, result.toByteArray());
+            contentValues.put(
+                PhoneLookupHistory.PHONE_LOOKUP_INFO, PhoneLookupInfoCodec.encode(result));
             contentValues.put(PhoneLookupHistory.LAST_MODIFIED, System.currentTimeMillis());
             appContext
                 .getContentResolver()
@@ -96,6 +102,7 @@ final class PhoneLookupHistoryRecorder {
                     contentValues,
                     null,
                     null);
+            phoneLookupInfoCache.put(normalizedNumber.get(), result, generation);
           }
 
           @Override